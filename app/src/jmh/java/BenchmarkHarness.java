@@ -0,0 +1,270 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Minimal average-time benchmark runner that writes results in JMH's JSON result format.
+ * <p>
+ * JMH proper cannot be used here: its generated harness classes live in a named package and
+ * cannot reference classes in the default package, which is where all of the simulation code is.
+ * This keeps the JMH vocabulary (warmup/measurement iterations, ops, blackhole, -rf json) so the
+ * results can be fed to the usual JMH tooling and diffed between commits.
+ * <p>
+ * Like JMH, every benchmark runs in its own JVM (-f forks, default 1), started with the same
+ * JVM options as this one. Benchmarks sharing a JVM would share the call to Operation.run(),
+ * which turns megamorphic as more of them run and slows down the later ones. With -f 0 they
+ * all run in this JVM, which is only good for a quick check; the JSON then reports 0 forks.
+ */
+public final class BenchmarkHarness {
+    
+    /** One benchmark invocation; the returned value is consumed so the work cannot be eliminated. */
+    public interface Operation {
+        long run();
+    }
+    
+    private record Case(String name, Map<String, String> params, Supplier<Operation> setup) {
+    }
+    
+    private record Result(Case benchmark, double[] iterations) {
+    }
+    
+    private static final String FORK_OPTION = "-fork-case";
+    private static final String SCORES_PREFIX = "# scores:";
+    
+    private final Class<?> mainClass;
+    private final String[] args;
+    private final List<Case> cases = new ArrayList<>();
+    private int forks = 1;
+    private int forkedCase = -1;
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+    private String filter = "";
+    private Path resultFile;
+    private volatile long blackhole;
+    
+    /** @param mainClass the class whose main method registers the benchmarks; forks run it again */
+    public BenchmarkHarness(Class<?> mainClass, String[] args) {
+        this.mainClass = mainClass;
+        this.args = args;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-f" -> forks = Integer.parseInt(args[++i]);
+                case FORK_OPTION -> forkedCase = Integer.parseInt(args[++i]);
+                case "-wi" -> warmupIterations = Integer.parseInt(args[++i]);
+                case "-i" -> measurementIterations = Integer.parseInt(args[++i]);
+                case "-r" -> iterationNanos = (long) (Double.parseDouble(args[++i]) * 1e9);
+                case "-rf" -> resultFile = Path.of(args[++i]);
+                default -> filter = args[i];
+            }
+        }
+    }
+    
+    public void add(String name, Map<String, String> params, Supplier<Operation> setup) {
+        cases.add(new Case(name, params, setup));
+    }
+    
+    public void add(String name, Supplier<Operation> setup) {
+        add(name, Map.of(), setup);
+    }
+    
+    public static Map<String, String> param(String key, Object value) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put(key, String.valueOf(value));
+        return params;
+    }
+    
+    public void run() throws IOException, InterruptedException {
+        if (forkedCase >= 0) {
+            // Inside a fork: measure the one case and hand the scores back on stdout
+            StringBuilder line = new StringBuilder(SCORES_PREFIX);
+            for (double score : measure(cases.get(forkedCase))) {
+                line.append(' ').append(score);
+            }
+            System.out.println(line);
+            return;
+        }
+        List<Result> results = new ArrayList<>();
+        for (int c = 0; c < cases.size(); c++) {
+            Case benchmark = cases.get(c);
+            if (!benchmark.name().contains(filter)) {
+                continue;
+            }
+            double[] scores;
+            if (forks == 0) {
+                scores = measure(benchmark);
+            } else {
+                scores = new double[0];
+                for (int f = 0; f < forks; f++) {
+                    double[] forkScores = fork(c);
+                    scores = Arrays.copyOf(scores, scores.length + forkScores.length);
+                    System.arraycopy(forkScores, 0, scores, scores.length - forkScores.length, forkScores.length);
+                }
+            }
+            Result result = new Result(benchmark, scores);
+            results.add(result);
+            System.out.printf(Locale.ROOT, "%-40s %-20s %12.3f +- %8.3f ns/op%n",
+                    benchmark.name(), benchmark.params(), mean(scores), error(scores));
+        }
+        if (resultFile != null) {
+            if (resultFile.getParent() != null) {
+                Files.createDirectories(resultFile.getParent());
+            }
+            Files.writeString(resultFile, toJson(results));
+            System.out.println("Results written to " + resultFile);
+        }
+    }
+    
+    private double[] measure(Case benchmark) {
+        Operation operation = benchmark.setup().get();
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            scores[i] = iteration(operation);
+        }
+        return scores;
+    }
+    
+    /** Runs one case in a fresh JVM with this JVM's options and classpath; returns its scores. */
+    private double[] fork(int caseIndex) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+        command.add(FORK_OPTION);
+        command.add(String.valueOf(caseIndex));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        double[] scores = null;
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(SCORES_PREFIX)) {
+                    scores = Arrays.stream(line.substring(SCORES_PREFIX.length()).trim().split(" "))
+                            .mapToDouble(Double::parseDouble).toArray();
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0 || scores == null) {
+            throw new IOException("Fork for " + cases.get(caseIndex).name() + " failed with exit code " + exit);
+        }
+        return scores;
+    }
+    
+    /** Runs the operation in growing batches until the iteration time is used up; returns ns/op. */
+    private double iteration(Operation operation) {
+        long operations = 0;
+        long batch = 1;
+        long sink = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sink += operation.run();
+            }
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+            if (batch < 1 << 20) {
+                batch <<= 1;
+            }
+        } while (elapsed < iterationNanos);
+        blackhole = sink;
+        return (double) elapsed / operations;
+    }
+    
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+    
+    /** Half-width of the 99.9% confidence interval, as JMH reports it. */
+    private static double error(double[] values) {
+        if (values.length < 2) {
+            return Double.NaN;
+        }
+        double mean = mean(values);
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        double deviation = Math.sqrt(squares / (values.length - 1));
+        return studentT999(values.length - 1) * deviation / Math.sqrt(values.length);
+    }
+    
+    private static double studentT999(int degreesOfFreedom) {
+        double[] table = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+        return degreesOfFreedom <= table.length ? table[degreesOfFreedom - 1] : 3.291;
+    }
+    
+    private String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            double[] scores = result.iterations();
+            double error = error(scores);
+            json.append("  {\n")
+                    .append("    \"benchmark\" : \"").append(result.benchmark().name()).append("\",\n")
+                    .append("    \"mode\" : \"avgt\",\n")
+                    .append("    \"threads\" : 1,\n")
+                    .append("    \"forks\" : ").append(forks).append(",\n")
+                    .append("    \"jvm\" : \"").append(escape(System.getProperty("java.home"))).append("\",\n")
+                    .append("    \"jdkVersion\" : \"").append(System.getProperty("java.version")).append("\",\n")
+                    .append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n")
+                    .append("    \"measurementIterations\" : ").append(measurementIterations).append(",\n");
+            if (!result.benchmark().params().isEmpty()) {
+                json.append("    \"params\" : {");
+                int p = 0;
+                for (Map.Entry<String, String> entry : result.benchmark().params().entrySet()) {
+                    json.append(p++ == 0 ? " " : ", ").append('"').append(entry.getKey()).append("\" : \"")
+                            .append(entry.getValue()).append('"');
+                }
+                json.append(" },\n");
+            }
+            json.append("    \"primaryMetric\" : {\n")
+                    .append("      \"score\" : ").append(number(mean(scores))).append(",\n")
+                    .append("      \"scoreError\" : ").append(number(error)).append(",\n")
+                    .append("      \"scoreUnit\" : \"ns/op\",\n")
+                    .append("      \"rawData\" : [ [");
+            // One row of iteration scores per fork, as JMH writes them
+            int perFork = forks == 0 ? scores.length : measurementIterations;
+            for (int i = 0; i < scores.length; i++) {
+                if (i > 0 && i % perFork == 0) {
+                    json.append(" ], [");
+                }
+                json.append(i % perFork == 0 ? " " : ", ").append(number(scores[i]));
+            }
+            json.append(" ] ]\n    }\n  }").append(r + 1 < results.size() ? ",\n" : "\n");
+        }
+        return json.append("]\n").toString();
+    }
+    
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+    
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Benchmarks for the grid, cells, traffic lights and the engine tick.
+ * Usage: EnvironmentBenchmarks [-f forks] [-wi n] [-i n] [-r seconds] [-rf results.json] [name filter]
+ */
+public class EnvironmentBenchmarks {
+    
+    private static final int[] SIZES = {100, 1000, 4000};
+    private static final int[] FLEET_SIZES = {1_000, 10_000, 100_000};
+    private static final int LOOKUPS = 1 << 16;
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BenchmarkHarness harness = new BenchmarkHarness(EnvironmentBenchmarks.class, args);
+        
+        for (int size : SIZES) {
+            harness.add("Environment.construct", BenchmarkHarness.param("size", size), () -> () -> {
+                Environment environment = new Environment(size, size);
+                environment.createSimpleRoadNetwork();
+                return environment.getOccupiedCellCount();
+            });
+        }
+        
+        for (int size : SIZES) {
+            harness.add("Environment.isWall", BenchmarkHarness.param("size", size), () -> {
+                Environment environment = cityGrid(size);
+                int[] xs = randomCoordinates(size, 1);
+                int[] ys = randomCoordinates(size, 2);
+                int[] next = {0};
+                return () -> {
+                    int i = next[0]++ & (LOOKUPS - 1);
+                    return environment.isWall(xs[i], ys[i]) ? 1 : 0;
+                };
+            });
+            harness.add("Environment.getCell", BenchmarkHarness.param("size", size), () -> {
+                Environment environment = cityGrid(size);
+                int[] xs = randomCoordinates(size, 3);
+                int[] ys = randomCoordinates(size, 4);
+                int[] next = {0};
+                return () -> {
+                    int i = next[0]++ & (LOOKUPS - 1);
+                    return environment.getCell(xs[i], ys[i]).getTrafficElements().size();
+                };
+            });
+        }
+        
+        harness.add("Cell.getDisplayChar", () -> {
+            Environment environment = cityGrid(256);
+            int[] xs = randomCoordinates(256, 5);
+            int[] ys = randomCoordinates(256, 6);
+            int[] next = {0};
+            return () -> {
+                int i = next[0]++ & (LOOKUPS - 1);
+                return environment.getCell(xs[i], ys[i]).getDisplayChar();
+            };
+        });
+        
+        for (int size : SIZES) {
+            // The per-frame scan the UI used before the scheduler: visit every cell, cycle each light.
+            harness.add("TrafficLights.fullScan", BenchmarkHarness.param("size", size), () -> {
+                Environment environment = cityGrid(size);
+                return () -> {
+                    long changed = 0;
+                    for (int y = 0; y < environment.getHeight(); y++) {
+                        for (int x = 0; x < environment.getWidth(); x++) {
+                            for (TrafficElement element : environment.getCell(x, y).getTrafficElements()) {
+                                if (element instanceof TrafficLight light) {
+                                    light.cycleState();
+                                    changed++;
+                                }
+                            }
+                        }
+                    }
+                    return changed;
+                };
+            });
+            harness.add("TrafficLights.scheduler", BenchmarkHarness.param("size", size), () -> {
+                Environment environment = cityGrid(size);
+                TrafficLightScheduler scheduler = new TrafficLightScheduler(environment);
+                long[] tick = {0};
+                return () -> scheduler.advance(tick[0]++).size();
+            });
+        }
+        
+        for (int agents : FLEET_SIZES) {
+            harness.add("SimulationEngine.tick", BenchmarkHarness.param("agents", agents), () -> {
+                SimulationEngine engine = new SimulationEngine(cityGrid(1000), 42);
+                engine.getFleet().spawnRandom(agents);
+                return () -> {
+                    engine.step();
+                    return engine.getTick();
+                };
+            });
+        }
+        
+        harness.run();
+    }
+    
+    /** A walled grid of blocks with a light on every eighth intersection and a few signs. */
+    static Environment cityGrid(int size) {
+        Environment environment = new Environment(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean border = x == 0 || y == 0 || x == size - 1 || y == size - 1;
+                boolean block = x % 16 > 2 && y % 16 > 2;
+                if (border || block) {
+                    environment.addWall(x, y);
+                }
+            }
+        }
+        SplittableRandom random = new SplittableRandom(size);
+        for (int y = 1; y < size - 1; y += 16) {
+            for (int x = 1; x < size - 1; x += 16) {
+                if (random.nextInt(8) == 0) {
+                    environment.addTrafficLight(x, y, TrafficLightState.values()[random.nextInt(3)]);
+                } else if (random.nextInt(4) == 0) {
+                    environment.addTrafficSign(x + 1, y, TrafficSignType.values()[random.nextInt(TrafficSignType.values().length)]);
+                }
+            }
+        }
+        return environment;
+    }
+    
+    private static int[] randomCoordinates(int size, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] coordinates = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            coordinates[i] = random.nextInt(size);
+        }
+        return coordinates;
+    }
+}
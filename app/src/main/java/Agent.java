@@ -0,0 +1,22 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Anything the SimulationEngine advances once per tick (a single robot or a whole fleet).
+ * Implementations must not touch JavaFX so they can run headless.
+ */
+public interface Agent {
+    void step(Environment environment, long tick);
+    
+    /**
+     * Writes the state this agent carries from one tick to the next, so a CheckpointLog can
+     * restore it; agents whose step depends only on the environment and fleet write nothing.
+     */
+    default void saveState(DataOutput out) throws IOException {
+    }
+    
+    /** Reads back what {@link #saveState} wrote, replacing the agent's current state. */
+    default void restoreState(DataInput in) throws IOException {
+    }
+}
@@ -0,0 +1,90 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that a steady-state engine tick and the primitive query APIs allocate nothing.
+ * Uses HotSpot's per-thread allocation counter; exits with status 1 if anything was allocated.
+ * Warm-up windows run until two in a row allocate nothing, so the JIT has settled; after that
+ * every measured window must be clean, which also catches allocation that only happens now and
+ * then, such as an array growing every few hundred ticks.
+ * Usage: AllocationCheck [agents] [ticks]
+ */
+public class AllocationCheck {
+    
+    private static final Environment.ElementVisitor COUNT_LIGHTS = new Environment.ElementVisitor() {
+        @Override
+        public void visitLight(int x, int y, TrafficLight light) {
+            lightsSeen++;
+        }
+    };
+    private static long lightsSeen;
+    private static final int WINDOWS = 5;
+    private static final int CLEAN_WARMUP_WINDOWS = 2;
+    private static final int MAX_WARMUP_WINDOWS = 20;
+    
+    public static void main(String[] args) {
+        int agents = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+                || !threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Per-thread allocation counting is not supported on this JVM.");
+            return;
+        }
+        
+        Environment environment = new Environment(400, 400);
+        environment.createSimpleRoadNetwork();
+        for (TrafficLight light : environment.getTrafficLights()) {
+            light.setDurations(20, 5, 15);
+        }
+        SimulationEngine engine = new SimulationEngine(environment, 1);
+        engine.getFleet().spawnRandom(agents);
+        
+        // Warm up until the JIT has compiled (and scalar-replaced) the hot paths: tiered compilation
+        // can still allocate while it swaps in optimized code, so wait for clean windows in a row
+        int warmupWindows = 0;
+        int clean = 0;
+        while (clean < CLEAN_WARMUP_WINDOWS) {
+            if (warmupWindows++ == MAX_WARMUP_WINDOWS) {
+                System.out.println("FAIL: still allocating after " + MAX_WARMUP_WINDOWS + " warm-up windows");
+                System.exit(1);
+            }
+            long before = threads.getCurrentThreadAllocatedBytes();
+            engine.run(ticks);
+            queries(environment, ticks);
+            clean = threads.getCurrentThreadAllocatedBytes() == before ? clean + 1 : 0;
+        }
+        
+        long tickBytes = 0;
+        long queryBytes = 0;
+        long checksum = 0;
+        for (int window = 0; window < WINDOWS; window++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            engine.run(ticks);
+            long afterTicks = threads.getCurrentThreadAllocatedBytes();
+            checksum += queries(environment, ticks);
+            tickBytes += afterTicks - before;
+            queryBytes += threads.getCurrentThreadAllocatedBytes() - afterTicks;
+        }
+        
+        System.out.printf("%d warm-up windows, then %d windows of %d ticks with %d agents: %d bytes allocated (%.2f bytes/tick)%n",
+                warmupWindows, WINDOWS, ticks, engine.getFleet().size(), tickBytes, tickBytes / (double) (WINDOWS * ticks));
+        System.out.printf("%d query sweeps: %d bytes allocated (checksum %d)%n", WINDOWS * ticks, queryBytes, checksum);
+        if (tickBytes > 0 || queryBytes > 0) {
+            System.out.println("FAIL: the steady state allocates");
+            System.exit(1);
+        }
+        System.out.println("OK: no allocation in steady state");
+    }
+    
+    private static long queries(Environment environment, int sweeps) {
+        long checksum = 0;
+        int midY = environment.getHeight() / 2;
+        for (int sweep = 0; sweep < sweeps; sweep++) {
+            for (int x = 0; x < environment.getWidth(); x++) {
+                checksum += environment.getCellFlags(x, midY);
+                environment.forEachElement(x, midY, COUNT_LIGHTS);
+                checksum += PackedCoordinates.x(PackedCoordinates.pack(x, midY));
+            }
+        }
+        return checksum + lightsSeen;
+    }
+}
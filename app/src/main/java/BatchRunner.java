@@ -0,0 +1,320 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every combination of a parameter sweep headlessly and writes one CSV row per run.
+ * <p>
+ * A sweep file has one parameter per line; values are comma-separated numbers or ranges:
+ * <pre>
+ *   # 2 sizes x 3 red timings x 5 seeds = 30 runs
+ *   size   = 200, 400
+ *   red    = 10..30 step 10
+ *   seed   = 1..5
+ * </pre>
+ * Parameters (defaults in brackets): size [200] map width and height, block [12] city block
+ * size, lights [20] and signs [20] placed at random, red/yellow/green [10/3/10] light timings in
+ * ticks, agents [1000], speed [10] top speed in tenths of a cell per tick (so 5 is half a cell),
+ * vision [10] perception radius, seed [1] and ticks [1000]. Speed and vision go into the fleet's
+ * KinematicProfile. Control [0] chooses how lights are run: 0 places single lights on that many
+ * distinct random crossings, each on its own fixed cycle; 1, 2 and 3 instead signalize them
+ * with an Intersection under FIXED, ACTUATED or MAX_PRESSURE control, with green as the maximum
+ * green, mingreen [5] as the minimum, yellow as the transition and detectors reaching 5 cells
+ * back. Their discharged vehicles and average delay are reported.
+ * <p>
+ * Runs execute concurrently on a fixed pool of platform threads, one per core by default, or
+ * with --virtual on virtual threads limited to the same number of concurrent runs, which suits
+ * sweeps whose runs spend time writing output. Rows are appended and flushed as runs finish, so
+ * an interrupted overnight batch keeps its results; a failing run records its error and the
+ * batch goes on.
+ * Usage: BatchRunner sweep-file [--out results.csv] [--threads n] [--virtual]
+ */
+public class BatchRunner {
+
+    private static final Map<String, Long> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("size", 200L);
+        DEFAULTS.put("block", 12L);
+        DEFAULTS.put("lights", 20L);
+        DEFAULTS.put("signs", 20L);
+        DEFAULTS.put("red", 10L);
+        DEFAULTS.put("yellow", 3L);
+        DEFAULTS.put("green", 10L);
+        DEFAULTS.put("control", 0L);
+        DEFAULTS.put("mingreen", 5L);
+        DEFAULTS.put("agents", 1000L);
+        DEFAULTS.put("speed", 10L);
+        DEFAULTS.put("vision", 10L);
+        DEFAULTS.put("seed", 1L);
+        DEFAULTS.put("ticks", 1000L);
+    }
+
+    private static final String[] METRICS = {"wall_ms", "ticks_per_s", "agents_placed", "moves", "blocked",
+            "collisions", "arrivals", "moves_per_agent_tick", "lights_in_view", "discharged", "avg_delay", "error"};
+    private static final Intersection.Control[] CONTROLS = Intersection.Control.values();
+    private static final int DETECTOR_REACH = 5;
+    private static final int VISION_SAMPLES = 100;
+    private static final TrafficSignType[] SIGN_TYPES = {
+            TrafficSignType.STOP, TrafficSignType.YIELD, TrafficSignType.SPEED_LIMIT};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println("Usage: BatchRunner <sweep-file> [--out results.csv] [--threads n] [--virtual]");
+            System.exit(2);
+        }
+        Path sweepFile = Path.of(args[0]);
+        Path out = Path.of("results.csv");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtual = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out" -> out = Path.of(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--virtual" -> virtual = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<Map<String, Long>> runs = expand(parseSweep(Files.readAllLines(sweepFile)));
+        System.out.printf("%d runs from %s, %d at a time on %s threads%n",
+                runs.size(), sweepFile, threads, virtual ? "virtual" : "platform");
+        long start = System.nanoTime();
+        run(runs, out, threads, virtual);
+        System.out.printf("Done in %.1f s, results in %s%n", (System.nanoTime() - start) / 1e9, out);
+    }
+
+    /** Parses "name = values" lines into the values of each swept parameter, in file order. */
+    static Map<String, List<Long>> parseSweep(List<String> lines) {
+        Map<String, List<Long>> sweep = new LinkedHashMap<>();
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n).replaceFirst("#.*", "").trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int equals = line.indexOf('=');
+            String name = equals < 0 ? "" : line.substring(0, equals).trim().toLowerCase(Locale.ROOT);
+            if (!DEFAULTS.containsKey(name)) {
+                throw new IllegalArgumentException("Line " + (n + 1) + ": unknown parameter '" + name
+                        + "', expected one of " + DEFAULTS.keySet());
+            }
+            List<Long> values = new ArrayList<>();
+            for (String item : line.substring(equals + 1).split(",")) {
+                parseValues(item.trim(), values, n + 1);
+            }
+            sweep.put(name, values);
+        }
+        return sweep;
+    }
+
+    private static void parseValues(String item, List<Long> values, int line) {
+        try {
+            int range = item.indexOf("..");
+            if (range < 0) {
+                values.add(Long.parseLong(item));
+                return;
+            }
+            String[] bounds = item.substring(range + 2).split("\\s+step\\s+");
+            long from = Long.parseLong(item.substring(0, range).trim());
+            long to = Long.parseLong(bounds[0].trim());
+            long step = bounds.length > 1 ? Long.parseLong(bounds[1].trim()) : 1;
+            if (step <= 0) {
+                throw new IllegalArgumentException("Line " + line + ": step must be positive");
+            }
+            for (long value = from; value <= to; value += step) {
+                values.add(value);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + line + ": cannot read '" + item + "'", e);
+        }
+    }
+
+    /** @return the cartesian product of the sweep, each run holding every parameter */
+    static List<Map<String, Long>> expand(Map<String, List<Long>> sweep) {
+        List<Map<String, Long>> runs = new ArrayList<>();
+        runs.add(new LinkedHashMap<>(DEFAULTS));
+        for (Map.Entry<String, List<Long>> parameter : sweep.entrySet()) {
+            List<Map<String, Long>> next = new ArrayList<>(runs.size() * parameter.getValue().size());
+            for (Map<String, Long> run : runs) {
+                for (long value : parameter.getValue()) {
+                    Map<String, Long> copy = new LinkedHashMap<>(run);
+                    copy.put(parameter.getKey(), value);
+                    next.add(copy);
+                }
+            }
+            runs = next;
+        }
+        return runs;
+    }
+
+    static void run(List<Map<String, Long>> runs, Path out, int threads, boolean virtual)
+            throws IOException, InterruptedException {
+        AtomicInteger finished = new AtomicInteger();
+        Semaphore slots = new Semaphore(threads);
+        try (BufferedWriter writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8);
+             ExecutorService executor = virtual
+                     ? Executors.newVirtualThreadPerTaskExecutor()
+                     : Executors.newFixedThreadPool(threads)) {
+            writer.write("run," + String.join(",", DEFAULTS.keySet()) + "," + String.join(",", METRICS));
+            writer.newLine();
+            for (int i = 0; i < runs.size(); i++) {
+                int id = i;
+                Map<String, Long> parameters = runs.get(i);
+                executor.execute(() -> {
+                    try {
+                        slots.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    String row;
+                    try {
+                        row = id + "," + join(parameters.values()) + "," + runOne(parameters);
+                    } finally {
+                        slots.release();
+                    }
+                    synchronized (writer) {
+                        try {
+                            writer.write(row);
+                            writer.newLine();
+                            writer.flush();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    System.out.printf("run %d/%d done%n", finished.incrementAndGet(), runs.size());
+                });
+            }
+        }
+    }
+
+    /** @return the metric columns for one run */
+    static String runOne(Map<String, Long> parameters) {
+        long start = System.nanoTime();
+        try {
+            int size = (int) (long) parameters.get("size");
+            long seed = parameters.get("seed");
+            Environment environment = new Environment(size, size);
+            environment.createCityGrid((int) (long) parameters.get("block"));
+            SimulationEngine engine = new SimulationEngine(environment, seed);
+            List<Intersection> intersections = placeElements(engine, parameters, new SplittableRandom(seed));
+            Fleet fleet = engine.getFleet();
+            int vision = (int) (long) parameters.get("vision");
+            KinematicProfile profile = KinematicProfile.DEFAULT
+                    .withMaxSpeed(parameters.get("speed") / 10.0).withVision(vision);
+            fleet.setSpawnProfile(fleet.getProfiles().register(profile));
+            fleet.spawnRandom((int) (long) parameters.get("agents"));
+            long ticks = parameters.get("ticks");
+            engine.run(ticks);
+
+            Perception perception = new Perception(environment);
+            int samples = Math.min(VISION_SAMPLES, fleet.size());
+            long lightsInView = 0;
+            for (int i = 0; i < samples; i++) {
+                lightsInView += perception.perceive(null, fleet.getX(i), fleet.getY(i), vision, false).getLights().size();
+            }
+
+            long discharged = 0;
+            long delay = 0;
+            for (Intersection intersection : intersections) {
+                discharged += intersection.getDischarged();
+                delay += intersection.getTotalDelay();
+            }
+
+            double wallMillis = (System.nanoTime() - start) / 1e6;
+            return String.format(Locale.ROOT, "%.1f,%.1f,%d,%d,%d,%d,%d,%.4f,%.2f,%d,%.2f,",
+                    wallMillis, engine.getTicksPerSecond(), fleet.size(), fleet.getMoves(), fleet.getBlockedMoves(),
+                    fleet.getCollisions(), fleet.getArrivals(),
+                    fleet.size() == 0 ? 0 : fleet.getMoves() / (double) fleet.size() / ticks,
+                    samples == 0 ? 0 : lightsInView / (double) samples,
+                    discharged, discharged == 0 ? 0 : delay / (double) discharged);
+        } catch (RuntimeException e) {
+            double wallMillis = (System.nanoTime() - start) / 1e6;
+            return String.format(Locale.ROOT, "%.1f,,,,,,,,,,,\"%s\"", wallMillis,
+                    String.valueOf(e).replace('"', '\''));
+        }
+    }
+
+    /**
+     * Puts lights or signalized intersections on random street crossings and signs on random road cells.
+     * @return the intersections, already added to the engine
+     */
+    private static List<Intersection> placeElements(SimulationEngine engine, Map<String, Long> parameters,
+                                                    SplittableRandom random) {
+        Environment environment = engine.getEnvironment();
+        int size = environment.getWidth();
+        int block = (int) (long) parameters.get("block");
+        int crossings = (size + block - 1) / block;
+        int control = (int) (long) parameters.get("control");
+        if (control < 0 || control > CONTROLS.length) {
+            throw new IllegalArgumentException("control must be between 0 and " + CONTROLS.length);
+        }
+        List<Intersection> intersections = new ArrayList<>();
+        if (control == 0) {
+            BitSet lit = new BitSet();
+            long wanted = Math.min(parameters.get("lights"), (long) crossings * crossings);
+            while (lit.cardinality() < wanted) {
+                int crossing = random.nextInt(crossings * crossings);
+                if (!lit.get(crossing)) {
+                    lit.set(crossing);
+                    environment.addTrafficLight(crossing % crossings * block, crossing / crossings * block,
+                            random.nextBoolean() ? TrafficLightState.RED : TrafficLightState.GREEN);
+                }
+            }
+            for (TrafficLight light : environment.getTrafficLights()) {
+                light.setDurations((int) (long) parameters.get("red"), (int) (long) parameters.get("yellow"),
+                        (int) (long) parameters.get("green"));
+            }
+        } else {
+            int green = (int) (long) parameters.get("green");
+            Intersection.Timing timing = new Intersection.Timing(
+                    (int) Math.min(parameters.get("mingreen"), green), green, (int) (long) parameters.get("yellow"));
+            BitSet signalized = new BitSet();
+            long wanted = Math.min(parameters.get("lights"), (long) crossings * crossings);
+            while (intersections.size() < wanted) {
+                int crossing = random.nextInt(crossings * crossings);
+                if (!signalized.get(crossing)) {
+                    signalized.set(crossing);
+                    Intersection intersection = Intersection.cityCrossing(engine, crossing % crossings * block,
+                            crossing / crossings * block, DETECTOR_REACH, CONTROLS[control - 1], timing);
+                    engine.addAgent(intersection);
+                    intersections.add(intersection);
+                }
+            }
+        }
+        for (long placed = 0, attempts = 0; placed < parameters.get("signs") && attempts < size * 10L; attempts++) {
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            if (!environment.isWall(x, y)) {
+                environment.addTrafficSign(x, y, SIGN_TYPES[random.nextInt(SIGN_TYPES.length)]);
+                placed++;
+            }
+        }
+        return intersections;
+    }
+
+    private static String join(Iterable<Long> values) {
+        StringBuilder joined = new StringBuilder();
+        for (long value : values) {
+            if (!joined.isEmpty()) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+}
@@ -6,21 +6,29 @@ import javafx.scene.input.KeyEvent;
 
 /**
  * A JavaFX Pane representing a car on a grid-based Environment.
- * The car moves in discrete grid steps (one cell per keypress),
- * cannot move outside bounds or through walls, and is rendered as a circle.
- * Use initKeyControls(scene) to bind WASD movement.
+ * The car moves continuously: each keypress accelerates it along the pressed direction up to the
+ * top speed of its {@link KinematicProfile} (capped on SPEED_LIMIT cells) and advances it by that
+ * many cells, fractions included. It cannot move outside bounds or through walls (hitting one
+ * stops it in the last free cell) and is rendered as a circle.
+ * Use initKeyControls(scene) to bind WASD movement, and setViewport to draw it in a zoomable view.
  */
 public class Car extends Pane {
 
     private static final double RADIUS = 20;
-    public static double SPEED = 1;  // cells per keypress
-    public static double VISION = 10;
 
     private final Circle circle;
     private final Environment environment;
+    private KinematicProfile profile = KinematicProfile.DEFAULT;
+    private double posX; // continuous position in cells; the cell centre is at +0.5
+    private double posY;
     private int gridX;
     private int gridY;
+    private double velocity; // cells per keypress
+    private int lastDx;
+    private int lastDy;
     private final double cellSize;
+    private Viewport viewport;
+    private SimulationMetrics metrics;
 
     /**
      * Constructs a car placed on the given Environment at grid coords (startX,startY).
@@ -38,6 +46,8 @@ public class Car extends Pane {
         }
         this.gridX = startX;
         this.gridY = startY;
+        this.posX = startX + 0.5;
+        this.posY = startY + 0.5;
         this.cellSize = cellSize;
 
         // Pane size matches environment dimensions
@@ -49,25 +59,54 @@ public class Car extends Pane {
         updateUICoord();
     }
 
-    /** Sets movement speed in cells per keypress (integer). */
+    /**
+     * Draws the car through the given view from now on instead of at cellSize pixels per cell.
+     * Call {@link #updateView()} whenever the view moves.
+     */
+    public void setViewport(Viewport viewport) {
+        this.viewport = viewport;
+        updateUICoord();
+    }
+
+    /** Redraws the car after the viewport moved or zoomed. */
+    public void updateView() {
+        updateUICoord();
+    }
+
+    /** Counts successful moves in the given metrics, or stops counting if null. */
+    public void setMetrics(SimulationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Replaces this car's profile; other cars are not affected. */
+    public void setProfile(KinematicProfile profile) {
+        this.profile = profile;
+        velocity = Math.min(velocity, profile.maxSpeed());
+    }
+    public KinematicProfile getProfile() { return profile; }
+
+    /** Sets this car's top speed in cells per keypress; fractions move it part of a cell. */
     public void setSpeed(double speed) {
         if (speed >= 0) {
-            SPEED = speed;
+            setProfile(profile.withMaxSpeed(speed));
         } else {
             throw new IllegalArgumentException("Speed must be non-negative.");
         }
     }
-    public double getSpeed() { return SPEED; }
+    public double getSpeed() { return profile.maxSpeed(); }
 
     /** Sets vision radius in cells (not used for movement). */
     public void setVision(double vision) {
         if (vision >= 0) {
-            VISION = vision;
+            setProfile(profile.withVision(vision));
         } else {
             throw new IllegalArgumentException("Vision must be non-negative.");
         }
     }
-    public double getVision() { return VISION; }
+    public double getVision() { return profile.vision(); }
+
+    /** @return current speed in cells per keypress, 0 after stopping or hitting a wall */
+    public double getVelocity() { return velocity; }
 
     /** @return current grid X (column) */
     public int getGridX() { return gridX; }
@@ -76,27 +115,66 @@ public class Car extends Pane {
     /** @return [gridX,gridY] */
     public int[] getGridPosition() { return new int[]{gridX, gridY}; }
 
+    /** Allocation-free position, see {@link PackedCoordinates}. */
+    public long getPackedPosition() { return PackedCoordinates.pack(gridX, gridY); }
+
     /** @return [scene X in pixels, scene Y in pixels] */
     public double[] getScenePosition() {
         return new double[]{circle.getCenterX(), circle.getCenterY()};
     }
 
+    /** @return scene X in pixels */
+    public double getSceneX() { return circle.getCenterX(); }
+    /** @return scene Y in pixels */
+    public double getSceneY() { return circle.getCenterY(); }
+
     // Update circle's visual position based on grid coords
     private void updateUICoord() {
-        double px = gridX * cellSize + cellSize / 2;
-        double py = gridY * cellSize + cellSize / 2;
-        circle.setCenterX(px);
-        circle.setCenterY(py);
+        if (viewport != null) {
+            circle.setCenterX(viewport.toScreenX(posX));
+            circle.setCenterY(viewport.toScreenY(posY));
+            circle.setRadius(RADIUS * viewport.getScale() / cellSize);
+        } else {
+            circle.setCenterX(posX * cellSize);
+            circle.setCenterY(posY * cellSize);
+        }
     }
 
-    // Attempt to move by dx,dy cells; validate against walls and bounds
+    // Accelerate in the unit direction dx,dy and advance; every cell crossed is checked for walls and bounds
     private void move(int dx, int dy) {
-        int newX = gridX + dx;
-        int newY = gridY + dy;
-        if (environment.isValidPosition(newX, newY) && !environment.isWall(newX, newY)) {
-            gridX = newX;
-            gridY = newY;
-            updateUICoord();
+        double limit = profile.speedLimit(environment.getCellFlags(gridX, gridY));
+        boolean sameDirection = dx == lastDx && dy == lastDy;
+        velocity = Math.min((sameDirection ? velocity : 0) + profile.acceleration(), limit);
+        lastDx = dx;
+        lastDy = dy;
+
+        double from = dx != 0 ? posX : posY;
+        double to = from + (dx + dy) * velocity;
+        int step = dx + dy;
+        int lastCell = (int) Math.floor(to);
+        int firstCell = (int) Math.floor(from) + step;
+        for (int c = firstCell; (c - lastCell) * step <= 0; c += step) {
+            int cx = dx != 0 ? c : gridX;
+            int cy = dy != 0 ? c : gridY;
+            if ((environment.getCellFlags(cx, cy) & Environment.FLAG_BLOCKED) != 0) {
+                to = c == firstCell ? from : c - step + 0.5; // stop in the middle of the last free cell
+                velocity = 0;
+                break;
+            }
+        }
+        if (to == from) {
+            return;
+        }
+        if (dx != 0) {
+            posX = to;
+        } else {
+            posY = to;
+        }
+        gridX = (int) Math.floor(posX);
+        gridY = (int) Math.floor(posY);
+        updateUICoord();
+        if (metrics != null) {
+            metrics.recordCarMove();
         }
     }
 
@@ -107,10 +185,10 @@ public class Car extends Pane {
     public void initKeyControls(Scene scene) {
         scene.setOnKeyPressed((KeyEvent event) -> {
             switch (event.getCode()) {
-                case W: move(0, (int)-SPEED); break;
-                case A: move((int)-SPEED, 0); break;
-                case S: move(0, (int)SPEED); break;
-                case D: move((int)SPEED, 0); break;
+                case W: move(0, -1); break;
+                case A: move(-1, 0); break;
+                case S: move(0, 1); break;
+                case D: move(1, 0); break;
                 default: break;
             }
         });
@@ -1,46 +1,102 @@
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * A single grid square. Cells handed out by an Environment are lightweight views onto its
+ * packed storage: the type lives in the environment's byte array, and the element list is
+ * only allocated (and the cell registered with the environment) once something is placed on it.
+ * <p>
+ * The element list is copy-on-write: adding or removing an element publishes a new immutable
+ * list, so renderers on other threads can iterate getTrafficElements() while the engine thread
+ * edits the cell. Elements change rarely, so the copies cost next to nothing.
+ */
 public class Cell {
+    private final Environment environment;
+    private final long index;
     private CellType type;
-    private final List<TrafficElement> trafficElements;
+    private volatile List<TrafficElement> trafficElements; // immutable, replaced on change; null = none
     
     public Cell(CellType type) {
+        this.environment = null;
+        this.index = -1;
         this.type = type;
-        this.trafficElements = new ArrayList<>();
+    }
+    
+    Cell(Environment environment, long index) {
+        this.environment = environment;
+        this.index = index;
     }
     
     public CellType getType() {
-        return type;
+        return environment != null ? environment.typeAt(index) : type;
     }
     
     public void setType(CellType type) {
-        this.type = type;
+        if (environment != null) {
+            environment.setTypeAt(index, type);
+        } else {
+            this.type = type;
+        }
     }
     
     public void addTrafficElement(TrafficElement element) {
-        trafficElements.add(element);
+        if (environment != null && trafficElements == null) {
+            Cell owner = environment.occupy(index, this);
+            if (owner != this) {
+                owner.addTrafficElement(element);
+                return;
+            }
+        }
+        List<TrafficElement> current = trafficElements;
+        List<TrafficElement> updated = new ArrayList<>(current != null ? current.size() + 1 : 1);
+        if (current != null) {
+            updated.addAll(current);
+        }
+        updated.add(element);
+        trafficElements = Collections.unmodifiableList(updated);
+        if (environment != null) {
+            environment.elementAdded(index, element);
+        }
     }
     
     public boolean removeTrafficElement(TrafficElement element) {
-        return trafficElements.remove(element);
+        List<TrafficElement> current = trafficElements;
+        if (current == null || !current.contains(element)) {
+            return false;
+        }
+        List<TrafficElement> updated = new ArrayList<>(current);
+        updated.remove(element);
+        trafficElements = updated.isEmpty() ? null : Collections.unmodifiableList(updated);
+        if (environment != null) {
+            environment.elementRemoved(index, element);
+        }
+        if (updated.isEmpty()) {
+            if (environment != null) {
+                environment.release(index, this);
+            }
+        }
+        return true;
     }
     
     public boolean hasTrafficElements() {
-        return !trafficElements.isEmpty();
+        return trafficElements != null;
     }
     
+    /** @return the elements as an immutable list; use add/removeTrafficElement to change them */
     public List<TrafficElement> getTrafficElements() {
-        return trafficElements;
+        List<TrafficElement> elements = trafficElements;
+        return elements != null ? elements : Collections.emptyList();
     }
     
     public char getDisplayChar() {
-        if (type == CellType.WALL) {
+        if (getType() == CellType.WALL) {
             return '#';
         }
         
-        if (!trafficElements.isEmpty()) {
-            TrafficElement element = trafficElements.get(0);
+        List<TrafficElement> elements = trafficElements;
+        if (elements != null) {
+            TrafficElement element = elements.get(0);
             switch (element) {
                 case TrafficLight light -> {
                     switch (light.getState()) {
@@ -70,4 +126,4 @@ public class Cell {
         
         return ' ';
     }
-}
\ No newline at end of file
+}
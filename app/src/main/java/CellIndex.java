@@ -0,0 +1,137 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from a long cell index to the Cell registered there.
+ * Environment keeps it next to its sorted occupied map so point lookups (getCell, flags,
+ * element visits) neither box the key nor walk a tree.
+ * <p>
+ * There is one writer at a time (the engine thread) but lookups may come from any thread.
+ * Writes bump a sequence number to odd before and back to even after touching the table;
+ * a lookup that saw the number change, or saw it odd, retries. Lookups never lock and,
+ * without concurrent writes, cost two extra volatile reads.
+ */
+final class CellIndex {
+    
+    private static final long EMPTY = -1;
+    
+    private static final class Table {
+        final long[] keys;
+        final Cell[] values;
+    
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Cell[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+    
+    private Table table = new Table(16);
+    private int size;
+    private volatile int sequence; // odd while a write is in progress
+    
+    Cell get(long key) {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0) {
+                Cell cell = find(table, key);
+                VarHandle.loadLoadFence(); // the table reads above must not drift past the check
+                if (sequence == before) {
+                    return cell;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    private static Cell find(Table table, long key) {
+        long[] keys = table.keys;
+        int mask = keys.length - 1;
+        // The table is never more than half full, so even a torn read meets an empty slot
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long current = keys[slot];
+            if (current == key) {
+                return table.values[slot];
+            }
+            if (current == EMPTY) {
+                return null;
+            }
+        }
+    }
+    
+    void put(long key, Cell value) {
+        beginWrite();
+        if ((size + 1) * 2 > table.keys.length) {
+            resize(table.keys.length * 2);
+        }
+        insert(key, value);
+        endWrite();
+    }
+    
+    private void insert(long key, Cell value) {
+        long[] keys = table.keys;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = key;
+        table.values[slot] = value;
+    }
+    
+    void remove(long key) {
+        long[] keys = table.keys;
+        Cell[] values = table.values;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == EMPTY) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        beginWrite();
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+        size--;
+        endWrite();
+    }
+    
+    private void beginWrite() {
+        sequence++;
+        VarHandle.storeStoreFence(); // readers must see the odd number before any table change
+    }
+    
+    private void endWrite() {
+        sequence++;
+    }
+    
+    private void resize(int capacity) {
+        Table old = table;
+        table = new Table(capacity);
+        size = 0;
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != EMPTY) {
+                insert(old.keys[i], old.values[i]);
+            }
+        }
+    }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
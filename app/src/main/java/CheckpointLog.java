@@ -0,0 +1,825 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only log of simulation checkpoints, for restoring and replaying long runs.
+ * <p>
+ * Every few checkpoints a keyframe stores the full state: the packed grid, every traffic element
+ * with its light phase and next change tick, and every agent. The checkpoints in between only
+ * store deltas: the cells that changed since the previous checkpoint (tracked through cellChanged,
+ * which also covers light state changes) and the agents whose position, heading, goal, profile or
+ * motion changed. The fleet's profile table is small and goes into every record, as do the cells
+ * of the traffic lights in placement order, so a restore hands getTrafficLights() back in the
+ * same order, and the state of each agent added with SimulationEngine.addAgent (see
+ * Agent.saveState).
+ * Capturing happens on the engine thread between two ticks and only copies state into a buffer;
+ * compression and disk writes happen on a background thread.
+ * <p>
+ * A tick is a pure function of this state and the fleet seed, so restoring the nearest checkpoint
+ * and stepping forward unthrottled reproduces any tick exactly, far faster than real time.
+ * Restoring needs the same agents, in the same order, as when the checkpoint was taken; agents
+ * that keep state across ticks without implementing saveState (such as FlowModel) and the fleet's
+ * spawnRandom generator are not captured.
+ * Chunked environments are not supported.
+ * <p>
+ * File layout: int magic, short version, long fleet seed, int width, int height, followed by
+ * records of byte kind, long tick, int raw length, int compressed length and the deflated payload.
+ */
+public final class CheckpointLog implements EnvironmentListener, Closeable {
+
+    private static final int MAGIC = 0x504B4341; // "ACKP" read little-endian
+    private static final short VERSION = 4;
+    private static final int FILE_HEADER_BYTES = 4 + 2 + 8 + 4 + 4;
+    private static final int RECORD_HEADER_BYTES = 1 + 8 + 4 + 4;
+    private static final byte KEYFRAME = 0;
+    private static final byte DELTA = 1;
+    private static final byte LIGHT = 0;
+    private static final byte SIGN = 1;
+    private static final CellType[] CELL_TYPES = CellType.values();
+    private static final TrafficLightState[] LIGHT_STATES = TrafficLightState.values();
+    private static final TrafficSignType[] SIGN_TYPES = TrafficSignType.values();
+
+    private record Entry(long tick, byte kind, long offset) {
+    }
+
+    /** A traffic element as stored in the log; for signs only kind and state (the sign type) are used. */
+    private record ElementState(byte kind, int state, int red, int yellow, int green, int offset, long nextChange) {
+    }
+
+    /** Full simulation state rebuilt from a keyframe and the deltas after it. */
+    private static final class State {
+        long tick;
+        byte[] cells;
+        final TreeMap<Integer, List<ElementState>> elements = new TreeMap<>();
+        int[] lightOrder = new int[0]; // cell of each light in placement order; a cell with two lights appears twice
+        int count;
+        int[] x = new int[0];
+        int[] y = new int[0];
+        byte[] heading = new byte[0];
+        int[] goal = new int[0];
+        byte[] profile = new byte[0];
+        float[] velocity = new float[0];
+        float[] progress = new float[0];
+        final List<KinematicProfile> profiles = new ArrayList<>();
+        final long[] totals = new long[4];
+        final List<byte[]> agentStates = new ArrayList<>();
+    }
+
+    private final SimulationEngine engine;
+    private final Environment environment;
+    private final FileChannel channel;
+    private final int keyframeEvery;
+    private final ExecutorService writer;
+    private final List<Entry> index = new ArrayList<>(); // guarded by itself, appended by the writer
+    private final BitSet dirty = new BitSet();
+    private volatile IOException failure;
+    private volatile long bytesWritten;
+
+    // Fleet state at the last checkpoint, for agent deltas
+    private int lastCount;
+    private int[] lastX = new int[0];
+    private int[] lastY = new int[0];
+    private byte[] lastHeading = new byte[0];
+    private int[] lastGoal = new int[0];
+    private byte[] lastProfile = new byte[0];
+    private float[] lastVelocity = new float[0];
+    private float[] lastProgress = new float[0];
+
+    private int sinceKeyframe;
+    private boolean forceKeyframe = true;
+    private boolean replaying;
+    private long branchTick = -1; // records after this tick belong to a history that was rewound
+
+    /**
+     * Opens or creates a log for the engine. An existing log must have been written for a map of
+     * the same size and a fleet with the same seed; its checkpoints can be restored right away, and
+     * new checkpoints replace any recorded after the engine's current tick.
+     * @param keyframeEvery every n-th checkpoint is a keyframe (1 = keyframes only)
+     */
+    public CheckpointLog(SimulationEngine engine, Path file, int keyframeEvery) throws IOException {
+        if (keyframeEvery < 1) {
+            throw new IllegalArgumentException("Keyframe interval must be at least 1.");
+        }
+        if (engine.getEnvironment().isChunked()) {
+            // A keyframe holds the whole grid in memory, which is what chunking exists to avoid
+            throw new IllegalArgumentException("Chunked environments cannot be checkpointed.");
+        }
+        this.engine = engine;
+        this.environment = engine.getEnvironment();
+        this.keyframeEvery = keyframeEvery;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeFileHeader();
+            } else {
+                readIndex(file);
+                branchTick = engine.getTick();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        environment.addListener(this);
+    }
+
+    /** Records the engine's current state; called by the engine at its checkpoint interval. */
+    public void checkpoint() {
+        synchronized (engine) {
+            if (replaying) {
+                return;
+            }
+            throwIfFailed();
+            long tick = engine.getTick();
+            boolean keyframe = forceKeyframe || sinceKeyframe >= keyframeEvery;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                if (keyframe) {
+                    writeKeyframe(out);
+                } else {
+                    writeDelta(out);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            rememberFleet();
+            dirty.clear();
+            forceKeyframe = false;
+            sinceKeyframe = keyframe ? 1 : sinceKeyframe + 1;
+            long truncateAfter = branchTick;
+            branchTick = -1;
+
+            byte kind = keyframe ? KEYFRAME : DELTA;
+            byte[] raw = bytes.toByteArray();
+            writer.execute(() -> append(kind, tick, raw, truncateAfter));
+        }
+    }
+
+    /**
+     * Restores the latest checkpoint at or before the given tick.
+     * @return the tick of the restored checkpoint
+     */
+    public long restore(long tick) throws IOException {
+        synchronized (engine) {
+            flush();
+            List<Entry> entries = entries();
+            int last = -1;
+            for (int i = 0; i < entries.size() && entries.get(i).tick() <= tick; i++) {
+                last = i;
+            }
+            if (last < 0) {
+                throw new IllegalArgumentException("No checkpoint at or before tick " + tick);
+            }
+            int first = last;
+            while (entries.get(first).kind() != KEYFRAME) {
+                first--;
+            }
+            State state = new State();
+            for (int i = first; i <= last; i++) {
+                readRecord(entries.get(i), state);
+            }
+            apply(state);
+            return state.tick;
+        }
+    }
+
+    /** Restores the nearest earlier checkpoint and replays deterministically up to exactly the given tick. */
+    public void seek(long tick) throws IOException {
+        synchronized (engine) {
+            long from = restore(tick);
+            replaying = true;
+            try {
+                engine.run(tick - from);
+            } finally {
+                replaying = false;
+            }
+            branchTick = tick;
+        }
+    }
+
+    /** Waits until every checkpoint taken so far is on disk. */
+    public void flush() throws IOException {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing checkpoints", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        throwIfFailed();
+    }
+
+    /** @return ticks of all checkpoints written so far, in order */
+    public long[] getCheckpointTicks() {
+        return entries().stream().mapToLong(Entry::tick).toArray();
+    }
+
+    /** @return compressed bytes appended by this instance */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void cellChanged(int x, int y) {
+        dirty.set(y * environment.getWidth() + x);
+    }
+
+    /** Flushes pending checkpoints and closes the file. Detach the log from the engine first. */
+    @Override
+    public void close() throws IOException {
+        environment.removeListener(this);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        throwIfFailed();
+    }
+
+    private void writeKeyframe(DataOutputStream out) throws IOException {
+        out.write(environment.cellTypeArray());
+        List<Integer> occupied = new ArrayList<>();
+        environment.forEachOccupiedCell((x, y, cell) -> occupied.add(y * environment.getWidth() + x));
+        out.writeInt(occupied.size());
+        for (int cellIndex : occupied) {
+            out.writeInt(cellIndex);
+            writeElements(out, cellIndex);
+        }
+        writeLightOrder(out);
+
+        Fleet fleet = engine.getFleet();
+        writeProfiles(out, fleet);
+        out.writeInt(fleet.size());
+        for (int i = 0; i < fleet.size(); i++) {
+            writeAgent(out, fleet, i);
+        }
+        writeTotals(out, fleet);
+        writeAgentStates(out);
+    }
+
+    private void writeDelta(DataOutputStream out) throws IOException {
+        out.writeInt(dirty.cardinality());
+        byte[] cells = environment.cellTypeArray();
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            out.writeInt(i);
+            out.writeByte(cells[i]);
+            writeElements(out, i);
+        }
+        writeLightOrder(out);
+
+        Fleet fleet = engine.getFleet();
+        writeProfiles(out, fleet);
+        int changed = 0;
+        for (int i = 0; i < fleet.size(); i++) {
+            if (agentChanged(fleet, i)) {
+                changed++;
+            }
+        }
+        out.writeInt(fleet.size());
+        out.writeInt(changed);
+        for (int i = 0; i < fleet.size(); i++) {
+            if (agentChanged(fleet, i)) {
+                out.writeInt(i);
+                writeAgent(out, fleet, i);
+            }
+        }
+        writeTotals(out, fleet);
+        writeAgentStates(out);
+    }
+
+    private void writeElements(DataOutputStream out, int cellIndex) throws IOException {
+        List<TrafficElement> elements = environment.getCell(cellIndex % environment.getWidth(),
+                cellIndex / environment.getWidth()).getTrafficElements();
+        out.writeInt(elements.size());
+        for (TrafficElement element : elements) {
+            if (element instanceof TrafficLight light) {
+                out.writeByte(LIGHT);
+                out.writeByte(light.getState().ordinal());
+                out.writeInt(light.getDuration(TrafficLightState.RED));
+                out.writeInt(light.getDuration(TrafficLightState.YELLOW));
+                out.writeInt(light.getDuration(TrafficLightState.GREEN));
+                out.writeInt(light.getOffset());
+                out.writeLong(engine.getLightScheduler().getNextChange(light));
+            } else if (element instanceof TrafficSign sign) {
+                out.writeByte(SIGN);
+                out.writeByte(sign.getType().ordinal());
+            }
+        }
+    }
+
+    private void writeLightOrder(DataOutputStream out) throws IOException {
+        List<TrafficLight> lights = environment.getTrafficLights();
+        out.writeInt(lights.size());
+        for (TrafficLight light : lights) {
+            out.writeInt(light.getY() * environment.getWidth() + light.getX());
+        }
+    }
+
+    private static void writeAgent(DataOutputStream out, Fleet fleet, int id) throws IOException {
+        out.writeInt(fleet.getX(id));
+        out.writeInt(fleet.getY(id));
+        out.writeByte(fleet.getHeading(id));
+        out.writeInt(fleet.getGoal(id));
+        out.writeByte(fleet.getProfileId(id));
+        out.writeFloat((float) fleet.getVelocity(id));
+        out.writeFloat(fleet.getProgress(id));
+    }
+
+    private static void writeProfiles(DataOutputStream out, Fleet fleet) throws IOException {
+        ProfileTable profiles = fleet.getProfiles();
+        out.writeShort(profiles.size());
+        for (int i = 0; i < profiles.size(); i++) {
+            KinematicProfile profile = profiles.get(i);
+            out.writeDouble(profile.maxSpeed());
+            out.writeDouble(profile.acceleration());
+            out.writeDouble(profile.vision());
+            out.writeDouble(profile.footprint());
+        }
+    }
+
+    private static void writeTotals(DataOutputStream out, Fleet fleet) throws IOException {
+        for (long total : fleet.copyTotals()) {
+            out.writeLong(total);
+        }
+    }
+
+    private void writeAgentStates(DataOutputStream out) throws IOException {
+        List<Agent> agents = engine.getAgents();
+        out.writeInt(agents.size());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Agent agent : agents) {
+            bytes.reset();
+            try (DataOutputStream state = new DataOutputStream(bytes)) {
+                agent.saveState(state);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private boolean agentChanged(Fleet fleet, int id) {
+        return id >= lastCount || fleet.getX(id) != lastX[id] || fleet.getY(id) != lastY[id]
+                || fleet.getHeading(id) != lastHeading[id] || fleet.getGoal(id) != lastGoal[id]
+                || fleet.getProfileId(id) != lastProfile[id] || (float) fleet.getVelocity(id) != lastVelocity[id]
+                || fleet.getProgress(id) != lastProgress[id];
+    }
+
+    private void rememberFleet() {
+        Fleet fleet = engine.getFleet();
+        lastCount = fleet.size();
+        if (lastX.length < lastCount) {
+            lastX = new int[lastCount];
+            lastY = new int[lastCount];
+            lastHeading = new byte[lastCount];
+            lastGoal = new int[lastCount];
+            lastProfile = new byte[lastCount];
+            lastVelocity = new float[lastCount];
+            lastProgress = new float[lastCount];
+        }
+        for (int i = 0; i < lastCount; i++) {
+            lastX[i] = fleet.getX(i);
+            lastY[i] = fleet.getY(i);
+            lastHeading[i] = fleet.getHeading(i);
+            lastGoal[i] = fleet.getGoal(i);
+            lastProfile[i] = fleet.getProfileId(i);
+            lastVelocity[i] = (float) fleet.getVelocity(i);
+            lastProgress[i] = fleet.getProgress(i);
+        }
+    }
+
+    /** Writer thread: compresses and appends one record, first dropping records of a rewound history. */
+    private void append(byte kind, long tick, byte[] raw, long truncateAfter) {
+        try {
+            synchronized (index) {
+                if (truncateAfter >= 0) {
+                    for (int i = 0; i < index.size(); i++) {
+                        if (index.get(i).tick() > truncateAfter) {
+                            channel.truncate(index.get(i).offset());
+                            index.subList(i, index.size()).clear();
+                            break;
+                        }
+                    }
+                }
+                byte[] compressed = deflate(raw);
+                long offset = channel.size();
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + compressed.length);
+                record.put(kind).putLong(tick).putInt(raw.length).putInt(compressed.length).put(compressed).flip();
+                long position = offset;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+                index.add(new Entry(tick, kind, offset));
+                bytesWritten += position - offset;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private List<Entry> entries() {
+        synchronized (index) {
+            return new ArrayList<>(index);
+        }
+    }
+
+    private void readRecord(Entry entry, State state) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(header, entry.offset());
+        header.flip();
+        header.get();
+        state.tick = header.getLong();
+        int rawLength = header.getInt();
+        ByteBuffer compressed = ByteBuffer.allocate(header.getInt());
+        readFully(compressed, entry.offset() + RECORD_HEADER_BYTES);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(compressed.array(), rawLength)))) {
+            if (entry.kind() == KEYFRAME) {
+                readKeyframe(in, state);
+            } else {
+                readDelta(in, state);
+            }
+        }
+    }
+
+    private void readKeyframe(DataInputStream in, State state) throws IOException {
+        state.cells = new byte[environment.getWidth() * environment.getHeight()];
+        in.readFully(state.cells);
+        state.elements.clear();
+        int occupied = in.readInt();
+        for (int i = 0; i < occupied; i++) {
+            state.elements.put(in.readInt(), readElements(in));
+        }
+        readLightOrder(in, state);
+        readProfiles(in, state);
+        state.count = in.readInt();
+        state.x = new int[state.count];
+        state.y = new int[state.count];
+        state.heading = new byte[state.count];
+        state.goal = new int[state.count];
+        state.profile = new byte[state.count];
+        state.velocity = new float[state.count];
+        state.progress = new float[state.count];
+        for (int i = 0; i < state.count; i++) {
+            readAgent(in, state, i);
+        }
+        readTotals(in, state);
+        readAgentStates(in, state);
+    }
+
+    private void readDelta(DataInputStream in, State state) throws IOException {
+        int cells = in.readInt();
+        for (int i = 0; i < cells; i++) {
+            int cellIndex = in.readInt();
+            state.cells[cellIndex] = in.readByte();
+            List<ElementState> elements = readElements(in);
+            if (elements.isEmpty()) {
+                state.elements.remove(cellIndex);
+            } else {
+                state.elements.put(cellIndex, elements);
+            }
+        }
+        readLightOrder(in, state);
+        readProfiles(in, state);
+        int count = in.readInt();
+        if (count > state.x.length) {
+            state.x = Arrays.copyOf(state.x, count);
+            state.y = Arrays.copyOf(state.y, count);
+            state.heading = Arrays.copyOf(state.heading, count);
+            state.goal = Arrays.copyOf(state.goal, count);
+            state.profile = Arrays.copyOf(state.profile, count);
+            state.velocity = Arrays.copyOf(state.velocity, count);
+            state.progress = Arrays.copyOf(state.progress, count);
+        }
+        state.count = count;
+        int changed = in.readInt();
+        for (int i = 0; i < changed; i++) {
+            readAgent(in, state, in.readInt());
+        }
+        readTotals(in, state);
+        readAgentStates(in, state);
+    }
+
+    private static List<ElementState> readElements(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<ElementState> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.readByte();
+            if (kind == LIGHT) {
+                elements.add(new ElementState(kind, in.readByte(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readInt(), in.readLong()));
+            } else {
+                elements.add(new ElementState(kind, in.readByte(), 0, 0, 0, 0, -1));
+            }
+        }
+        return elements;
+    }
+
+    private static void readLightOrder(DataInputStream in, State state) throws IOException {
+        state.lightOrder = new int[in.readInt()];
+        for (int i = 0; i < state.lightOrder.length; i++) {
+            state.lightOrder[i] = in.readInt();
+        }
+    }
+
+    private static void readAgent(DataInputStream in, State state, int id) throws IOException {
+        state.x[id] = in.readInt();
+        state.y[id] = in.readInt();
+        state.heading[id] = in.readByte();
+        state.goal[id] = in.readInt();
+        state.profile[id] = in.readByte();
+        state.velocity[id] = in.readFloat();
+        state.progress[id] = in.readFloat();
+    }
+
+    private static void readProfiles(DataInputStream in, State state) throws IOException {
+        state.profiles.clear();
+        int count = in.readShort();
+        for (int i = 0; i < count; i++) {
+            state.profiles.add(new KinematicProfile(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble()));
+        }
+    }
+
+    private static void readTotals(DataInputStream in, State state) throws IOException {
+        for (int i = 0; i < state.totals.length; i++) {
+            state.totals[i] = in.readLong();
+        }
+    }
+
+    private static void readAgentStates(DataInputStream in, State state) throws IOException {
+        state.agentStates.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            state.agentStates.add(bytes);
+        }
+    }
+
+    /** Puts the engine into the given state, only touching cells whose type differs. */
+    private void apply(State state) throws IOException {
+        List<Agent> agents = engine.getAgents();
+        if (agents.size() != state.agentStates.size()) {
+            throw new IllegalStateException("Checkpoint at tick " + state.tick + " was taken with "
+                    + state.agentStates.size() + " agents, the engine has " + agents.size());
+        }
+        byte[] cells = environment.cellTypeArray();
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != state.cells[i]) {
+                environment.setTypeAt(i, CELL_TYPES[state.cells[i]]);
+            }
+        }
+
+        List<Cell> occupied = new ArrayList<>();
+        environment.forEachOccupiedCell((x, y, cell) -> occupied.add(cell));
+        for (Cell cell : occupied) {
+            for (TrafficElement element : new ArrayList<>(cell.getTrafficElements())) {
+                cell.removeTrafficElement(element);
+            }
+        }
+        engine.getLightScheduler().rewind(state.tick);
+        // Lights go back in placement order: each one brings the elements placed before it in its cell
+        Map<Integer, Integer> restored = new HashMap<>(); // elements of each cell added so far
+        for (int cellIndex : state.lightOrder) {
+            List<ElementState> elements = state.elements.get(cellIndex);
+            int next = restored.getOrDefault(cellIndex, 0);
+            while (elements != null && next < elements.size()) {
+                ElementState element = elements.get(next++);
+                restoreElement(cellIndex, element);
+                if (element.kind() == LIGHT) {
+                    break;
+                }
+            }
+            restored.put(cellIndex, next);
+        }
+        for (Map.Entry<Integer, List<ElementState>> entry : state.elements.entrySet()) {
+            List<ElementState> elements = entry.getValue();
+            for (int next = restored.getOrDefault(entry.getKey(), 0); next < elements.size(); next++) {
+                restoreElement(entry.getKey(), elements.get(next));
+            }
+        }
+
+        engine.getFleet().restore(state.count, state.x, state.y, state.heading, state.goal, state.profile,
+                state.velocity, state.progress, state.profiles, state.totals);
+        for (int i = 0; i < agents.size(); i++) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state.agentStates.get(i)))) {
+                agents.get(i).restoreState(in);
+            }
+        }
+        engine.setTick(state.tick);
+        dirty.clear();
+        forceKeyframe = true;
+        branchTick = state.tick;
+    }
+
+    private void restoreElement(int cellIndex, ElementState element) {
+        int width = environment.getWidth();
+        Cell cell = environment.getCell(cellIndex % width, cellIndex / width);
+        if (element.kind() == LIGHT) {
+            TrafficLight light = new TrafficLight(LIGHT_STATES[element.state()]);
+            light.setDurations(element.red(), element.yellow(), element.green());
+            light.setOffset(element.offset());
+            cell.addTrafficElement(light);
+            engine.getLightScheduler().setNextChange(light, element.nextChange());
+        } else {
+            cell.addTrafficElement(new TrafficSign(SIGN_TYPES[element.state()]));
+        }
+    }
+
+    private void writeFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        header.putInt(MAGIC).putShort(VERSION).putLong(engine.getFleet().getSeed())
+                .putInt(environment.getWidth()).putInt(environment.getHeight()).flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    /** Rebuilds the index of an existing log, cutting off a record left half-written by a crash. */
+    private void readIndex(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+            throw new IOException("Not a checkpoint log: " + file);
+        }
+        long seed = header.getLong();
+        int width = header.getInt();
+        int height = header.getInt();
+        if (seed != engine.getFleet().getSeed() || width != environment.getWidth() || height != environment.getHeight()) {
+            throw new IllegalArgumentException("Checkpoint log " + file + " was written for a " + width + "x" + height
+                    + " map with seed " + seed + ".");
+        }
+
+        long size = channel.size();
+        long offset = FILE_HEADER_BYTES;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            record.clear();
+            readFully(record, offset);
+            record.flip();
+            byte kind = record.get();
+            long tick = record.getLong();
+            record.getInt();
+            long end = offset + RECORD_HEADER_BYTES + record.getInt();
+            if (end > size) {
+                break;
+            }
+            index.add(new Entry(tick, kind, offset));
+            offset = end;
+        }
+        if (offset < size) {
+            channel.truncate(offset);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of checkpoint log");
+            }
+            position += read;
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+            byte[] chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[rawLength];
+            int filled = 0;
+            while (filled < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, filled, rawLength - filled);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                filled += read;
+            }
+            if (filled != rawLength) {
+                throw new IOException("Corrupt checkpoint record");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt checkpoint record", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Records a run whose lights were placed out of cell order and edited halfway, then seeks back
+     * to several ticks and checks each matches the recorded state: agents, and the lights in
+     * getTrafficLights() order with their states. Exits with status 1 on the first mismatch.
+     * Usage: CheckpointLog [log file]
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = args.length > 0 ? Path.of(args[0]) : java.nio.file.Files.createTempFile("checkpoints", ".ckpt");
+        Environment environment = new Environment(60, 60);
+        environment.createCityGrid(12);
+        for (int y = 48; y >= 0; y -= 12) {
+            for (int x = 48; x >= 0; x -= 12) {
+                environment.addTrafficLight(x, y, (x + y) % 24 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+            }
+        }
+        SimulationEngine engine = new SimulationEngine(environment, 5);
+        engine.getFleet().spawnRandom(300);
+        Map<Long, String> recorded = new HashMap<>();
+        try (CheckpointLog log = new CheckpointLog(engine, file, 4)) {
+            engine.setCheckpointLog(log, 20);
+            for (int t = 0; t < 600; t++) {
+                if (t == 250) {
+                    engine.edit(map -> {
+                        Cell cell = map.getCell(24, 24);
+                        cell.removeTrafficElement(cell.getTrafficElements().get(0));
+                        map.addTrafficLight(24, 24, TrafficLightState.GREEN); // now the last light
+                        map.addTrafficLight(1, 30, TrafficLightState.RED);
+                    });
+                }
+                engine.step();
+                if (engine.getTick() % 50 == 0) {
+                    recorded.put(engine.getTick(), fingerprint(engine));
+                }
+            }
+            engine.setCheckpointLog(null, 0);
+            log.flush();
+            for (long tick : new long[]{100, 550, 200, 300, 50, 600}) {
+                log.seek(tick);
+                if (!fingerprint(engine).equals(recorded.get(tick))) {
+                    System.out.println("FAIL: state after seeking to tick " + tick + " differs from the recorded run");
+                    System.exit(1);
+                }
+            }
+        } finally {
+            if (args.length == 0) {
+                java.nio.file.Files.deleteIfExists(file);
+            }
+        }
+        System.out.println("OK: seeks reproduce agents, light order and light states");
+    }
+
+    private static String fingerprint(SimulationEngine engine) {
+        StringBuilder text = new StringBuilder().append(engine.getTick()).append(':');
+        for (TrafficLight light : engine.getEnvironment().getTrafficLights()) {
+            text.append(light.getX()).append(',').append(light.getY()).append(light.getState().name().charAt(0)).append(' ');
+        }
+        Fleet fleet = engine.getFleet();
+        for (int i = 0; i < fleet.size(); i++) {
+            text.append(fleet.getX(i)).append(',').append(fleet.getY(i)).append(',').append(fleet.getHeading(i)).append(';');
+        }
+        return text.toString();
+    }
+
+    private void throwIfFailed() {
+        IOException e = failure;
+        if (e != null) {
+            throw new UncheckedIOException("Writing checkpoint failed", e);
+        }
+    }
+}
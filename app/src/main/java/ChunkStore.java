@@ -0,0 +1,228 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cell types of a very large map, kept in 64x64 chunks instead of one flat array.
+ * <p>
+ * A chunk is only created when a cell in it is first set to something other than ROAD; reading a
+ * chunk that was never written returns ROAD without allocating anything. With a directory, at most
+ * maxResident chunks stay in memory: the least recently used one is written to its own file when
+ * another is needed, and read back on its next access. Memory therefore follows the area agents
+ * actually use rather than the size of the map.
+ * <p>
+ * The last chunk looked up is cached, so runs of accesses within one chunk (a car driving along
+ * a road, a row being drawn) skip the chunk search and, in memory-only stores, the map lookup.
+ * A bounded store still marks the cached chunk as used on every access, so eviction order
+ * always matches real use. Not thread-safe, like Environment itself.
+ */
+public class ChunkStore implements Closeable {
+
+    static final int SHIFT = 6;
+    static final int SIZE = 1 << SHIFT;
+    private static final int MASK = SIZE - 1;
+    private static final String SUFFIX = ".chunk";
+
+    private static final class Chunk {
+        final byte[] cells = new byte[SIZE * SIZE];
+        boolean dirty;
+    }
+
+    private final Path directory;
+    private final int maxResident;
+    private final LinkedHashMap<Long, Chunk> resident;
+    private final Set<Long> stored = new HashSet<>(); // chunks with a file in the directory
+    private long lastKey = Long.MIN_VALUE;
+    private Long lastBoxedKey; // lastKey as a map key, so touching it does not allocate
+    private Chunk last; // null with a valid lastKey means "never written, all ROAD"
+    private long loads;
+    private long evictions;
+
+    /** Keeps every chunk in memory; nothing is written to disk. */
+    public ChunkStore() {
+        this.directory = null;
+        this.maxResident = Integer.MAX_VALUE;
+        this.resident = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Keeps at most maxResident chunks in memory and evicts the rest to the directory.
+     * Chunk files already in the directory are picked up, so a world can be reopened.
+     */
+    public ChunkStore(Path directory, int maxResident) throws IOException {
+        if (maxResident < 1) {
+            throw new IllegalArgumentException("At least one chunk must fit in memory.");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxResident = maxResident;
+        this.resident = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chunk> eldest) {
+                if (size() <= ChunkStore.this.maxResident) {
+                    return false;
+                }
+                evict(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String[] name = file.getFileName().toString().replace(SUFFIX, "").split("_");
+                stored.add(key(Integer.parseInt(name[0]), Integer.parseInt(name[1])));
+            }
+        }
+    }
+
+    /** @return the CellType ordinal at (x,y); coordinates must be non-negative */
+    public byte get(int x, int y) {
+        long key = key(x >> SHIFT, y >> SHIFT);
+        Chunk chunk = key == lastKey ? touchLast() : lookup(key, false);
+        return chunk == null ? 0 : chunk.cells[offset(x, y)];
+    }
+
+    public void set(int x, int y, byte type) {
+        long key = key(x >> SHIFT, y >> SHIFT);
+        Chunk chunk = key == lastKey && last != null ? touchLast() : lookup(key, type != 0);
+        if (chunk != null) {
+            chunk.cells[offset(x, y)] = type;
+            chunk.dirty = true;
+        }
+    }
+
+    /** @return chunks currently held in memory */
+    public int getResidentChunks() {
+        return resident.size();
+    }
+
+    /** @return chunks that exist in memory or on disk */
+    public int getChunkCount() {
+        int count = stored.size();
+        for (Long key : resident.keySet()) {
+            if (!stored.contains(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getLoads() {
+        return loads;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** Writes every modified chunk to the directory, keeping it in memory. */
+    public void flush() {
+        if (directory == null) {
+            return;
+        }
+        for (Map.Entry<Long, Chunk> entry : resident.entrySet()) {
+            if (entry.getValue().dirty) {
+                write(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /** @return the cached chunk, marked as most recently used when chunks can be evicted */
+    private Chunk touchLast() {
+        if (directory != null && last != null) {
+            resident.get(lastBoxedKey);
+        }
+        return last;
+    }
+
+    private Chunk lookup(long key, boolean create) {
+        Long boxedKey = key;
+        Chunk chunk = resident.get(boxedKey);
+        if (chunk == null) {
+            if (stored.contains(key)) {
+                chunk = load(key);
+            } else if (create) {
+                chunk = new Chunk();
+            }
+            if (chunk != null) {
+                resident.put(boxedKey, chunk); // may evict the least recently used chunk
+            }
+        }
+        lastKey = key;
+        lastBoxedKey = boxedKey;
+        last = chunk;
+        return chunk;
+    }
+
+    private void evict(long key, Chunk chunk) {
+        if (chunk.dirty) {
+            write(key, chunk);
+        }
+        evictions++;
+        if (key == lastKey) {
+            lastKey = Long.MIN_VALUE;
+            lastBoxedKey = null;
+            last = null;
+        }
+    }
+
+    private void write(long key, Chunk chunk) {
+        Path file = file(key);
+        try {
+            if (isEmpty(chunk)) {
+                Files.deleteIfExists(file); // all ROAD again: no need to keep it
+                stored.remove(key);
+            } else {
+                Files.write(file, chunk.cells);
+                stored.add(key);
+            }
+            chunk.dirty = false;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write chunk " + file, e);
+        }
+    }
+
+    private Chunk load(long key) {
+        Path file = file(key);
+        try {
+            Chunk chunk = new Chunk();
+            byte[] cells = Files.readAllBytes(file);
+            System.arraycopy(cells, 0, chunk.cells, 0, chunk.cells.length);
+            loads++;
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read chunk " + file, e);
+        }
+    }
+
+    private static boolean isEmpty(Chunk chunk) {
+        for (byte cell : chunk.cells) {
+            if (cell != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path file(long key) {
+        return directory.resolve((int) (key >>> 32) + "_" + (int) key + SUFFIX);
+    }
+
+    private static long key(int chunkX, int chunkY) {
+        return ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+    }
+
+    private static int offset(int x, int y) {
+        return ((y & MASK) << SHIFT) | (x & MASK);
+    }
+}
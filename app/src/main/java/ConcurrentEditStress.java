@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress check for editing a map while the simulation runs.
+ * <p>
+ * The engine steps a fleet flat out on its own thread while editor threads submit edits through
+ * SimulationEngine.submit and reader threads keep walking the map the way renderers do (getCell, getCellFlags,
+ * forEachOccupiedCell, forEachElement). It reports the tick rate with and without the editors,
+ * how long submit takes and how long an edit waits to be applied, and then checks that the
+ * occupied-cell index, the flag bits, the light list and the fleet's occupancy all agree.
+ * Each edit toggles one of a fixed set of sites: a bare site gets a light, a sign or a wall, an
+ * occupied one is cleared, so the map stays about as busy as it started and the tick rates compare.
+ * Exits with status 1 if any thread threw or an invariant is broken.
+ * Usage: ConcurrentEditStress [size] [agents] [seconds] [editors] [readers] [edits/s per editor]
+ */
+public class ConcurrentEditStress {
+
+    private static final TrafficSignType[] SIGN_TYPES = TrafficSignType.values();
+    private static final int SITES = 2_000;
+
+    private final SimulationEngine engine;
+    private final Environment environment;
+    private final int size;
+    private final int[] sites; // cell indices the editors toggle
+    private final LatencyHistogram applyLatency = new LatencyHistogram(); // written on the engine thread
+    private final AtomicLong readerOps = new AtomicLong();
+    private final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopping;
+
+    ConcurrentEditStress(int size, int agents) {
+        this.size = size;
+        environment = new Environment(size, size);
+        environment.createCityGrid(12);
+        for (int y = 0; y < size; y += 12) {
+            for (int x = 0; x < size; x += 12) {
+                environment.addTrafficLight(x, y, (x + y) % 24 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+            }
+        }
+        engine = new SimulationEngine(environment, 1);
+        engine.getFleet().spawnRandom(agents);
+        sites = new Random(size).ints(SITES, 0, size * size).toArray();
+    }
+
+    /** Runs the engine alone for the given time. @return ticks per second */
+    double baseline(long nanos) throws InterruptedException {
+        long ticks = engine.getTick();
+        long start = System.nanoTime();
+        engine.start();
+        TimeUnit.NANOSECONDS.sleep(nanos);
+        engine.stop();
+        return (engine.getTick() - ticks) * 1e9 / (System.nanoTime() - start);
+    }
+
+    /** Runs the engine with editors and readers for the given time. @return ticks per second */
+    double stress(long nanos, int editors, int readers, double editRate, List<LatencyHistogram> submitLatency)
+            throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < editors; i++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            submitLatency.add(histogram);
+            long seed = 100 + i;
+            threads.add(new Thread(() -> guard(() -> edit(new Random(seed), editRate, histogram)), "editor-" + i));
+        }
+        for (int i = 0; i < readers; i++) {
+            long seed = 200 + i;
+            threads.add(new Thread(() -> guard(() -> read(new Random(seed))), "reader-" + i));
+        }
+        long ticks = engine.getTick();
+        long start = System.nanoTime();
+        engine.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        TimeUnit.NANOSECONDS.sleep(nanos);
+        stopping = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        engine.stop(); // also applies whatever was still queued
+        return (engine.getTick() - ticks) * 1e9 / (System.nanoTime() - start);
+    }
+
+    private void guard(Runnable body) {
+        try {
+            body.run();
+        } catch (Throwable t) {
+            failures.add(t);
+        }
+    }
+
+    private void edit(Random random, double editRate, LatencyHistogram submitLatency) {
+        long interval = (long) (1e9 / editRate);
+        while (!stopping) {
+            int site = sites[random.nextInt(sites.length)];
+            int x = site % size;
+            int y = site / size;
+            int kind = random.nextInt(10);
+            long submitted = System.nanoTime();
+            engine.submit(env -> {
+                Cell cell = env.getCell(x, y);
+                if (cell.hasTrafficElements()) {
+                    for (TrafficElement element : cell.getTrafficElements()) {
+                        cell.removeTrafficElement(element);
+                    }
+                } else if (env.isWall(x, y)) {
+                    env.setTypeAt(site, CellType.ROAD);
+                } else if (kind < 5) {
+                    env.addTrafficLight(x, y, kind % 2 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+                } else if (kind < 9) {
+                    env.addTrafficSign(x, y, SIGN_TYPES[kind % SIGN_TYPES.length]);
+                } else {
+                    env.addWall(x, y);
+                }
+            }).whenComplete((done, error) -> {
+                applyLatency.record(System.nanoTime() - submitted);
+                if (error != null) {
+                    failures.add(error);
+                }
+            });
+            submitLatency.record(System.nanoTime() - submitted);
+            LockSupport.parkNanos(interval);
+        }
+    }
+
+    private void read(Random random) {
+        int[] visited = new int[1];
+        Environment.CellVisitor counter = (x, y, cell) -> visited[0] += cell.getTrafficElements().size();
+        Environment.ElementVisitor elements = new Environment.ElementVisitor() {
+            @Override
+            public void visitLight(int x, int y, TrafficLight light) {
+                light.getState();
+            }
+        };
+        while (!stopping) {
+            for (int i = 0; i < 1_000; i++) {
+                int x = random.nextInt(size);
+                int y = random.nextInt(size);
+                environment.getCellFlags(x, y);
+                environment.forEachElement(x, y, elements);
+                environment.getCell(x, y).getDisplayChar();
+            }
+            environment.forEachOccupiedCellInRow(random.nextInt(size), counter);
+            if (random.nextInt(20) == 0) {
+                environment.forEachOccupiedCell(counter);
+            }
+            readerOps.addAndGet(1_001);
+        }
+    }
+
+    /** Checks the map's redundant structures against each other once the engine has stopped. @return problems found */
+    List<String> verify() {
+        List<String> problems = new ArrayList<>();
+        int[] lights = new int[1];
+        environment.forEachOccupiedCell((x, y, cell) -> {
+            List<TrafficElement> elements = cell.getTrafficElements();
+            if (elements.isEmpty()) {
+                problems.add("occupied cell without elements at " + x + "," + y);
+            }
+            if (environment.getCell(x, y) != cell) {
+                problems.add("index and occupied map disagree at " + x + "," + y);
+            }
+            for (TrafficElement element : elements) {
+                if (element instanceof TrafficLight light) {
+                    lights[0]++;
+                    if (light.getX() != x || light.getY() != y) {
+                        problems.add("light at " + x + "," + y + " thinks it is at " + light.getX() + "," + light.getY());
+                    }
+                }
+            }
+        });
+        if (lights[0] != environment.getTrafficLights().size()) {
+            problems.add(lights[0] + " lights on the map but " + environment.getTrafficLights().size() + " in the light list");
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int flags = environment.getCellFlags(x, y);
+                Cell cell = environment.getCell(x, y);
+                boolean light = false;
+                boolean sign = false;
+                for (TrafficElement element : cell.getTrafficElements()) {
+                    light |= element instanceof TrafficLight;
+                    sign |= element instanceof TrafficSign;
+                }
+                if (light != ((flags & Environment.FLAG_LIGHT) != 0) || sign != ((flags & Environment.FLAG_SIGN) != 0)) {
+                    problems.add("flags " + flags + " don't match the elements at " + x + "," + y);
+                }
+            }
+        }
+        Fleet fleet = engine.getFleet();
+        for (int id = 0; id < fleet.size(); id++) {
+            if (fleet.getOccupancy().occupantAt(fleet.getX(id), fleet.getY(id)) != id) {
+                problems.add("agent " + id + " is not in the occupancy grid");
+            }
+        }
+        return problems;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int agents = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        int editors = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int readers = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        double editRate = args.length > 5 ? Double.parseDouble(args[5]) : 2_000;
+
+        ConcurrentEditStress stress = new ConcurrentEditStress(size, agents);
+        long nanos = (long) (seconds * 1e9);
+        double baseline = stress.baseline(nanos / 2);
+        List<LatencyHistogram> submitLatency = new ArrayList<>();
+        double rate = stress.stress(nanos, editors, readers, editRate, submitLatency);
+
+        long submits = 0;
+        long submitP99 = 0;
+        long submitMax = 0;
+        for (LatencyHistogram histogram : submitLatency) {
+            submits += histogram.getCount();
+            submitP99 = Math.max(submitP99, histogram.getPercentile(0.99));
+            submitMax = Math.max(submitMax, histogram.getMax());
+        }
+        LatencyHistogram apply = stress.applyLatency;
+        System.out.printf("%dx%d map, %d agents, %d editors, %d readers%n", size, size, agents, editors, readers);
+        System.out.printf("ticks/s: %.0f alone, %.0f while editing%n", baseline, rate);
+        System.out.printf("edits: %d submitted, %d applied, submit p99 %.1f us max %.1f us%n",
+                submits, apply.getCount(), submitP99 / 1e3, submitMax / 1e3);
+        System.out.printf("submit to applied: p50 %.2f ms p99 %.2f ms max %.2f ms%n",
+                apply.getPercentile(0.5) / 1e6, apply.getPercentile(0.99) / 1e6, apply.getMax() / 1e6);
+        System.out.printf("reader ops: %d, occupied cells: %d, lights: %d%n",
+                stress.readerOps.get(), stress.environment.getOccupiedCellCount(), stress.environment.getTrafficLights().size());
+
+        List<String> problems = stress.verify();
+        for (Throwable failure : stress.failures) {
+            problems.add(failure.getClass().getSimpleName() + ": " + failure.getMessage());
+        }
+        if (submits != apply.getCount()) {
+            problems.add((submits - apply.getCount()) + " submitted edits were never applied");
+        }
+        for (String problem : problems.subList(0, Math.min(problems.size(), 20))) {
+            System.out.println("FAIL " + problem);
+        }
+        System.out.println(problems.isEmpty() ? "OK" : problems.size() + " problems");
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Counts of wall cells and of cells holding traffic elements per square block of the map, at
+ * block sizes of 8, 16, 32, ... cells up to one block for the whole map.
+ * <p>
+ * Zoomed-out views shade one screen block per map block from these counts, so drawing the whole
+ * map costs as much as drawing a few screenfuls of pixels however many cells it has. The counts
+ * are built once and then kept up to date from cellChanged notifications on the engine thread;
+ * each notification compares the cell with what was counted for it and adjusts one block per level.
+ * Readers on other threads may see a count an edit late.
+ */
+final class DensityPyramid implements EnvironmentListener {
+
+    static final int BASE_SHIFT = 3; // level 0 blocks are 8x8 cells
+    private static final byte COUNTED_WALL = 1;
+    private static final byte COUNTED_ELEMENT = 2;
+
+    private final Environment environment;
+    private final int width;
+    private final int height;
+    private final byte[] counted; // per cell: what the counts currently include
+    private final int[] columns; // blocks per row, per level
+    private final int[] rows;
+    private final int[][] walls; // [level][block], row-major
+    private final int[][] elements;
+    private volatile long version;
+
+    DensityPyramid(Environment environment) {
+        this.environment = environment;
+        this.width = environment.getWidth();
+        this.height = environment.getHeight();
+        this.counted = new byte[Math.multiplyExact(width, height)];
+        int levels = 1;
+        while ((width - 1) >> (BASE_SHIFT + levels - 1) > 0 || (height - 1) >> (BASE_SHIFT + levels - 1) > 0) {
+            levels++;
+        }
+        columns = new int[levels];
+        rows = new int[levels];
+        walls = new int[levels][];
+        elements = new int[levels][];
+        for (int level = 0; level < levels; level++) {
+            int shift = BASE_SHIFT + level;
+            columns[level] = ((width - 1) >> shift) + 1;
+            rows[level] = ((height - 1) >> shift) + 1;
+            walls[level] = new int[columns[level] * rows[level]];
+            elements[level] = new int[columns[level] * rows[level]];
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                cellChanged(x, y);
+            }
+        }
+        environment.addListener(this);
+    }
+
+    /** Stops listening to the environment. */
+    void dispose() {
+        environment.removeListener(this);
+    }
+
+    @Override
+    public void cellChanged(int x, int y) {
+        int flags = environment.getCellFlags(x, y);
+        byte now = (byte) (((flags & Environment.FLAG_BLOCKED) != 0 ? COUNTED_WALL : 0)
+                | ((flags & (Environment.FLAG_LIGHT | Environment.FLAG_SIGN)) != 0 ? COUNTED_ELEMENT : 0));
+        int index = y * width + x;
+        byte before = counted[index];
+        if (now == before) {
+            return; // light changes colour far more often than anything counted here
+        }
+        counted[index] = now;
+        int wallDelta = (now & COUNTED_WALL) - (before & COUNTED_WALL);
+        int elementDelta = ((now & COUNTED_ELEMENT) - (before & COUNTED_ELEMENT)) / COUNTED_ELEMENT;
+        for (int level = 0; level < columns.length; level++) {
+            int shift = BASE_SHIFT + level;
+            int block = (y >> shift) * columns[level] + (x >> shift);
+            walls[level][block] += wallDelta;
+            elements[level][block] += elementDelta;
+        }
+        version++;
+    }
+
+    int getLevelCount() {
+        return columns.length;
+    }
+
+    /** @return cells per block side at the given level */
+    int getBlockSize(int level) {
+        return 1 << (BASE_SHIFT + level);
+    }
+
+    int getColumns(int level) {
+        return columns[level];
+    }
+
+    int getRows(int level) {
+        return rows[level];
+    }
+
+    int getWalls(int level, int column, int row) {
+        return walls[level][row * columns[level] + column];
+    }
+
+    int getElements(int level, int column, int row) {
+        return elements[level][row * columns[level] + column];
+    }
+
+    /** @return the number of map cells in a block; blocks on the right and bottom edge may be cut off */
+    int getCells(int level, int column, int row) {
+        int size = getBlockSize(level);
+        return Math.min(size, width - column * size) * Math.min(size, height - row * size);
+    }
+
+    /** @return a number that changes whenever a count changes */
+    long getVersion() {
+        return version;
+    }
+}
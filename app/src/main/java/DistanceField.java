@@ -0,0 +1,282 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Shortest-path distance from every cell to one goal, shared by all robots heading there.
+ * Built with a reverse BFS and repaired in place when the map changes: a new obstacle only
+ * recomputes the cells whose routes went through it, a removed one only propagates the
+ * improvement outwards. Obtain instances from {@link PathPlanner#distanceField}.
+ */
+public class DistanceField {
+    
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+    
+    private static final int[] DX = PathPlanner.DX;
+    private static final int[] DY = PathPlanner.DY;
+    
+    private final PathPlanner planner;
+    private final int width;
+    private final int goal;
+    private final int[] distance;
+    private volatile boolean evicted;
+    
+    DistanceField(PathPlanner planner, int goal) {
+        this.planner = planner;
+        this.width = planner.getWidth();
+        this.goal = goal;
+        this.distance = new int[width * planner.getHeight()];
+        compute();
+    }
+    
+    public int getGoalX() {
+        return goal % width;
+    }
+    
+    public int getGoalY() {
+        return goal / width;
+    }
+    
+    /** @return number of moves from (x,y) to the goal, or UNREACHABLE */
+    public int distance(int x, int y) {
+        return distance[y * width + x];
+    }
+    
+    /**
+     * @return the direction (index into Fleet.DX/DY) of a move that gets one step closer to the
+     *         goal, or -1 if (x,y) is the goal or cannot reach it
+     */
+    public int nextDirection(int x, int y) {
+        int current = distance[y * width + x];
+        if (current == 0 || current == UNREACHABLE) {
+            return -1;
+        }
+        for (int dir = 0; dir < 4; dir++) {
+            if (planner.canMove(x, y, dir) && distance[(y + DY[dir]) * width + x + DX[dir]] == current - 1) {
+                return dir;
+            }
+        }
+        return -1;
+    }
+    
+    /** @return true once the planner dropped this field from its cache; it is then no longer kept up to date */
+    public boolean isEvicted() {
+        return evicted;
+    }
+    
+    void markEvicted() {
+        evicted = true;
+    }
+    
+    private void compute() {
+        Arrays.fill(distance, UNREACHABLE);
+        if (planner.isBlocked(goal)) {
+            return;
+        }
+        int[] queue = new int[distance.length];
+        int head = 0;
+        int tail = 0;
+        distance[goal] = 0;
+        queue[tail++] = goal;
+        while (head < tail) {
+            int cell = queue[head++];
+            int next = distance[cell] + 1;
+            int x = cell % width;
+            int y = cell / width;
+            for (int dir = 0; dir < 4; dir++) {
+                // predecessor p = cell - D[dir] reaches cell by moving in dir
+                int px = x - DX[dir];
+                int py = y - DY[dir];
+                if (isInside(px, py) && distance[py * width + px] == UNREACHABLE
+                        && !planner.isBlocked(py * width + px) && planner.canMove(px, py, dir)) {
+                    distance[py * width + px] = next;
+                    queue[tail++] = py * width + px;
+                }
+            }
+        }
+    }
+    
+    /** The cell became harder to enter (wall, NO_ENTRY or ONE_WAY added): distances can only grow. */
+    void tighten(int changed) {
+        if (changed == goal) {
+            compute();
+            return;
+        }
+        // 1. Collect cells that lost every shortest-route successor, starting from the changed cell
+        BitSet affected = new BitSet();
+        int[] work = new int[16];
+        int size = 0;
+        if (planner.isBlocked(changed) && distance[changed] != UNREACHABLE) {
+            affected.set(changed);
+        }
+        work[size++] = changed;
+        for (int i = 0; i < size; i++) {
+            int cell = work[i];
+            int x = cell % width;
+            int y = cell / width;
+            for (int dir = 0; dir < 4; dir++) {
+                int px = x - DX[dir];
+                int py = y - DY[dir];
+                if (!isInside(px, py)) {
+                    continue;
+                }
+                int p = py * width + px;
+                if (!affected.get(p) && distance[p] != UNREACHABLE && distance[p] == distance[cell] + 1
+                        && !hasSupport(px, py, affected)) {
+                    affected.set(p);
+                    if (size == work.length) {
+                        work = Arrays.copyOf(work, size * 2);
+                    }
+                    work[size++] = p;
+                }
+            }
+        }
+        if (affected.isEmpty()) {
+            return;
+        }
+        
+        // 2. Reset them and re-seed each from its best unaffected neighbour
+        for (int cell = affected.nextSetBit(0); cell >= 0; cell = affected.nextSetBit(cell + 1)) {
+            distance[cell] = UNREACHABLE;
+        }
+        PriorityQueue<Long> queue = new PriorityQueue<>();
+        for (int cell = affected.nextSetBit(0); cell >= 0; cell = affected.nextSetBit(cell + 1)) {
+            if (planner.isBlocked(cell)) {
+                continue;
+            }
+            int best = bestThroughNeighbours(cell % width, cell / width);
+            if (best != UNREACHABLE) {
+                distance[cell] = best;
+                queue.add(((long) best << 32) | cell);
+            }
+        }
+        
+        // 3. Dijkstra restricted to the affected region
+        propagate(queue, affected);
+    }
+    
+    /** The cell became easier to enter (wall or sign removed): distances can only shrink. */
+    void relax(int changed) {
+        if (planner.isBlocked(changed)) {
+            return;
+        }
+        if (changed == goal && distance[goal] != 0) {
+            compute(); // the goal was blocked, so no cell had a distance to build on
+            return;
+        }
+        if (changed != goal) {
+            int best = bestThroughNeighbours(changed % width, changed / width);
+            if (best < distance[changed]) {
+                distance[changed] = best;
+            }
+        }
+        if (distance[changed] == UNREACHABLE) {
+            return;
+        }
+        PriorityQueue<Long> queue = new PriorityQueue<>();
+        queue.add(((long) distance[changed] << 32) | changed);
+        propagate(queue, null);
+    }
+    
+    private void propagate(PriorityQueue<Long> queue, BitSet region) {
+        while (!queue.isEmpty()) {
+            long entry = queue.poll();
+            int dist = (int) (entry >>> 32);
+            int cell = (int) entry;
+            if (dist != distance[cell]) {
+                continue;
+            }
+            int x = cell % width;
+            int y = cell / width;
+            for (int dir = 0; dir < 4; dir++) {
+                int px = x - DX[dir];
+                int py = y - DY[dir];
+                if (!isInside(px, py)) {
+                    continue;
+                }
+                int p = py * width + px;
+                if ((region == null || region.get(p)) && dist + 1 < distance[p]
+                        && !planner.isBlocked(p) && planner.canMove(px, py, dir)) {
+                    distance[p] = dist + 1;
+                    queue.add(((long) (dist + 1) << 32) | p);
+                }
+            }
+        }
+    }
+    
+    private boolean hasSupport(int x, int y, BitSet affected) {
+        int want = distance[y * width + x] - 1;
+        for (int dir = 0; dir < 4; dir++) {
+            if (planner.canMove(x, y, dir)) {
+                int next = (y + DY[dir]) * width + x + DX[dir];
+                if (!affected.get(next) && distance[next] == want) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private int bestThroughNeighbours(int x, int y) {
+        int best = UNREACHABLE;
+        for (int dir = 0; dir < 4; dir++) {
+            if (planner.canMove(x, y, dir)) {
+                int next = distance[(y + DY[dir]) * width + x + DX[dir]];
+                if (next != UNREACHABLE && next + 1 < best) {
+                    best = next + 1;
+                }
+            }
+        }
+        return best;
+    }
+    
+    private boolean isInside(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < planner.getHeight();
+    }
+    
+    /**
+     * Checks repaired fields against freshly computed ones over random edits on small maps: walls,
+     * NO_ENTRY and ONE_WAY signs added and removed, including on the goal itself.
+     * Exits with status 1 on the first field that differs.
+     * Usage: DistanceField [maps] [edits per map]
+     */
+    public static void main(String[] args) {
+        int maps = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        SplittableRandom random = new SplittableRandom(3);
+        for (int m = 0; m < maps; m++) {
+            int w = 3 + random.nextInt(20);
+            int h = 3 + random.nextInt(20);
+            Environment environment = new Environment(w, h);
+            PathPlanner planner = new PathPlanner(environment);
+            int goalX = random.nextInt(w);
+            int goalY = random.nextInt(h);
+            DistanceField field = planner.distanceField(goalX, goalY);
+            for (int e = 0; e < edits; e++) {
+                // Every fourth edit toggles the goal, so it is walled and cleared again many times
+                int x = e % 4 == 0 ? goalX : random.nextInt(w);
+                int y = e % 4 == 0 ? goalY : random.nextInt(h);
+                if (environment.isWall(x, y)) {
+                    environment.getCell(x, y).setType(CellType.ROAD);
+                } else if (environment.getCell(x, y).hasTrafficElements()) {
+                    Cell cell = environment.getCell(x, y);
+                    cell.removeTrafficElement(cell.getTrafficElements().get(0));
+                } else {
+                    switch (random.nextInt(3)) {
+                        case 0 -> environment.addWall(x, y);
+                        case 1 -> environment.addTrafficSign(x, y, TrafficSignType.NO_ENTRY);
+                        default -> environment.addTrafficSign(x, y, TrafficSignType.ONE_WAY);
+                    }
+                }
+                DistanceField fresh = new DistanceField(planner, field.goal);
+                if (!Arrays.equals(field.distance, fresh.distance)) {
+                    System.out.println("FAIL map " + m + " (" + w + "x" + h + "), edit " + e + " at " + x + "," + y
+                            + ": repaired field differs from a fresh one");
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println("OK: " + maps + " maps, " + edits + " edits each");
+    }
+}
@@ -1,35 +1,125 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Grid world the cars drive on.
+ * Cell types are packed one byte per cell in row-major order; Cell objects only exist
+ * long-term for the few squares that hold traffic elements (the sparse occupied index).
+ * Every other Cell returned by getCell is a short-lived view onto the packed array.
+ * <p>
+ * A chunked environment keeps the cell types in a {@link ChunkStore} instead, so a map of up to
+ * Integer.MAX_VALUE cells per side only costs memory where something was built. The Fleet,
+ * PathPlanner and renderers still allocate per-cell arrays and need a map that fits in memory.
+ * <p>
+ * Edits must come from a single thread at a time, normally the engine thread through
+ * SimulationEngine.submit. On a flat map, reads (getCell, getCellFlags, the forEach visitors,
+ * getTrafficLights) are safe from any thread while that happens: they may see an edit a tick late
+ * but never a broken structure. A chunked map pages chunks in on reads, so read it on the engine
+ * thread as well.
+ */
 public class Environment {
+    private static final CellType[] CELL_TYPES = CellType.values();
+    private static final byte WALL = (byte) CellType.WALL.ordinal();
+    
+    /** {@link #getCellFlags} bit: a wall or outside the map. */
+    public static final int FLAG_BLOCKED = 1;
+    /** {@link #getCellFlags} bit: the cell holds a traffic light. */
+    public static final int FLAG_LIGHT = 2;
+    /** {@link #getCellFlags} bit: the cell holds a traffic light that is currently red. */
+    public static final int FLAG_RED_LIGHT = 4;
+    /** {@link #getCellFlags} bit: the cell holds a traffic sign. */
+    public static final int FLAG_SIGN = 8;
+    /** {@link #getCellFlags} bit: the cell holds a SPEED_LIMIT sign (set together with FLAG_SIGN). */
+    public static final int FLAG_SPEED_LIMIT = 16;
+    
     private final int width;
     private final int height;
-    private final Cell[][] grid;
+    private final byte[] cellTypes; // null when chunked
+    private final ChunkStore chunks;
+    private final ConcurrentSkipListMap<Long, Cell> occupiedCells = new ConcurrentSkipListMap<>(); // ordered, for iteration
+    private final CellIndex occupiedIndex = new CellIndex(); // same cells, for point lookups
+    private final BitSet lightCells; // flag bits by cell index, flat maps only, sized up front
+    private final BitSet redLightCells;
+    private final BitSet signCells;
+    private final BitSet speedLimitCells;
+    private final List<TrafficLight> trafficLights = new ArrayList<>(); // written under its own lock
+    private volatile List<TrafficLight> lightSnapshot = List.of(); // immutable copy for readers, null = stale
+    private volatile EnvironmentListener[] listeners = new EnvironmentListener[0]; // copy-on-write, iterated without allocating
+    private volatile long version; // written on the engine thread only
+    
+    /** Callback for {@link #forEachOccupiedCell}. */
+    public interface CellVisitor {
+        void visit(int x, int y, Cell cell);
+    }
+    
+    /** Callback for {@link #forEachElement}; implement only the element kinds of interest. */
+    public interface ElementVisitor {
+        default void visitLight(int x, int y, TrafficLight light) {
+        }
+        
+        default void visitSign(int x, int y, TrafficSign sign) {
+        }
+    }
     
     public Environment(int width, int height) {
+        this(width, height, new byte[Math.multiplyExact(width, height)]); // zero == ROAD
+    }
+    
+    /** Wraps an already packed grid (CellType ordinals, row-major), e.g. one read by MapFile. */
+    Environment(int width, int height, byte[] cellTypes) {
+        if (cellTypes.length != (long) width * height) {
+            throw new IllegalArgumentException("Grid has " + cellTypes.length + " cells, expected " + width + "x" + height);
+        }
         this.width = width;
         this.height = height;
-        this.grid = new Cell[height][width];
-        
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                grid[y][x] = new Cell(CellType.ROAD);
-            }
+        this.cellTypes = cellTypes;
+        this.chunks = null;
+        this.lightCells = new BitSet(cellTypes.length);
+        this.redLightCells = new BitSet(cellTypes.length);
+        this.signCells = new BitSet(cellTypes.length);
+        this.speedLimitCells = new BitSet(cellTypes.length);
+    }
+    
+    /** Creates a chunked environment whose cells are created on first use, see {@link ChunkStore}. */
+    public Environment(int width, int height, ChunkStore chunks) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + width + "x" + height);
         }
+        this.width = width;
+        this.height = height;
+        this.cellTypes = null;
+        this.chunks = chunks;
+        this.lightCells = new BitSet(0);
+        this.redLightCells = new BitSet(0);
+        this.signCells = new BitSet(0);
+        this.speedLimitCells = new BitSet(0);
     }
     
     public void addWall(int x, int y) {
-        if (isValidPosition(x, y)) {
-            grid[y][x].setType(CellType.WALL);
+        if (isValidPosition(x, y) && rawTypeAt(x, y) != WALL) {
+            if (cellTypes != null) {
+                cellTypes[y * width + x] = WALL;
+            } else {
+                chunks.set(x, y, WALL);
+            }
+            version++;
+            fireCellChanged(x, y);
         }
     }
     
     public void addTrafficSign(int x, int y, TrafficSignType signType) {
         if (isValidPosition(x, y)) {
-            grid[y][x].addTrafficElement(new TrafficSign(signType));
+            getCell(x, y).addTrafficElement(new TrafficSign(signType));
         }
     }
     
     public void addTrafficLight(int x, int y, TrafficLightState initialState) {
         if (isValidPosition(x, y)) {
-            grid[y][x].addTrafficElement(new TrafficLight(initialState));
+            getCell(x, y).addTrafficElement(new TrafficLight(initialState));
         }
     }
     
@@ -39,18 +129,294 @@ public class Environment {
     
     public Cell getCell(int x, int y) {
         if (isValidPosition(x, y)) {
-            return grid[y][x];
+            long index = index(x, y);
+            Cell cell = occupiedIndex.get(index);
+            return cell != null ? cell : new Cell(this, index);
+        }
+        return null;
+    }
+    
+    public CellType getCellType(int x, int y) {
+        if (isValidPosition(x, y)) {
+            return CELL_TYPES[rawTypeAt(x, y)];
         }
         return null;
     }
     
     public boolean isWall(int x, int y) {
         if (isValidPosition(x, y)) {
-            return grid[y][x].getType() == CellType.WALL;
+            return rawTypeAt(x, y) == WALL;
         }
         return false;
     }
     
+    /**
+     * @return FLAG_* bits for the cell; positions outside the map are FLAG_BLOCKED.
+     *         Allocation-free, and on a flat map a few bit reads with no lookup at all.
+     */
+    public int getCellFlags(int x, int y) {
+        if (!isValidPosition(x, y)) {
+            return FLAG_BLOCKED;
+        }
+        int flags = rawTypeAt(x, y) == WALL ? FLAG_BLOCKED : 0;
+        if (cellTypes != null) {
+            int index = y * width + x;
+            if (lightCells.get(index)) {
+                flags |= redLightCells.get(index) ? FLAG_LIGHT | FLAG_RED_LIGHT : FLAG_LIGHT;
+            }
+            if (signCells.get(index)) {
+                flags |= speedLimitCells.get(index) ? FLAG_SIGN | FLAG_SPEED_LIMIT : FLAG_SIGN;
+            }
+            return flags;
+        }
+        Cell cell = occupiedIndex.get(index(x, y));
+        return cell != null ? flags | elementFlags(cell) : flags;
+    }
+    
+    /** Calls the visitor for every element on (x,y) without allocating an iterator or a Cell view. */
+    public void forEachElement(int x, int y, ElementVisitor visitor) {
+        if (!isValidPosition(x, y)) {
+            return;
+        }
+        Cell cell = occupiedIndex.get(index(x, y));
+        if (cell == null) {
+            return;
+        }
+        List<TrafficElement> elements = cell.getTrafficElements();
+        for (int i = 0; i < elements.size(); i++) {
+            TrafficElement element = elements.get(i);
+            if (element instanceof TrafficLight light) {
+                visitor.visitLight(x, y, light);
+            } else if (element instanceof TrafficSign sign) {
+                visitor.visitSign(x, y, sign);
+            }
+        }
+    }
+    
+    /** Visits every cell holding at least one traffic element, in row-major order. */
+    public void forEachOccupiedCell(CellVisitor visitor) {
+        for (Map.Entry<Long, Cell> entry : occupiedCells.entrySet()) {
+            long index = entry.getKey();
+            visitor.visit((int) (index % width), (int) (index / width), entry.getValue());
+        }
+    }
+    
+    /** Visits the cells of one row that hold traffic elements, left to right. */
+    public void forEachOccupiedCellInRow(int y, CellVisitor visitor) {
+        long from = index(0, y);
+        for (Map.Entry<Long, Cell> entry : occupiedCells.subMap(from, from + width).entrySet()) {
+            visitor.visit((int) (entry.getKey() - from), y, entry.getValue());
+        }
+    }
+    
+    public boolean isChunked() {
+        return chunks != null;
+    }
+    
+    /** @return the chunk storage, or null for a flat environment */
+    public ChunkStore getChunkStore() {
+        return chunks;
+    }
+    
+    public int getOccupiedCellCount() {
+        return occupiedCells.size();
+    }
+    
+    /**
+     * @return a counter bumped by every change to the map layout (walls, placed or removed elements);
+     *         light colour changes do not count
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * @return every traffic light on the map, in the order they were placed, as an immutable
+     *         snapshot that is safe to read from any thread; it is copied again only after a change
+     */
+    public List<TrafficLight> getTrafficLights() {
+        List<TrafficLight> lights = lightSnapshot;
+        if (lights == null) {
+            synchronized (trafficLights) {
+                lights = lightSnapshot;
+                if (lights == null) {
+                    lights = List.copyOf(trafficLights);
+                    lightSnapshot = lights;
+                }
+            }
+        }
+        return lights;
+    }
+    
+    public void addListener(EnvironmentListener listener) {
+        synchronized (trafficLights) {
+            EnvironmentListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+            grown[listeners.length] = listener;
+            listeners = grown;
+        }
+    }
+    
+    public void removeListener(EnvironmentListener listener) {
+        synchronized (trafficLights) {
+            EnvironmentListener[] current = listeners;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    EnvironmentListener[] shrunk = Arrays.copyOf(current, current.length - 1);
+                    System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                    listeners = shrunk;
+                    return;
+                }
+            }
+        }
+    }
+    
+    private long index(int x, int y) {
+        return (long) y * width + x;
+    }
+    
+    private byte rawTypeAt(int x, int y) {
+        return cellTypes != null ? cellTypes[y * width + x] : chunks.get(x, y);
+    }
+    
+    /** Copies the cell type ordinals of row y into row, from either storage. */
+    void copyRow(int y, byte[] row) {
+        if (cellTypes != null) {
+            System.arraycopy(cellTypes, y * width, row, 0, width);
+            return;
+        }
+        for (int x = 0; x < width; x++) {
+            row[x] = chunks.get(x, y);
+        }
+    }
+    
+    /** The packed grid itself; callers must not modify it. Flat environments only. */
+    byte[] cellTypeArray() {
+        if (cellTypes == null) {
+            throw new UnsupportedOperationException("A chunked environment has no flat cell array.");
+        }
+        return cellTypes;
+    }
+    
+    CellType typeAt(long index) {
+        return CELL_TYPES[rawTypeAt((int) (index % width), (int) (index / width))];
+    }
+    
+    void setTypeAt(long index, CellType type) {
+        int x = (int) (index % width);
+        int y = (int) (index / width);
+        byte value = (byte) type.ordinal();
+        if (rawTypeAt(x, y) != value) {
+            if (cellTypes != null) {
+                cellTypes[(int) index] = value;
+            } else {
+                chunks.set(x, y, value);
+            }
+            version++;
+            fireCellChanged(x, y);
+        }
+    }
+    
+    /** Registers a view as the owner of its index; returns the existing owner if there is one. */
+    Cell occupy(long index, Cell cell) {
+        Cell existing = occupiedIndex.get(index);
+        if (existing != null) {
+            return existing;
+        }
+        occupiedCells.put(index, cell);
+        occupiedIndex.put(index, cell);
+        return cell;
+    }
+    
+    void release(long index, Cell cell) {
+        if (occupiedIndex.get(index) == cell) {
+            occupiedCells.remove(index);
+            occupiedIndex.remove(index);
+        }
+    }
+    
+    /** Called by a placed light whenever its colour changes. */
+    void lightChanged(int x, int y) {
+        updateFlags(index(x, y));
+        fireCellChanged(x, y);
+    }
+    
+    /** Called by a placed light whenever its durations or offset change; its cell is reported as changed too. */
+    void lightRetimed(TrafficLight light) {
+        for (EnvironmentListener listener : listeners) {
+            listener.trafficLightRetimed(light);
+        }
+        fireCellChanged(light.getX(), light.getY());
+    }
+    
+    private void updateFlags(long index) {
+        if (cellTypes == null) {
+            return; // chunked maps compute flags from the cell on demand
+        }
+        Cell cell = occupiedIndex.get(index);
+        int flags = cell != null ? elementFlags(cell) : 0;
+        int i = (int) index;
+        lightCells.set(i, (flags & FLAG_LIGHT) != 0);
+        redLightCells.set(i, (flags & FLAG_RED_LIGHT) != 0);
+        signCells.set(i, (flags & FLAG_SIGN) != 0);
+        speedLimitCells.set(i, (flags & FLAG_SPEED_LIMIT) != 0);
+    }
+    
+    private static int elementFlags(Cell cell) {
+        int flags = 0;
+        List<TrafficElement> elements = cell.getTrafficElements();
+        for (int i = 0; i < elements.size(); i++) {
+            if (elements.get(i) instanceof TrafficLight light) {
+                flags |= light.getState() == TrafficLightState.RED ? FLAG_LIGHT | FLAG_RED_LIGHT : FLAG_LIGHT;
+            } else if (elements.get(i) instanceof TrafficSign sign) {
+                flags |= sign.getType() == TrafficSignType.SPEED_LIMIT ? FLAG_SIGN | FLAG_SPEED_LIMIT : FLAG_SIGN;
+            }
+        }
+        return flags;
+    }
+    
+    void elementAdded(long index, TrafficElement element) {
+        version++;
+        int x = (int) (index % width);
+        int y = (int) (index / width);
+        if (element instanceof TrafficLight light) {
+            light.attach(this, x, y);
+            synchronized (trafficLights) {
+                trafficLights.add(light);
+                lightSnapshot = null;
+            }
+            for (EnvironmentListener listener : listeners) {
+                listener.trafficLightAdded(light);
+            }
+        }
+        updateFlags(index);
+        fireCellChanged(x, y);
+    }
+    
+    void elementRemoved(long index, TrafficElement element) {
+        version++;
+        if (element instanceof TrafficLight light && removeLight(light)) {
+            light.detach();
+            for (EnvironmentListener listener : listeners) {
+                listener.trafficLightRemoved(light);
+            }
+        }
+        updateFlags(index);
+        fireCellChanged((int) (index % width), (int) (index / width));
+    }
+    
+    private boolean removeLight(TrafficLight light) {
+        synchronized (trafficLights) {
+            lightSnapshot = null;
+            return trafficLights.remove(light);
+        }
+    }
+    
+    void fireCellChanged(int x, int y) {
+        for (EnvironmentListener listener : listeners) {
+            listener.cellChanged(x, y);
+        }
+    }
+    
     public void createSimpleRoadNetwork() {
         // something light, simple
         for (int x = 0; x < width; x++) {
@@ -76,6 +442,24 @@ public class Environment {
         }
     }
     
+    /**
+     * Fills the map with square blocks of buildings separated by two-cell-wide streets, with
+     * the streets running along row and column 0.
+     * @param blockSize distance between streets, including the street itself (at least 3)
+     */
+    public void createCityGrid(int blockSize) {
+        if (blockSize < 3) {
+            throw new IllegalArgumentException("Blocks must be at least 3 cells apart.");
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (x % blockSize >= 2 && y % blockSize >= 2) {
+                    addWall(x, y);
+                }
+            }
+        }
+    }
+    
     public int getWidth() {
         return width;
     }
@@ -84,43 +468,21 @@ public class Environment {
         return height;
     }
     
+    /** Prints the whole map, framed, with a single print call. */
     public void display() {
-        System.out.println("Environment (" + width + "x" + height + "):");
-        
-        System.out.print("+");
-        for (int x = 0; x < width; x++) {
-            System.out.print("-");
-        }
-        System.out.println("+");
-        
-        for (int y = 0; y < height; y++) {
-            System.out.print("|");
-            for (int x = 0; x < width; x++) {
-                System.out.print(grid[y][x].getDisplayChar());
-            }
-            System.out.println("|");
-        }
-        
-        System.out.print("+");
-        for (int x = 0; x < width; x++) {
-            System.out.print("-");
-        }
-        System.out.println("+");
+        TerminalRenderer renderer = new TerminalRenderer(this, null, width, height);
+        renderer.capture("");
+        System.out.print("Environment (" + width + "x" + height + "):\n" + renderer.toText());
     }
     
     public void printTrafficElementDetails() {
-        System.out.println("Traffic Elements in the Environment:");
-        
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Cell cell = grid[y][x];
-                if (cell.hasTrafficElements()) {
-                    System.out.println("Position (" + x + "," + y + "):");
-                    for (TrafficElement element : cell.getTrafficElements()) {
-                        System.out.println("  - " + element.getDescription());
-                    }
-                }
+        StringBuilder details = new StringBuilder("Traffic Elements in the Environment:\n");
+        forEachOccupiedCell((x, y, cell) -> {
+            details.append("Position (").append(x).append(',').append(y).append("):\n");
+            for (TrafficElement element : cell.getTrafficElements()) {
+                details.append("  - ").append(element.getDescription()).append('\n');
             }
-        }
+        });
+        System.out.print(details);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+/**
+ * Receives change notifications from an Environment.
+ * Callbacks run on whichever thread made the change, so keep them short.
+ */
+public interface EnvironmentListener {
+    default void trafficLightAdded(TrafficLight light) {
+    }
+    
+    default void trafficLightRemoved(TrafficLight light) {
+    }
+    
+    /** Called when a placed light's durations or offset change. */
+    default void trafficLightRetimed(TrafficLight light) {
+    }
+    
+    /** Called whenever anything visible about a cell changes: its type, its elements or a light state. */
+    default void cellChanged(int x, int y) {
+    }
+}
@@ -14,18 +14,8 @@ public class EnvironmentTest {
         
 
         // changing lights
-        for (int y = 0; y < env.getHeight(); y++) {
-            for (int x = 0; x < env.getWidth(); x++) {
-                Cell cell = env.getCell(x, y);
-                if (cell != null && cell.hasTrafficElements()) {
-                    for (TrafficElement element : cell.getTrafficElements()) {
-                        if (element instanceof TrafficLight trafficLight) {
-                            trafficLight.cycleState();
-                        }
-                    }
-                }
-            }
-        }
+        SimulationEngine engine = new SimulationEngine(env);
+        engine.step();
         
         System.out.println("\nAfter cycling traffic lights:");
         env.display();
@@ -0,0 +1,544 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Headless model of many autonomous robots sharing one Environment.
+ * Agents are plain indices into parallel primitive arrays rather than objects, and an
+ * OccupancyGrid keeps collision checks O(1), so a fleet of 100k agents steps in milliseconds.
+ * Each tick an agent with a goal takes one step down the goal's shared DistanceField; agents
+ * without one keep going in their heading and pick a new random heading when the way is
+ * blocked by a wall, a red light or another agent.
+ * <p>
+ * How far an agent gets per tick follows its {@link KinematicProfile}: agents keep a velocity,
+ * which grows by the profile's acceleration up to its top speed (or the SPEED_LIMIT on a signed
+ * cell) and drops to 0 whenever the agent is stopped, and the velocity accumulates as sub-cell
+ * progress. An agent steps into the next cell each time its progress reaches a whole cell, so
+ * at 0.5 cells per tick it moves every other tick and at 2 it moves twice. Profiles live in a
+ * shared {@link ProfileTable}; agents only store a byte id.
+ * <p>
+ * A tick runs in phases so it can be split across cores and still be reproducible:
+ * <ol>
+ *   <li>intent: every agent picks a target cell, reading only state from before the tick;</li>
+ *   <li>claim: each free target goes to the lowest agent id that wants it (an atomic min
+ *       kept in the OccupancyGrid cell itself);</li>
+ *   <li>commit: winners move. Their writes never overlap because a target was free at the start
+ *       of the tick, so it is nobody's source cell, and moving in overwrites the claim.</li>
+ * </ol>
+ * Random choices come from a hash of (seed, agent, tick) rather than a shared generator, so the
+ * outcome does not depend on how agents are split between threads: given a seed, parallel and
+ * sequential runs are bit-identical.
+ */
+public class Fleet implements Agent, EnvironmentListener {
+    
+    static final int[] DX = {0, 1, 0, -1};
+    static final int[] DY = {-1, 0, 1, 0};
+    private static final double TURN_PROBABILITY = 0.1;
+    private static final int CHUNK_SIZE = 4096;
+    
+    private final Environment environment;
+    private final int width;
+    private final OccupancyGrid occupancy;
+    private final BitSet redLights = new BitSet();
+    private final long seed;
+    private final SplittableRandom spawnRandom;
+    private ForkJoinPool pool;
+    
+    private int count;
+    private int[] x = new int[16];
+    private int[] y = new int[16];
+    private byte[] heading = new byte[16];
+    private int[] goal = new int[16]; // cell index, -1 = wandering
+    private DistanceField[] goalField = new DistanceField[16];
+    private int[] intent = new int[16]; // target cell this tick, -1 = stay
+    private byte[] profile = new byte[16]; // id in profiles
+    private float[] velocity = new float[16]; // cells per tick
+    private float[] progress = new float[16]; // cells travelled but not yet stepped
+    private int[] crossing = new int[16]; // cell outside the territory the agent waits to enter, -1 = none
+    private final ProfileTable profiles = new ProfileTable();
+    private int spawnProfile;
+    private int territoryMinY;
+    private int territoryMaxY = Integer.MAX_VALUE;
+    private PathPlanner planner;
+    
+    // Per-chunk counters, summed after each tick so totals don't depend on scheduling
+    private static final int MOVES = 0;
+    private static final int BLOCKED = 1;
+    private static final int COLLISIONS = 2;
+    private static final int ARRIVALS = 3;
+    private long[] chunkCounters = new long[0];
+    private final long[] totals = new long[4];
+    
+    // Phases are created once so a tick does not allocate lambdas
+    private long currentTick;
+    private int subSteps = 1;
+    private final Phase acceleratePhase = this::accelerate;
+    private final Phase planPhase = chunk -> planMoves(chunk, currentTick);
+    private final Phase commitPhase = this::commitMoves;
+    
+    public Fleet(Environment environment, long seed) {
+        this.environment = environment;
+        this.width = environment.getWidth();
+        this.occupancy = new OccupancyGrid(environment.getWidth(), environment.getHeight());
+        this.seed = seed;
+        this.spawnRandom = new SplittableRandom(seed);
+        for (TrafficLight light : environment.getTrafficLights()) {
+            cellChanged(light.getX(), light.getY());
+        }
+        environment.addListener(this);
+    }
+    
+    /**
+     * Places a new agent on (x,y) with the spawn profile.
+     * @return the agent id, or -1 if the cell is invalid, a wall or already occupied
+     */
+    public int spawn(int x, int y) {
+        return spawn(x, y, spawnProfile);
+    }
+    
+    /**
+     * Places a new agent on (x,y) with the given profile id.
+     * @return the agent id, or -1 if the cell is invalid, a wall or already occupied
+     */
+    public int spawn(int x, int y, int profileId) {
+        checkProfile(profileId);
+        if (!environment.isValidPosition(x, y) || environment.isWall(x, y) || occupancy.isOccupied(x, y)) {
+            return -1;
+        }
+        if (count == this.x.length) {
+            int capacity = count * 2;
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            heading = Arrays.copyOf(heading, capacity);
+            goal = Arrays.copyOf(goal, capacity);
+            goalField = Arrays.copyOf(goalField, capacity);
+            intent = Arrays.copyOf(intent, capacity);
+            profile = Arrays.copyOf(profile, capacity);
+            velocity = Arrays.copyOf(velocity, capacity);
+            progress = Arrays.copyOf(progress, capacity);
+            crossing = Arrays.copyOf(crossing, capacity);
+        }
+        int id = count++;
+        this.x[id] = x;
+        this.y[id] = y;
+        heading[id] = (byte) spawnRandom.nextInt(4);
+        goal[id] = -1;
+        profile[id] = (byte) profileId;
+        velocity[id] = 0;
+        progress[id] = 0;
+        crossing[id] = -1;
+        occupancy.occupy(x, y, id);
+        return id;
+    }
+    
+    /** Removes an agent; the agent with the highest id takes over its id. */
+    public void despawn(int id) {
+        occupancy.vacate(x[id], y[id]);
+        int last = --count;
+        if (id != last) {
+            x[id] = x[last];
+            y[id] = y[last];
+            heading[id] = heading[last];
+            goal[id] = goal[last];
+            goalField[id] = goalField[last];
+            profile[id] = profile[last];
+            velocity[id] = velocity[last];
+            progress[id] = progress[last];
+            crossing[id] = crossing[last];
+            occupancy.occupy(x[id], y[id], id);
+        }
+        goalField[last] = null;
+    }
+    
+    /**
+     * Limits the rows agents may move into to [minY, maxY), for a fleet that owns one tile of a
+     * larger map. An agent whose next step leads out of the territory does not take it: it waits
+     * in place, frozen, until {@link #resolveCrossing} says whether the neighbouring tile took it.
+     */
+    public void setTerritory(int minY, int maxY) {
+        territoryMinY = minY;
+        territoryMaxY = maxY;
+    }
+    
+    /** @return the cell index the agent is waiting to cross into, or -1 */
+    public int getCrossing(int id) {
+        return crossing[id];
+    }
+    
+    /** Ends an agent's wait at the territory edge: despawns it if the other side took it, frees it otherwise. */
+    public void resolveCrossing(int id, boolean accepted) {
+        if (accepted) {
+            despawn(id);
+        } else {
+            crossing[id] = -1;
+            stop(id);
+        }
+    }
+    
+    /**
+     * Spawns up to n agents on random free road cells of the territory.
+     * @return how many were actually placed
+     */
+    public int spawnRandom(int n) {
+        int placed = 0;
+        int attempts = 0;
+        int minY = Math.max(0, territoryMinY);
+        int maxY = Math.min(environment.getHeight(), territoryMaxY);
+        while (placed < n && attempts < n * 20) {
+            attempts++;
+            if (spawn(spawnRandom.nextInt(environment.getWidth()), minY + spawnRandom.nextInt(maxY - minY)) >= 0) {
+                placed++;
+            }
+        }
+        return placed;
+    }
+    
+    /** Sets the planner used to route agents that have a goal. */
+    public void setPlanner(PathPlanner planner) {
+        this.planner = planner;
+    }
+    
+    /** Sends an agent towards (x,y); it goes back to wandering once it arrives. */
+    public void setGoal(int id, int x, int y) {
+        if (planner == null) {
+            throw new IllegalStateException("No PathPlanner set on this fleet.");
+        }
+        goal[id] = y * width + x;
+        goalField[id] = null;
+    }
+    
+    /** @return the profiles agents of this fleet refer to; register new ones here */
+    public ProfileTable getProfiles() {
+        return profiles;
+    }
+    
+    /** Sets the profile id that {@link #spawn(int, int)} and spawnRandom give new agents (0 by default). */
+    public void setSpawnProfile(int profileId) {
+        checkProfile(profileId);
+        spawnProfile = profileId;
+    }
+    
+    /** Switches an agent to another profile; its current velocity is kept until the next tick caps it. */
+    public void setProfile(int id, int profileId) {
+        checkProfile(profileId);
+        profile[id] = (byte) profileId;
+    }
+    
+    public KinematicProfile getProfile(int id) {
+        return profiles.get(profile[id] & 0xFF);
+    }
+    
+    /** @return the agent's current speed in cells per tick */
+    public double getVelocity(int id) {
+        return velocity[id];
+    }
+    
+    private void checkProfile(int profileId) {
+        if (profileId < 0 || profileId >= profiles.size()) {
+            throw new IllegalArgumentException("No kinematic profile with id " + profileId);
+        }
+    }
+    
+    public boolean hasGoal(int id) {
+        return goal[id] >= 0;
+    }
+    
+    /**
+     * Runs the intent and commit phases on the given pool, or on the calling thread if null.
+     * Results are identical either way.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    @Override
+    public void step(Environment environment, long tick) {
+        resolveGoalFields();
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunkCounters.length < chunks * 4) {
+            chunkCounters = new long[chunks * 4];
+        }
+        
+        // Enough sub-steps for the fastest profile to move a whole cell in each
+        subSteps = Math.max(1, (int) Math.ceil(profiles.getFastest()));
+        runPhase(chunks, acceleratePhase);
+        for (int move = 0; move < subSteps; move++) {
+            currentTick = tick * subSteps + move; // distinct random bits for every sub-step
+            runPhase(chunks, planPhase);
+            runPhase(chunks, commitPhase);
+        }
+        
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int counter = 0; counter < totals.length; counter++) {
+                totals[counter] += chunkCounters[chunk * 4 + counter];
+                chunkCounters[chunk * 4 + counter] = 0;
+            }
+        }
+    }
+    
+    /** Looks up shared distance fields on the calling thread; the planner's cache isn't thread-safe. */
+    private void resolveGoalFields() {
+        for (int i = 0; i < count; i++) {
+            if (goal[i] >= 0 && (goalField[i] == null || goalField[i].isEvicted())) {
+                goalField[i] = planner.distanceField(goal[i] % width, goal[i] / width);
+            }
+        }
+    }
+    
+    private void accelerate(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(count, from + CHUNK_SIZE);
+        for (int i = from; i < to; i++) {
+            int p = profile[i] & 0xFF;
+            float limit = profiles.maxSpeed(p);
+            if ((environment.getCellFlags(x[i], y[i]) & Environment.FLAG_SPEED_LIMIT) != 0) {
+                limit = Math.min(limit, (float) KinematicProfile.SPEED_LIMIT);
+            }
+            velocity[i] = Math.min(velocity[i] + profiles.acceleration(p), limit);
+            // An agent that turned instead of moving must not save up more than a tick's worth of steps
+            progress[i] = Math.min(progress[i] + velocity[i], subSteps);
+        }
+    }
+    
+    private void planMoves(int chunk, long tick) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(count, from + CHUNK_SIZE);
+        int counters = chunk * 4;
+        for (int i = from; i < to; i++) {
+            intent[i] = -1;
+            if (crossing[i] >= 0 || progress[i] < 1) {
+                continue; // still within the current cell
+            }
+            int direction;
+            if (goal[i] >= 0) {
+                DistanceField field = goalField[i];
+                direction = field.nextDirection(x[i], y[i]);
+                if (direction < 0) {
+                    if (field.distance(x[i], y[i]) == 0) {
+                        chunkCounters[counters + ARRIVALS]++;
+                    }
+                    goal[i] = -1; // arrived, or the goal became unreachable
+                    goalField[i] = null;
+                    continue;
+                }
+                heading[i] = (byte) direction;
+            } else {
+                long bits = random(i, tick);
+                if ((bits >>> 11) * 0x1.0p-53 < TURN_PROBABILITY) {
+                    heading[i] = (byte) (bits & 3);
+                    continue;
+                }
+                direction = heading[i];
+            }
+            
+            int nx = x[i] + DX[direction];
+            int ny = y[i] + DY[direction];
+            if (!environment.isValidPosition(nx, ny) || environment.isWall(nx, ny)
+                    || redLights.get(ny * width + nx)) {
+                chunkCounters[counters + BLOCKED]++;
+                stop(i);
+                if (goal[i] < 0) {
+                    heading[i] = (byte) ((random(i, tick) >>> 2) & 3);
+                }
+                continue;
+            }
+            if (occupancy.isOccupied(nx, ny)) {
+                chunkCounters[counters + COLLISIONS]++;
+                stop(i);
+                if (goal[i] < 0) {
+                    heading[i] = (byte) ((random(i, tick) >>> 2) & 3);
+                }
+                continue;
+            }
+            int target = ny * width + nx;
+            if (ny < territoryMinY || ny >= territoryMaxY) {
+                crossing[i] = target; // another tile's cell: wait for it to accept the agent
+                continue;
+            }
+            intent[i] = target;
+            occupancy.claim(target, i);
+        }
+    }
+    
+    private void commitMoves(int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = Math.min(count, from + CHUNK_SIZE);
+        int counters = chunk * 4;
+        for (int i = from; i < to; i++) {
+            int target = intent[i];
+            if (target < 0) {
+                continue;
+            }
+            if (!occupancy.holdsClaim(target, i)) {
+                chunkCounters[counters + COLLISIONS]++;
+                stop(i);
+                continue;
+            }
+            occupancy.vacate(x[i], y[i]);
+            x[i] = target % width;
+            y[i] = target / width;
+            occupancy.occupy(x[i], y[i], i);
+            progress[i] -= 1;
+            chunkCounters[counters + MOVES]++;
+        }
+    }
+    
+    private void stop(int i) {
+        velocity[i] = 0;
+        progress[i] = 0;
+    }
+    
+    private interface Phase {
+        void run(int chunk);
+    }
+    
+    private void runPhase(int chunks, Phase phase) {
+        if (pool == null || chunks <= 1) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                phase.run(chunk);
+            }
+        } else {
+            pool.invoke(new PhaseTask(phase, 0, chunks));
+        }
+    }
+    
+    private static final class PhaseTask extends RecursiveAction {
+        private final Phase phase;
+        private final int from;
+        private final int to;
+        
+        PhaseTask(Phase phase, int from, int to) {
+            this.phase = phase;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                phase.run(from);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PhaseTask(phase, from, mid), new PhaseTask(phase, mid, to));
+            }
+        }
+    }
+    
+    /** SplitMix64 finalizer over (seed, agent, tick): the same agent gets the same bits on every run. */
+    private long random(int agent, long tick) {
+        long z = seed + agent * 0x9E3779B97F4A7C15L + tick * 0xC2B2AE3D27D4EB4FL;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    @Override
+    public void cellChanged(int x, int y) {
+        redLights.set(y * width + x, (environment.getCellFlags(x, y) & Environment.FLAG_RED_LIGHT) != 0);
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    public int getX(int id) {
+        return x[id];
+    }
+    
+    public int getY(int id) {
+        return y[id];
+    }
+    
+    public OccupancyGrid getOccupancy() {
+        return occupancy;
+    }
+    
+    long getSeed() {
+        return seed;
+    }
+    
+    void setHeading(int id, byte direction) {
+        heading[id] = direction;
+    }
+    
+    byte getHeading(int id) {
+        return heading[id];
+    }
+    
+    /** @return the goal cell index, or -1 if the agent is wandering */
+    int getGoal(int id) {
+        return goal[id];
+    }
+    
+    byte getProfileId(int id) {
+        return profile[id];
+    }
+    
+    float getProgress(int id) {
+        return progress[id];
+    }
+    
+    /** Restores an agent's speed and sub-cell progress, e.g. after it crossed in from another tile. */
+    void setMotion(int id, float velocity, float progress) {
+        this.velocity[id] = velocity;
+        this.progress[id] = progress;
+    }
+    
+    long[] copyTotals() {
+        return totals.clone();
+    }
+    
+    /** Replaces every agent with the given state, e.g. when restoring a checkpoint. */
+    void restore(int count, int[] x, int[] y, byte[] heading, int[] goal, byte[] profile, float[] velocity,
+            float[] progress, List<KinematicProfile> profiles, long[] totals) {
+        occupancy.clear();
+        this.profiles.restore(profiles);
+        if (spawnProfile >= profiles.size()) {
+            spawnProfile = 0;
+        }
+        int capacity = Math.max(16, count);
+        this.x = Arrays.copyOf(x, capacity);
+        this.y = Arrays.copyOf(y, capacity);
+        this.heading = Arrays.copyOf(heading, capacity);
+        this.goal = Arrays.copyOf(goal, capacity);
+        this.profile = Arrays.copyOf(profile, capacity);
+        this.velocity = Arrays.copyOf(velocity, capacity);
+        this.progress = Arrays.copyOf(progress, capacity);
+        this.crossing = new int[capacity];
+        Arrays.fill(this.crossing, -1);
+        this.goalField = new DistanceField[capacity];
+        this.intent = new int[capacity];
+        this.count = count;
+        for (int i = 0; i < count; i++) {
+            occupancy.occupy(this.x[i], this.y[i], i);
+        }
+        System.arraycopy(totals, 0, this.totals, 0, this.totals.length);
+    }
+    
+    /** @return [xs, ys] copies of every agent position, indexed by agent id */
+    public int[][] copyPositions() {
+        return new int[][]{Arrays.copyOf(x, count), Arrays.copyOf(y, count)};
+    }
+    
+    public long getMoves() {
+        return totals[MOVES];
+    }
+    
+    /** @return how many agents reached their goal */
+    public long getArrivals() {
+        return totals[ARRIVALS];
+    }
+    
+    /** @return moves refused because of a wall, the map edge or a red light */
+    public long getBlockedMoves() {
+        return totals[BLOCKED];
+    }
+    
+    /** @return moves refused because another agent was in the way */
+    public long getCollisions() {
+        return totals[COLLISIONS];
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Draws fleet agents from a snapshot onto a transparent overlay canvas, through a {@link Viewport}.
+ * One fill call per visible agent instead of one Pane + Circle node per robot. Zoomed out to
+ * less than DOT_SCALE pixels per cell, agents are binned into square screen blocks instead and
+ * drawn as one density image, more opaque where more agents share a block.
+ */
+public class FleetRenderer {
+
+    private static final double DOT_FRACTION = 0.6;
+    private static final double DOT_SCALE = 2;
+    private static final int HEAT_BLOCK_PIXELS = 3;
+    private static final int AGENTS_FOR_FULL_HEAT = 8;
+    private static final int HEAT_RGB = 0xFFA500; // orange, as the dots
+
+    private final Canvas canvas;
+    private final Viewport viewport;
+    private WritableImage heat;
+    private int[] heatCounts = new int[0];
+
+    public FleetRenderer(Canvas canvas, Viewport viewport) {
+        this.canvas = canvas;
+        this.viewport = viewport;
+    }
+
+    public void render(SimulationSnapshot snapshot) {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (viewport.getScale() < DOT_SCALE) {
+            renderDensity(gc, snapshot);
+            return;
+        }
+        gc.setFill(Color.ORANGE);
+
+        double scale = viewport.getScale();
+        double size = Math.max(1, scale * DOT_FRACTION);
+        double inset = (scale - size) / 2;
+        int firstColumn = viewport.getFirstColumn();
+        int endColumn = viewport.getEndColumn();
+        int firstRow = viewport.getFirstRow();
+        int endRow = viewport.getEndRow();
+        int[] xs = snapshot.agentX();
+        int[] ys = snapshot.agentY();
+        for (int i = 0; i < xs.length; i++) {
+            if (xs[i] < firstColumn || xs[i] >= endColumn || ys[i] < firstRow || ys[i] >= endRow) {
+                continue;
+            }
+            double px = viewport.toScreenX(xs[i]) + inset;
+            double py = viewport.toScreenY(ys[i]) + inset;
+            if (size < 4) {
+                gc.fillRect(px, py, size, size);
+            } else {
+                gc.fillOval(px, py, size, size);
+            }
+        }
+    }
+
+    private void renderDensity(GraphicsContext gc, SimulationSnapshot snapshot) {
+        int columns = (int) Math.ceil(canvas.getWidth() / HEAT_BLOCK_PIXELS);
+        int rows = (int) Math.ceil(canvas.getHeight() / HEAT_BLOCK_PIXELS);
+        if (columns <= 0 || rows <= 0) {
+            return;
+        }
+        if (heat == null || heat.getWidth() != columns || heat.getHeight() != rows) {
+            heat = new WritableImage(columns, rows);
+            heatCounts = new int[columns * rows];
+        }
+        Arrays.fill(heatCounts, 0);
+        int[] xs = snapshot.agentX();
+        int[] ys = snapshot.agentY();
+        for (int i = 0; i < xs.length; i++) {
+            int column = (int) Math.floor(viewport.toScreenX(xs[i] + 0.5) / HEAT_BLOCK_PIXELS);
+            int row = (int) Math.floor(viewport.toScreenY(ys[i] + 0.5) / HEAT_BLOCK_PIXELS);
+            if (column >= 0 && column < columns && row >= 0 && row < rows) {
+                heatCounts[row * columns + column]++;
+            }
+        }
+        // Counts become pixels in place: alpha grows with the count, colour is fixed
+        for (int i = 0; i < heatCounts.length; i++) {
+            int count = heatCounts[i];
+            heatCounts[i] = count == 0 ? 0 : Math.min(255, 96 + count * (255 - 96) / AGENTS_FOR_FULL_HEAT) << 24 | HEAT_RGB;
+        }
+        heat.getPixelWriter().setPixels(0, 0, columns, rows, PixelFormat.getIntArgbInstance(), heatCounts, 0, columns);
+        gc.setImageSmoothing(false);
+        gc.drawImage(heat, 0, 0, columns * HEAT_BLOCK_PIXELS, rows * HEAT_BLOCK_PIXELS);
+        gc.setImageSmoothing(true);
+    }
+}
@@ -0,0 +1,407 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Macroscopic traffic on the same grid: a multi-destination Cell Transmission Model (the
+ * discrete form of the LWR kinematic wave model) instead of individual robots.
+ * <p>
+ * Every road cell is a road segment holding a vehicle density per destination. Each tick a
+ * segment sends min(speed * density, capacity) vehicles one cell towards their destination (the
+ * next step of the destination's shared DistanceField), and a segment receives at most
+ * min(capacity, waveSpeed * (jamDensity - density)); when several segments feed the same cell,
+ * its free space is shared in proportion to their demand. Traffic elements gate the flow:
+ * a red light sends nothing, STOP and YIELD cut the outflow capacity, SPEED_LIMIT halves the free
+ * speed, and NO_ENTRY/ONE_WAY cells are handled by the planner's routing rules.
+ * <p>
+ * The cost is a few array operations per road cell and destination, independent of the number
+ * of vehicles, so city-wide studies with millions of vehicles run far faster than the agent
+ * model. {@link #spawnAgents} hands the vehicles of one region over to a Fleet for a closer look.
+ * Add the model to a SimulationEngine with addAgent to step it with the lights. Walls and signs
+ * may change while it runs; vehicles on a cell that becomes a wall move to the nearest road cell.
+ */
+public class FlowModel implements Agent, EnvironmentListener {
+
+    /**
+     * @param jamDensity vehicles a segment holds when jammed
+     * @param capacity most vehicles that can leave or enter a segment per tick
+     * @param freeSpeed segments per tick at low density (at most 1)
+     * @param waveSpeed backward congestion wave speed in segments per tick (at most 1)
+     */
+    public record Parameters(double jamDensity, double capacity, double freeSpeed, double waveSpeed) {
+
+        public Parameters {
+            if (jamDensity <= 0 || capacity <= 0 || freeSpeed <= 0 || freeSpeed > 1 || waveSpeed <= 0 || waveSpeed > 1) {
+                throw new IllegalArgumentException("Invalid flow parameters: speeds must be in (0,1], the rest positive.");
+            }
+        }
+
+        /** A two-lane city street: 10 vehicles per jammed segment, 2 vehicles per tick. */
+        public static Parameters defaults() {
+            return new Parameters(10, 2, 1, 0.5);
+        }
+    }
+
+    static final double STOP_FACTOR = 0.25;
+    static final double YIELD_FACTOR = 0.5;
+    static final double SPEED_LIMIT_FACTOR = 0.5;
+
+    private final Environment environment;
+    private final PathPlanner planner;
+    private final Parameters parameters;
+    private final int width;
+    private final int cells;
+
+    private int[] roads = new int[0]; // indices of every non-wall cell
+    private final double[] capacityFactor;
+    private final double[] speedFactor;
+    private final byte[] layoutFlags; // FLAG_BLOCKED and FLAG_SIGN of each cell as of the last rebuild
+    private boolean layoutDirty = true;
+
+    private final List<Destination> destinations = new ArrayList<>();
+    private final List<Source> sources = new ArrayList<>();
+    private final double[] total; // density summed over destinations
+    private final double[] incoming; // demand towards each cell this tick
+    private final double[] throughput; // vehicles that left each cell so far
+    private double exited;
+
+    private static final class Destination {
+        final int goal;
+        final double[] density;
+        final double[] outflow; // demand leaving each cell this tick
+        final int[] target; // where that demand goes, -1 = leaves the map at the goal
+        DistanceField field;
+
+        Destination(int goal, int cells) {
+            this.goal = goal;
+            this.density = new double[cells];
+            this.outflow = new double[cells];
+            this.target = new int[cells];
+        }
+    }
+
+    private static final class Source {
+        final int cell;
+        final int destination;
+        final double rate;
+        double queue; // vehicles waiting to enter because the segment was full
+
+        Source(int cell, int destination, double rate) {
+            this.cell = cell;
+            this.destination = destination;
+            this.rate = rate;
+        }
+    }
+
+    public FlowModel(Environment environment, PathPlanner planner, Parameters parameters) {
+        this.environment = environment;
+        this.planner = planner;
+        this.parameters = parameters;
+        this.width = environment.getWidth();
+        this.cells = Math.multiplyExact(width, environment.getHeight());
+        this.capacityFactor = new double[cells];
+        this.speedFactor = new double[cells];
+        this.layoutFlags = new byte[cells];
+        this.total = new double[cells];
+        this.incoming = new double[cells];
+        this.throughput = new double[cells];
+        environment.addListener(this);
+    }
+
+    /** @return id of a destination vehicles can be routed to */
+    public int addDestination(int x, int y) {
+        if (!environment.isValidPosition(x, y) || environment.isWall(x, y)) {
+            throw new IllegalArgumentException("Destination must be a road cell: (" + x + "," + y + ")");
+        }
+        destinations.add(new Destination(y * width + x, cells));
+        return destinations.size() - 1;
+    }
+
+    /** Injects vehicles bound for the destination at (x,y) every tick, queueing them while the segment is full. */
+    public void addSource(int x, int y, int destination, double vehiclesPerTick) {
+        checkRoad(x, y);
+        sources.add(new Source(y * width + x, destination, vehiclesPerTick));
+    }
+
+    /** Places vehicles on (x,y) at once, above the jam density if need be (they clear over time). */
+    public void addVehicles(int x, int y, int destination, double vehicles) {
+        checkRoad(x, y);
+        int cell = y * width + x;
+        destinations.get(destination).density[cell] += vehicles;
+        total[cell] += vehicles;
+    }
+
+    @Override
+    public void step(Environment environment, long tick) {
+        if (layoutDirty) {
+            rebuildLayout();
+        }
+        double jam = parameters.jamDensity();
+        double capacity = parameters.capacity();
+        double freeSpeed = parameters.freeSpeed();
+        double waveSpeed = parameters.waveSpeed();
+
+        // Demand: how much of each destination wants to leave each segment, and to where
+        for (Destination destination : destinations) {
+            if (destination.field == null || destination.field.isEvicted()) {
+                destination.field = planner.distanceField(destination.goal % width, destination.goal / width);
+            }
+        }
+        for (int road : roads) {
+            double density = total[road];
+            if (density <= 0) {
+                continue;
+            }
+            int x = road % width;
+            int y = road / width;
+            double send = 0;
+            if ((environment.getCellFlags(x, y) & Environment.FLAG_RED_LIGHT) == 0) {
+                send = Math.min(freeSpeed * speedFactor[road] * density, capacity * capacityFactor[road]);
+            }
+            for (Destination destination : destinations) {
+                double share = destination.density[road];
+                if (share <= 0 || send <= 0) {
+                    continue;
+                }
+                double demand = send * share / density;
+                if (road == destination.goal) {
+                    destination.target[road] = -1;
+                } else {
+                    int direction = destination.field.nextDirection(x, y);
+                    if (direction < 0) {
+                        continue; // cut off from the destination: wait
+                    }
+                    int next = road + Fleet.DY[direction] * width + Fleet.DX[direction];
+                    destination.target[road] = next;
+                    incoming[next] += demand;
+                }
+                destination.outflow[road] = demand;
+            }
+        }
+
+        // Supply: scale each segment's inflow down to its free space, then move the vehicles
+        for (Destination destination : destinations) {
+            for (int road : roads) {
+                double demand = destination.outflow[road];
+                if (demand <= 0) {
+                    continue;
+                }
+                destination.outflow[road] = 0;
+                int next = destination.target[road];
+                double flow = demand;
+                if (next >= 0) {
+                    double supply = Math.min(capacity, waveSpeed * Math.max(0, jam - total[next]));
+                    if (incoming[next] > supply) {
+                        flow = demand * supply / incoming[next];
+                    }
+                }
+                destination.density[road] -= flow;
+                throughput[road] += flow;
+                if (next >= 0) {
+                    destination.density[next] += flow;
+                } else {
+                    exited += flow;
+                }
+            }
+        }
+        Arrays.fill(incoming, 0);
+        recomputeTotals();
+
+        for (Source source : sources) {
+            source.queue += source.rate;
+            double space = Math.min(capacity, waveSpeed * Math.max(0, jam - total[source.cell]));
+            double entering = Math.min(source.queue, space);
+            source.queue -= entering;
+            destinations.get(source.destination).density[source.cell] += entering;
+            total[source.cell] += entering;
+        }
+    }
+
+    /**
+     * Turns the vehicles in the rectangle into Fleet agents heading for the same destinations.
+     * A fleet holds at most one agent per cell, so each road cell with at least half a vehicle
+     * spawns one agent for its largest destination and gives up one vehicle; any density beyond
+     * that stays in the flow model.
+     * @return how many agents were spawned
+     */
+    public int spawnAgents(Fleet fleet, int x0, int y0, int x1, int y1) {
+        int spawned = 0;
+        for (int y = Math.max(0, y0); y <= Math.min(environment.getHeight() - 1, y1); y++) {
+            for (int x = Math.max(0, x0); x <= Math.min(width - 1, x1); x++) {
+                int cell = y * width + x;
+                if (total[cell] < 0.5) {
+                    continue;
+                }
+                Destination largest = null;
+                for (Destination destination : destinations) {
+                    if (largest == null || destination.density[cell] > largest.density[cell]) {
+                        largest = destination;
+                    }
+                }
+                int id = fleet.spawn(x, y);
+                if (id < 0) {
+                    continue;
+                }
+                fleet.setGoal(id, largest.goal % width, largest.goal / width);
+                double taken = Math.min(1, largest.density[cell]);
+                largest.density[cell] -= taken;
+                total[cell] -= taken;
+                spawned++;
+            }
+        }
+        return spawned;
+    }
+
+    /** @return vehicles on the segment (x,y), all destinations together */
+    public double getDensity(int x, int y) {
+        return total[y * width + x];
+    }
+
+    /** @return vehicles that have left the segment (x,y) since the model was created */
+    public double getThroughput(int x, int y) {
+        return throughput[y * width + x];
+    }
+
+    /** Copies the density of every cell (row-major) into the array, e.g. for a heat map. */
+    public void copyDensities(double[] into) {
+        System.arraycopy(total, 0, into, 0, cells);
+    }
+
+    /** @return vehicles on the map, not counting those still queued at sources */
+    public double getVehicleCount() {
+        if (layoutDirty) {
+            rebuildLayout();
+        }
+        double sum = 0;
+        for (int road : roads) {
+            sum += total[road];
+        }
+        return sum;
+    }
+
+    /** @return vehicles that reached their destination */
+    public double getExited() {
+        return exited;
+    }
+
+    /** @return vehicles waiting at sources to enter the map */
+    public double getQueued() {
+        double sum = 0;
+        for (Source source : sources) {
+            sum += source.queue;
+        }
+        return sum;
+    }
+
+    public int getRoadCellCount() {
+        if (layoutDirty) {
+            rebuildLayout();
+        }
+        return roads.length;
+    }
+
+    @Override
+    public void cellChanged(int x, int y) {
+        // Light colours are read live each tick; only walls and signs change the layout. A signed
+        // cell may have swapped one sign for another, so any change to it counts.
+        int flags = environment.getCellFlags(x, y) & (Environment.FLAG_BLOCKED | Environment.FLAG_SIGN);
+        if (flags != layoutFlags[y * width + x] || (flags & Environment.FLAG_SIGN) != 0) {
+            layoutDirty = true;
+        }
+    }
+
+    private void rebuildLayout() {
+        int count = 0;
+        int[] found = new int[cells];
+        for (int y = 0; y < environment.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                int cell = y * width + x;
+                capacityFactor[cell] = 1;
+                speedFactor[cell] = 1;
+                layoutFlags[cell] = (byte) (environment.getCellFlags(x, y) & (Environment.FLAG_BLOCKED | Environment.FLAG_SIGN));
+                if (!environment.isWall(x, y)) {
+                    found[count++] = cell;
+                }
+            }
+        }
+        int[] previous = roads;
+        roads = Arrays.copyOf(found, count);
+        for (int cell : previous) {
+            if (total[cell] > 0 && environment.isWall(cell % width, cell / width)) {
+                displace(cell);
+            }
+        }
+        environment.forEachOccupiedCell((x, y, cell) -> environment.forEachElement(x, y, new Environment.ElementVisitor() {
+            @Override
+            public void visitSign(int sx, int sy, TrafficSign sign) {
+                int index = sy * width + sx;
+                switch (sign.getType()) {
+                    case STOP -> capacityFactor[index] = Math.min(capacityFactor[index], STOP_FACTOR);
+                    case YIELD -> capacityFactor[index] = Math.min(capacityFactor[index], YIELD_FACTOR);
+                    case SPEED_LIMIT -> speedFactor[index] = SPEED_LIMIT_FACTOR;
+                    default -> {
+                    }
+                }
+            }
+        }));
+        layoutDirty = false;
+    }
+
+    /** Moves the vehicles of a cell that became a wall to the nearest road cell, if there is one. */
+    private void displace(int cell) {
+        int road = nearestRoad(cell);
+        if (road < 0) {
+            return;
+        }
+        for (Destination destination : destinations) {
+            destination.density[road] += destination.density[cell];
+            destination.density[cell] = 0;
+        }
+        total[road] += total[cell];
+        total[cell] = 0;
+    }
+
+    /** Breadth-first search through walls and roads alike; only runs when the layout changes. */
+    private int nearestRoad(int start) {
+        int[] queue = new int[cells];
+        boolean[] seen = new boolean[cells];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        seen[start] = true;
+        while (head < tail) {
+            int cell = queue[head++];
+            int x = cell % width;
+            int y = cell / width;
+            if (!environment.isWall(x, y)) {
+                return cell;
+            }
+            for (int direction = 0; direction < Fleet.DX.length; direction++) {
+                int nx = x + Fleet.DX[direction];
+                int ny = y + Fleet.DY[direction];
+                int next = ny * width + nx;
+                if (environment.isValidPosition(nx, ny) && !seen[next]) {
+                    seen[next] = true;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void recomputeTotals() {
+        for (int road : roads) {
+            double sum = 0;
+            for (Destination destination : destinations) {
+                sum += destination.density[road];
+            }
+            total[road] = sum;
+        }
+    }
+
+    private void checkRoad(int x, int y) {
+        if (!environment.isValidPosition(x, y) || environment.isWall(x, y)) {
+            throw new IllegalArgumentException("Not a road cell: (" + x + "," + y + ")");
+        }
+    }
+}
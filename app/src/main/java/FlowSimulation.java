@@ -0,0 +1,58 @@
+import java.util.SplittableRandom;
+
+/**
+ * Runs the macroscopic FlowModel on a generated city grid and reports its cost per tick.
+ * Usage: FlowSimulation [size] [vehicles] [ticks]
+ */
+public class FlowSimulation {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double vehicles = args.length > 1 ? Double.parseDouble(args[1]) : 1_000_000;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        // Blocks of buildings separated by two-cell streets, with a light at every fourth crossing
+        Environment environment = new Environment(size, size);
+        environment.createCityGrid(12);
+        SplittableRandom random = new SplittableRandom(1);
+        for (int y = 0; y < size; y += 12) {
+            for (int x = 0; x < size; x += 12) {
+                if (random.nextInt(4) == 0) {
+                    environment.addTrafficLight(x, y, random.nextBoolean() ? TrafficLightState.RED : TrafficLightState.GREEN);
+                } else if (random.nextInt(4) == 0) {
+                    environment.addTrafficSign(x + 1, y, TrafficSignType.STOP);
+                }
+            }
+        }
+        for (TrafficLight light : environment.getTrafficLights()) {
+            light.setDurations(20, 4, 20);
+        }
+
+        SimulationEngine engine = new SimulationEngine(environment);
+        FlowModel flow = new FlowModel(environment, engine.getPathPlanner(), FlowModel.Parameters.defaults());
+        int[] destinations = {
+                flow.addDestination(0, 0), flow.addDestination(size - 1 - (size - 1) % 12, 0),
+                flow.addDestination(0, size - 1 - (size - 1) % 12), flow.addDestination(size / 24 * 12, size / 24 * 12)};
+        double perCell = vehicles / flow.getRoadCellCount();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (!environment.isWall(x, y)) {
+                    flow.addVehicles(x, y, destinations[random.nextInt(destinations.length)], perCell);
+                }
+            }
+        }
+        engine.addAgent(flow);
+
+        long start = System.nanoTime();
+        engine.run(ticks);
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%d ticks on %dx%d (%d road segments, %d destinations): %.2f ms/tick%n",
+                ticks, size, size, flow.getRoadCellCount(), destinations.length, millis / ticks);
+        System.out.printf("%.0f vehicles on the map, %.0f arrived%n", flow.getVehicleCount(), flow.getExited());
+
+        // Zoom in: hand one block's vehicles to the agent model
+        int spawned = flow.spawnAgents(engine.getFleet(), 0, 0, 24, 24);
+        engine.run(10);
+        System.out.printf("spawned %d agents from the flow model around (0,0); fleet moves after 10 ticks: %d%n",
+                spawned, engine.getFleet().getMoves());
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Compares heap footprint and random isWall lookup latency of the packed Environment grid
+ * against the old one-Cell-object-per-square layout.
+ * Usage: GridLayoutComparison [size...]   (square maps, default 250 500 1000 2000)
+ * Run with a large -Xmx; the legacy layout needs roughly 80 bytes per cell.
+ */
+public class GridLayoutComparison {
+    
+    private static final int LOOKUPS = 5_000_000;
+    
+    /** The pre-packing layout: one object and one ArrayList per grid square. */
+    private static final class LegacyCell {
+        private CellType type = CellType.ROAD;
+        private final List<TrafficElement> trafficElements = new ArrayList<>();
+    }
+    
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0
+                ? java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{250, 500, 1000, 2000};
+        
+        System.out.printf("%-10s %14s %14s %14s %14s%n",
+                "size", "legacy MB", "packed MB", "legacy ns/op", "packed ns/op");
+        for (int size : sizes) {
+            long before = usedHeap();
+            LegacyCell[][] legacy = buildLegacy(size);
+            long legacyBytes = usedHeap() - before;
+            double legacyNanos = timeLegacy(legacy, size);
+            legacy = null;
+            
+            before = usedHeap();
+            Environment packed = buildPacked(size);
+            long packedBytes = usedHeap() - before;
+            double packedNanos = timePacked(packed, size);
+            
+            System.out.printf("%-10s %14.1f %14.1f %14.2f %14.2f%n", size + "x" + size,
+                    legacyBytes / 1e6, packedBytes / 1e6, legacyNanos, packedNanos);
+        }
+    }
+    
+    private static LegacyCell[][] buildLegacy(int size) {
+        LegacyCell[][] grid = new LegacyCell[size][size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                grid[y][x] = new LegacyCell();
+                if (x == 0 || y == 0 || (x * 31 + y) % 7 == 0) {
+                    grid[y][x].type = CellType.WALL;
+                }
+            }
+        }
+        grid[size / 2][size / 2].trafficElements.add(new TrafficLight(TrafficLightState.RED));
+        return grid;
+    }
+    
+    private static Environment buildPacked(int size) {
+        Environment env = new Environment(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (x == 0 || y == 0 || (x * 31 + y) % 7 == 0) {
+                    env.addWall(x, y);
+                }
+            }
+        }
+        env.addTrafficLight(size / 2, size / 2, TrafficLightState.RED);
+        return env;
+    }
+    
+    private static double timeLegacy(LegacyCell[][] grid, int size) {
+        int walls = 0;
+        for (int round = 0; round < 2; round++) { // first round is warm-up
+            SplittableRandom random = new SplittableRandom(42);
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                LegacyCell cell = grid[random.nextInt(size)][random.nextInt(size)];
+                if (cell.type == CellType.WALL) {
+                    walls++;
+                }
+            }
+            if (round == 1) {
+                return blackhole(walls, System.nanoTime() - start);
+            }
+        }
+        throw new AssertionError();
+    }
+    
+    private static double timePacked(Environment env, int size) {
+        int walls = 0;
+        for (int round = 0; round < 2; round++) {
+            SplittableRandom random = new SplittableRandom(42);
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (env.isWall(random.nextInt(size), random.nextInt(size))) {
+                    walls++;
+                }
+            }
+            if (round == 1) {
+                return blackhole(walls, System.nanoTime() - start);
+            }
+        }
+        throw new AssertionError();
+    }
+    
+    private static double blackhole(int walls, long nanos) {
+        if (walls == -1) {
+            System.out.println(walls);
+        }
+        return (double) nanos / LOOKUPS;
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,299 @@
+import java.util.Arrays;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Canvas renderer for the part of an Environment a {@link Viewport} shows.
+ * The canvas is the size of the window, not of the map, and a frame only touches what is on it.
+ * <p>
+ * Zoomed in, cells are drawn as road and wall rectangles (walls merged into runs along each
+ * row) with the elements of the visible rows on top, taken from the {@link SpriteAtlas}. While
+ * the view stays put, later frames only repaint the visible cells reported by Environment and
+ * TrafficLight change notifications. Zoomed out below DETAIL_SCALE pixels per cell, the map is
+ * shaded instead as a heatmap of wall and element density from a {@link DensityPyramid}, one
+ * pixel per map block, at the block size that makes a block at least HEAT_BLOCK_PIXELS wide, and
+ * stretched onto the canvas in one drawImage. Either way a frame's cost depends on the window size,
+ * not the map size.
+ * Notifications may arrive from the engine thread; render() must be called on the FX thread.
+ */
+public class GridRenderer implements EnvironmentListener {
+
+    /** Pixels per cell below which the map is drawn as a heatmap. */
+    static final double DETAIL_SCALE = 6;
+    private static final double HEAT_BLOCK_PIXELS = 3;
+    private static final int MAX_DIRTY = 4_096; // more changes than this in a frame repaint the whole view
+    private static final double FRAME_TIME_SMOOTHING = 0.05;
+    private static final Color BACKGROUND = Color.rgb(40, 40, 40);
+    private static final Color ROAD = Color.DARKGRAY;
+    private static final Color WALL = Color.BROWN;
+    private static final Color ELEMENT = Color.GOLD;
+
+    private final Environment environment;
+    private final Canvas canvas;
+    private final Viewport viewport;
+    private final SpriteAtlas atlas = new SpriteAtlas();
+    private final DensityPyramid density;
+    private final int roadArgb = argb(ROAD);
+    private final int wallArgb = argb(WALL);
+    private final int elementArgb = argb(ELEMENT);
+
+    private int[] dirty = new int[64];
+    private int dirtyCount;
+    private int[] repainting = new int[64];
+    private boolean fullRepaint = true;
+    private long drawnViewport = -1;
+    private long drawnDensity = -1;
+    private double drawnWidth;
+    private double drawnHeight;
+    private WritableImage heat;
+    private int[] heatPixels = new int[0];
+
+    private double lastFrameMillis;
+    private double averageFrameMillis;
+    private int cellsRepainted;
+    private boolean heatmap;
+
+    public GridRenderer(Environment environment, Canvas canvas, Viewport viewport) {
+        this.environment = environment;
+        this.canvas = canvas;
+        this.viewport = viewport;
+        this.density = new DensityPyramid(environment);
+        environment.addListener(this);
+    }
+
+    /** Stops listening to the environment; call when the renderer is replaced. */
+    public void dispose() {
+        environment.removeListener(this);
+        density.dispose();
+    }
+
+    @Override
+    public void cellChanged(int x, int y) {
+        synchronized (this) {
+            if (dirtyCount == MAX_DIRTY) {
+                fullRepaint = true;
+                return;
+            }
+            if (dirtyCount == dirty.length) {
+                dirty = Arrays.copyOf(dirty, dirty.length * 2);
+            }
+            dirty[dirtyCount++] = y * environment.getWidth() + x;
+        }
+    }
+
+    /** Forces the next frame to repaint everything. */
+    public synchronized void invalidateAll() {
+        fullRepaint = true;
+    }
+
+    /** Repaints the view if it moved, or whatever changed in it since the previous frame. */
+    public void render() {
+        long start = System.nanoTime();
+        boolean full;
+        int changed;
+        synchronized (this) {
+            int[] swap = repainting;
+            repainting = dirty;
+            dirty = swap;
+            changed = dirtyCount;
+            dirtyCount = 0;
+            full = fullRepaint;
+            fullRepaint = false;
+        }
+        if (canvas.getWidth() != drawnWidth || canvas.getHeight() != drawnHeight
+                || viewport.getVersion() != drawnViewport) {
+            full = true;
+            drawnWidth = canvas.getWidth();
+            drawnHeight = canvas.getHeight();
+            drawnViewport = viewport.getVersion();
+        }
+
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        heatmap = viewport.getScale() < DETAIL_SCALE;
+        if (heatmap) {
+            cellsRepainted = 0;
+            if (full || density.getVersion() != drawnDensity) {
+                drawnDensity = density.getVersion();
+                drawHeatmap(gc);
+            }
+        } else if (full) {
+            drawCells(gc);
+        } else {
+            cellsRepainted = 0;
+            int width = environment.getWidth();
+            for (int i = 0; i < changed; i++) {
+                int x = repainting[i] % width;
+                int y = repainting[i] / width;
+                if (x >= viewport.getFirstColumn() && x < viewport.getEndColumn()
+                        && y >= viewport.getFirstRow() && y < viewport.getEndRow()) {
+                    drawCell(gc, x, y);
+                    cellsRepainted++;
+                }
+            }
+        }
+
+        lastFrameMillis = (System.nanoTime() - start) / 1e6;
+        averageFrameMillis += (lastFrameMillis - averageFrameMillis) * FRAME_TIME_SMOOTHING;
+    }
+
+    public double getLastFrameMillis() {
+        return lastFrameMillis;
+    }
+
+    /** @return exponentially smoothed render time per frame */
+    public double getAverageFrameMillis() {
+        return averageFrameMillis;
+    }
+
+    /** @return number of cells repainted by the last frame; 0 for heatmap frames */
+    public int getCellsRepainted() {
+        return cellsRepainted;
+    }
+
+    /** @return whether the last frame was drawn as a heatmap */
+    public boolean isHeatmap() {
+        return heatmap;
+    }
+
+    private void drawCells(GraphicsContext gc) {
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        int firstColumn = viewport.getFirstColumn();
+        int endColumn = viewport.getEndColumn();
+        int firstRow = viewport.getFirstRow();
+        int endRow = viewport.getEndRow();
+        double left = snapX(firstColumn);
+        double top = snapY(firstRow);
+        gc.setFill(ROAD);
+        gc.fillRect(left, top, snapX(endColumn) - left, snapY(endRow) - top);
+
+        gc.setFill(WALL);
+        for (int y = firstRow; y < endRow; y++) {
+            double rowTop = snapY(y);
+            double rowHeight = snapY(y + 1) - rowTop;
+            int x = firstColumn;
+            while (x < endColumn) {
+                if (!environment.isWall(x, y)) {
+                    x++;
+                    continue;
+                }
+                int runStart = x;
+                while (x < endColumn && environment.isWall(x, y)) {
+                    x++;
+                }
+                double runLeft = snapX(runStart);
+                gc.fillRect(runLeft, rowTop, snapX(x) - runLeft, rowHeight);
+            }
+        }
+
+        for (int y = firstRow; y < endRow; y++) {
+            environment.forEachOccupiedCellInRow(y, (x, row, cell) -> {
+                if (x >= firstColumn && x < endColumn) {
+                    drawElement(gc, x, row, cell);
+                }
+            });
+        }
+        cellsRepainted = (endColumn - firstColumn) * Math.max(0, endRow - firstRow);
+    }
+
+    private void drawCell(GraphicsContext gc, int x, int y) {
+        double left = snapX(x);
+        double top = snapY(y);
+        gc.setFill(environment.isWall(x, y) ? WALL : ROAD);
+        gc.fillRect(left, top, snapX(x + 1) - left, snapY(y + 1) - top);
+        drawElement(gc, x, y, environment.getCell(x, y));
+    }
+
+    /** Draws the cell's first element, the one its display char shows as well. */
+    private void drawElement(GraphicsContext gc, int x, int y, Cell cell) {
+        if (!cell.hasTrafficElements()) {
+            return;
+        }
+        double left = snapX(x);
+        double size = snapX(x + 1) - left;
+        // Light states are read straight from the light: a stale colour is fixed by the next change notification
+        TrafficElement element = cell.getTrafficElements().get(0);
+        if (element instanceof TrafficLight light) {
+            atlas.drawLight(gc, light.getState(), left, snapY(y), size);
+        } else if (element instanceof TrafficSign sign) {
+            atlas.drawSign(gc, sign.getType(), left, snapY(y), size);
+        }
+    }
+
+    private void drawHeatmap(GraphicsContext gc) {
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        double scale = viewport.getScale();
+        int level = 0;
+        while (level < density.getLevelCount() - 1 && density.getBlockSize(level) * scale < HEAT_BLOCK_PIXELS) {
+            level++;
+        }
+        int block = density.getBlockSize(level);
+        int firstColumn = viewport.getFirstColumn() / block;
+        int endColumn = Math.min(density.getColumns(level), (viewport.getEndColumn() + block - 1) / block);
+        int firstRow = viewport.getFirstRow() / block;
+        int endRow = Math.min(density.getRows(level), (viewport.getEndRow() + block - 1) / block);
+        int columns = endColumn - firstColumn;
+        int rows = endRow - firstRow;
+        if (columns <= 0 || rows <= 0) {
+            return;
+        }
+        if (heat == null || heat.getWidth() < columns || heat.getHeight() < rows) {
+            heat = new WritableImage(Math.max(columns, heat == null ? 0 : (int) heat.getWidth()),
+                    Math.max(rows, heat == null ? 0 : (int) heat.getHeight()));
+        }
+        if (heatPixels.length < columns * rows) {
+            heatPixels = new int[columns * rows];
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int cells = density.getCells(level, firstColumn + column, firstRow + row);
+                int walls = density.getWalls(level, firstColumn + column, firstRow + row);
+                int elements = density.getElements(level, firstColumn + column, firstRow + row);
+                // Elements are sparse, so a few per block already show at full strength
+                int color = blend(roadArgb, wallArgb, walls * 255 / cells);
+                heatPixels[row * columns + column] = blend(color, elementArgb, Math.min(255, elements * 255 * 16 / cells));
+            }
+        }
+        heat.getPixelWriter().setPixels(0, 0, columns, rows, PixelFormat.getIntArgbInstance(), heatPixels, 0, columns);
+        double left = viewport.toScreenX(firstColumn * (double) block);
+        double top = viewport.toScreenY(firstRow * (double) block);
+        double right = viewport.toScreenX(Math.min(endColumn * (double) block, environment.getWidth()));
+        double bottom = viewport.toScreenY(Math.min(endRow * (double) block, environment.getHeight()));
+        // The last block of a row or column may be cut off by the map edge; shrink its pixel to match
+        double sourceWidth = columns - (endColumn * block - Math.min(endColumn * block, environment.getWidth())) / (double) block;
+        double sourceHeight = rows - (endRow * block - Math.min(endRow * block, environment.getHeight())) / (double) block;
+        gc.setImageSmoothing(false);
+        gc.drawImage(heat, 0, 0, sourceWidth, sourceHeight, left, top, right - left, bottom - top);
+        gc.setImageSmoothing(true);
+    }
+
+    /** Cell edges are rounded to whole pixels so neighbouring cells neither overlap nor leave seams. */
+    private double snapX(int x) {
+        return Math.floor(viewport.toScreenX(x));
+    }
+
+    private double snapY(int y) {
+        return Math.floor(viewport.toScreenY(y));
+    }
+
+    private static int blend(int from, int to, int amount) {
+        int result = 0xFF000000;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int a = (from >> shift) & 0xFF;
+            int b = (to >> shift) & 0xFF;
+            result |= (a + (b - a) * amount / 255) << shift;
+        }
+        return result;
+    }
+
+    private static int argb(Color color) {
+        return ((int) Math.round(color.getOpacity() * 255) << 24)
+                | ((int) Math.round(color.getRed() * 255) << 16)
+                | ((int) Math.round(color.getGreen() * 255) << 8)
+                | (int) Math.round(color.getBlue() * 255);
+    }
+}
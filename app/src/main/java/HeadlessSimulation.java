@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Runs the simulation without a display and reports the tick rate.
+ * Usage: HeadlessSimulation [width] [height] [ticks] [agents]
+ * With -Dsim.metrics=file.csv (or .json) the engine's metrics are enabled and dumped every second.
+ * With -Dsim.control=fixed, actuated or max_pressure the pair of lights in the middle of the map
+ * is run as one two-phase Intersection, and its throughput and delay are reported.
+ * With -Dsim.telemetry=file every tick's agent positions and light states are streamed to the
+ * file (see TelemetryReader).
+ */
+public class HeadlessSimulation {
+
+    private static final int DETECTOR_REACH = 2;
+
+    public static void main(String[] args) throws IOException {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long ticks = args.length > 2 ? Long.parseLong(args[2]) : 10_000;
+        int agents = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        Environment env = new Environment(width, height);
+        env.createSimpleRoadNetwork();
+
+        SimulationEngine engine = new SimulationEngine(env);
+        Fleet fleet = engine.getFleet();
+        fleet.spawnRandom(agents);
+
+        Intersection intersection = null;
+        String control = System.getProperty("sim.control");
+        if (control != null) {
+            intersection = new Intersection(engine, Intersection.Control.valueOf(control.toUpperCase(Locale.ROOT)),
+                    Intersection.Timing.defaults());
+            for (int side = -1; side <= 1; side += 2) {
+                int x = width / 2 + side * 3;
+                int y = height / 2;
+                int phase = intersection.addPhase();
+                intersection.addLight(phase, x, y);
+                intersection.addDetector(phase, x - DETECTOR_REACH, y - DETECTOR_REACH, x + DETECTOR_REACH, y + DETECTOR_REACH);
+            }
+            engine.addAgent(intersection);
+        }
+
+        SimulationMetrics metrics = engine.getMetrics();
+        String metricsFile = System.getProperty("sim.metrics");
+        if (metricsFile != null) {
+            metrics.setEnabled(true);
+            metrics.registerMBean("headless");
+            metrics.startDump(Path.of(metricsFile), 1000);
+        }
+        TelemetryExporter telemetry = null;
+        String telemetryFile = System.getProperty("sim.telemetry");
+        if (telemetryFile != null) {
+            telemetry = new TelemetryExporter(engine, Path.of(telemetryFile), TelemetryExporter.Options.defaults());
+            engine.addAgent(telemetry);
+        }
+        engine.run(ticks);
+        if (telemetry != null) {
+            telemetry.close();
+            System.out.printf("telemetry: %d frames written, %d dropped, %d bytes%n",
+                    telemetry.getFramesWritten(), telemetry.getFramesDropped(), telemetry.getBytesWritten());
+        }
+
+        System.out.printf("Ran %d ticks on a %dx%d map with %d agents: %.1f ticks/s%n",
+                engine.getTick(), width, height, fleet.size(), engine.getTicksPerSecond());
+        System.out.printf("moves %d, blocked %d, collisions %d%n",
+                fleet.getMoves(), fleet.getBlockedMoves(), fleet.getCollisions());
+        if (intersection != null) {
+            System.out.printf("%s intersection: %d discharged (%.3f per tick), average delay %.1f ticks, %d switches%n",
+                    intersection.getControl(), intersection.getDischarged(), intersection.getThroughput(),
+                    intersection.getAverageDelay(), intersection.getSwitches());
+        }
+        if (metrics.isEnabled()) {
+            metrics.stopDump();
+            System.out.println(metrics.csvHeader());
+            System.out.println(metrics.csvRow());
+        }
+    }
+}
@@ -0,0 +1,764 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * Long-distance routing on a two-level abstraction of the grid (HPA*), for trips where even
+ * {@link PathPlanner#findPath} has to expand too many cells.
+ * <p>
+ * The map is cut into square clusters. Wherever a road crosses the border between two clusters,
+ * a run of border cell pairs open in one direction becomes one transition (two for long runs),
+ * whose cells are graph nodes joined by a one-step edge. Each direction gets its own runs, and a
+ * run with a ONE_WAY cell on either side makes every pair a transition, since its cells may not
+ * reach each other. Traffic light and sign cells are nodes as well. Inside each cluster the nodes
+ * are joined by edges weighted with their shortest distance through that cluster, found by a BFS
+ * that follows the planner's rules (walls, NO_ENTRY, ONE_WAY). A query links start and goal to
+ * the nodes of their clusters and runs A* over the node graph, which visits a few nodes per
+ * cluster crossed instead of every cell; {@link #findRoute} returns those waypoints and
+ * {@link #refine} expands one leg to cells on demand, so a robot only refines the few cells ahead
+ * of it. Routes are within a few percent of the shortest, not always exact.
+ * <p>
+ * Map edits (walls, signs, lights added or removed) only mark the clusters around the changed
+ * cell; they are rebuilt before the next query, so a burst of edits costs one rebuild per
+ * cluster and a light changing colour costs nothing. Not thread-safe; use it from the engine thread.
+ */
+public class HierarchicalPlanner implements EnvironmentListener {
+
+    private static final int[] DX = PathPlanner.DX;
+    private static final int[] DY = PathPlanner.DY;
+    private static final int EAST = 1;
+    private static final int SOUTH = 2;
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    private static final int LONG_ENTRANCE = 6; // runs at least this long get a transition at each end
+    private static final byte ELEMENT = 4; // bit added to the rule in the seen snapshot
+
+    private final Environment environment;
+    private final PathPlanner planner;
+    private final int width;
+    private final int height;
+    private final int size;
+    private final int clustersX;
+    private final int clusterCount;
+
+    // Per cluster: its node cells (sorted) and their ids
+    private final int[][] nodes;
+    private final int[][] ids;
+    private final BitSet dirtyClusters = new BitSet();
+    private final BitSet changedCells = new BitSet();
+    private final byte[] seen; // rule and element bit of every cell as of the last rebuild
+    private long clustersRebuilt;
+
+    // Per node id; ids of rebuilt clusters are recycled through the free list
+    private int capacity;
+    private int[] nodeCell = new int[0];
+    private int[] nodeX = new int[2]; // the last two slots hold a query's start and goal
+    private int[] nodeY = new int[2];
+    private int[] nodeCluster = new int[0];
+    private int[] nodePosition = new int[0];
+    private int[][] edges = new int[0][]; // edges within the cluster as (target id, cost) pairs
+    private int[] crossing = new int[0]; // 4 per node: the node one step away in another cluster, -1 = none
+    private int[] free = new int[0];
+    private int freeCount;
+    private int nodeCount;
+
+    // Query scratch space
+    private int[] gScore = new int[2];
+    private int[] parent = new int[2];
+    private int[] stamp = new int[2];
+    private int search;
+    private final PathPlanner.IntHeap open = new PathPlanner.IntHeap();
+    private final int[] startCost;
+    private final int[] goalCost;
+    private final int[] local; // BFS distances inside one cluster
+    private final int[] localParent;
+    private final int[] queue;
+    private int[] scratch = new int[16];
+
+    public HierarchicalPlanner(PathPlanner planner) {
+        this(planner, 32);
+    }
+
+    /** @param clusterSize side of a cluster in cells; bigger clusters mean fewer nodes but slower rebuilds */
+    public HierarchicalPlanner(PathPlanner planner, int clusterSize) {
+        if (clusterSize < 2) {
+            throw new IllegalArgumentException("Clusters need at least 2x2 cells.");
+        }
+        this.planner = planner;
+        this.environment = planner.getEnvironment();
+        this.width = planner.getWidth();
+        this.height = planner.getHeight();
+        this.size = clusterSize;
+        this.clustersX = (width + size - 1) / size;
+        this.clusterCount = clustersX * ((height + size - 1) / size);
+        this.nodes = new int[clusterCount][];
+        this.ids = new int[clusterCount][0];
+        this.seen = new byte[width * height];
+        this.local = new int[size * size];
+        this.localParent = new int[size * size];
+        this.queue = new int[size * size];
+        this.startCost = new int[4 * size * 2 + size * size];
+        this.goalCost = new int[startCost.length];
+        for (int i = 0; i < seen.length; i++) {
+            seen[i] = state(i);
+        }
+        dirtyClusters.set(0, clusterCount);
+        environment.addListener(this);
+    }
+
+    @Override
+    public void cellChanged(int x, int y) {
+        changedCells.set(y * width + x); // compared with the snapshot lazily, after the planner has caught up
+    }
+
+    /**
+     * Finds a route as a list of waypoints: start, the transition and element cells passed, goal.
+     * Consecutive waypoints are either neighbours or in one cluster; expand them with {@link #refine}.
+     * @return waypoint cell indices from start to goal, or null if the goal cannot be reached
+     */
+    public int[] findRoute(int startX, int startY, int goalX, int goalY) {
+        if (!environment.isValidPosition(startX, startY) || !environment.isValidPosition(goalX, goalY)) {
+            return null;
+        }
+        int start = startY * width + startX;
+        int goal = goalY * width + goalX;
+        if (planner.isBlocked(goal)) {
+            return null; // a blocked start is fine, as in PathPlanner: a robot may be standing on a new NO_ENTRY cell
+        }
+        if (start == goal) {
+            return new int[]{start};
+        }
+        update();
+        int startCluster = clusterOf(startX, startY);
+        int goalCluster = clusterOf(goalX, goalY);
+
+        int[] startNodes = nodes[startCluster];
+        clusterBfs(startCluster, start, false);
+        for (int i = 0; i < startNodes.length; i++) {
+            startCost[i] = local[localIndex(startCluster, startNodes[i])];
+        }
+        int direct = goalCluster == startCluster ? local[localIndex(startCluster, goal)] : UNREACHABLE;
+        if (startNodes.length == 0 && goalCluster == startCluster) {
+            // No transitions leave the cluster (e.g. the whole map is one cluster): the in-cluster search is exact
+            return direct == UNREACHABLE ? null : new int[]{start, goal};
+        }
+        int[] goalNodes = nodes[goalCluster];
+        clusterBfs(goalCluster, goal, true);
+        for (int i = 0; i < goalNodes.length; i++) {
+            goalCost[i] = local[localIndex(goalCluster, goalNodes[i])];
+        }
+
+        // A* over the node graph; ids capacity and capacity + 1 stand for start and goal
+        int startId = capacity;
+        int goalId = capacity + 1;
+        if (++search == 0) {
+            Arrays.fill(stamp, 0);
+            search = 1;
+        }
+        open.clear();
+        nodeX[goalId] = goalX;
+        nodeY[goalId] = goalY;
+        visit(startId, 0, -1);
+        if (direct != UNREACHABLE) {
+            relax(goalId, direct, startId, goalX, goalY);
+        }
+        for (int i = 0; i < startNodes.length; i++) {
+            if (startCost[i] != UNREACHABLE) {
+                relax(ids[startCluster][i], startCost[i], startId, goalX, goalY);
+            }
+        }
+        // A start on the cluster border may step straight across it; blocked starts are never nodes themselves
+        for (int dir = 0; dir < 4; dir++) {
+            int nx = startX + DX[dir];
+            int ny = startY + DY[dir];
+            if (planner.canMove(startX, startY, dir) && clusterOf(nx, ny) != startCluster) {
+                int next = ny * width + nx;
+                int id = next == goal ? goalId : nodeId(next, clusterOf(nx, ny));
+                if (id >= 0) {
+                    relax(id, 1, startId, goalX, goalY);
+                }
+            }
+        }
+        while (!open.isEmpty()) {
+            long key = open.peekKey();
+            int current = open.pop();
+            int g = gScore[current];
+            if (key != priority(g, current, goalX, goalY)) {
+                continue; // stale heap entry
+            }
+            if (current == goalId) {
+                return reconstruct(startId, goalId, start, goal);
+            }
+            int[] nodeEdges = edges[current];
+            for (int e = 0; e < nodeEdges.length; e += 2) {
+                relax(nodeEdges[e], g + nodeEdges[e + 1], current, goalX, goalY);
+            }
+            if (nodeCluster[current] == goalCluster && goalCost[nodePosition[current]] != UNREACHABLE) {
+                relax(goalId, g + goalCost[nodePosition[current]], current, goalX, goalY);
+            }
+            for (int dir = 0; dir < 4; dir++) {
+                int next = crossing[current * 4 + dir];
+                if (next >= 0) {
+                    relax(next, g + 1, current, goalX, goalY);
+                }
+            }
+        }
+        // A blocked start is in no transition, so the cell it steps out to may not be a node either;
+        // the grid search settles it, and its cell path is a valid route
+        return planner.isBlocked(start) ? planner.findPath(startX, startY, goalX, goalY) : null;
+    }
+
+    /**
+     * Expands one leg of a route, two consecutive waypoints, into cells.
+     * @return cell indices from 'from' to 'to' inclusive, or null if they are not linked
+     */
+    public int[] refine(int from, int to) {
+        int fx = from % width;
+        int fy = from / width;
+        int cluster = clusterOf(fx, fy);
+        if (clusterOf(to % width, to / width) != cluster) {
+            return Math.abs(to - from) == 1 || Math.abs(to - from) == width ? new int[]{from, to} : null;
+        }
+        clusterBfs(cluster, from, false);
+        int steps = local[localIndex(cluster, to)];
+        if (steps == UNREACHABLE) {
+            return null;
+        }
+        int[] path = new int[steps + 1];
+        int x0 = (cluster % clustersX) * size;
+        int y0 = (cluster / clustersX) * size;
+        int current = localIndex(cluster, to);
+        for (int i = steps; i >= 0; i--) {
+            path[i] = (y0 + current / size) * width + x0 + current % size;
+            current = localParent[current];
+        }
+        return path;
+    }
+
+    /** Finds a route and refines every leg. @return cell indices from start to goal, or null */
+    public int[] findPath(int startX, int startY, int goalX, int goalY) {
+        int[] route = findRoute(startX, startY, goalX, goalY);
+        if (route == null) {
+            return null;
+        }
+        int[] path = {route[0]};
+        int length = 1;
+        for (int i = 1; i < route.length; i++) {
+            int[] leg = refine(route[i - 1], route[i]);
+            if (path.length < length + leg.length - 1) {
+                path = Arrays.copyOf(path, Math.max(path.length * 2, length + leg.length));
+            }
+            System.arraycopy(leg, 1, path, length, leg.length - 1);
+            length += leg.length - 1;
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /** @return nodes in the abstract graph */
+    public int getNodeCount() {
+        update();
+        return nodeCount;
+    }
+
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /** @return clusters rebuilt so far, including the initial build */
+    public long getClustersRebuilt() {
+        return clustersRebuilt;
+    }
+
+    private void relax(int id, int cost, int from, int goalX, int goalY) {
+        if (stamp[id] != search || cost < gScore[id]) {
+            visit(id, cost, from);
+            open.push(priority(cost, id, goalX, goalY), id);
+        }
+    }
+
+    private void visit(int id, int g, int from) {
+        stamp[id] = search;
+        gScore[id] = g;
+        parent[id] = from;
+    }
+
+    /** Orders by f = g + h like PathPlanner, breaking ties in favour of the deeper node. */
+    private long priority(int g, int id, int goalX, int goalY) {
+        int h = Math.abs(nodeX[id] - goalX) + Math.abs(nodeY[id] - goalY);
+        return ((long) (g + h) << 32) - g;
+    }
+
+    private int[] reconstruct(int startId, int goalId, int start, int goal) {
+        int length = 0;
+        for (int id = goalId; id != -1; id = parent[id]) {
+            length++;
+        }
+        int[] route = new int[length];
+        int position = length;
+        for (int id = goalId; id != -1; id = parent[id]) {
+            route[--position] = id == goalId ? goal : id == startId ? start : nodeCell[id];
+        }
+        return route;
+    }
+
+    /** Rebuilds the clusters touched by map changes since the last query and relinks their neighbours. */
+    private void update() {
+        for (int cell = changedCells.nextSetBit(0); cell >= 0; cell = changedCells.nextSetBit(cell + 1)) {
+            byte state = state(cell);
+            if (state == seen[cell]) {
+                continue; // e.g. a light changing colour
+            }
+            seen[cell] = state;
+            int x = cell % width;
+            int y = cell / width;
+            int cluster = clusterOf(x, y);
+            dirtyClusters.set(cluster);
+            // A border cell also changes the transitions, and so the nodes, of the cluster next to it
+            for (int dir = 0; dir < 4; dir++) {
+                int nx = x + DX[dir];
+                int ny = y + DY[dir];
+                if (environment.isValidPosition(nx, ny) && clusterOf(nx, ny) != cluster) {
+                    dirtyClusters.set(clusterOf(nx, ny));
+                }
+            }
+        }
+        changedCells.clear();
+        if (dirtyClusters.isEmpty()) {
+            return;
+        }
+        BitSet relink = new BitSet(clusterCount);
+        for (int cluster = dirtyClusters.nextSetBit(0); cluster >= 0; cluster = dirtyClusters.nextSetBit(cluster + 1)) {
+            for (int id : ids[cluster]) {
+                release(id);
+            }
+            findNodes(cluster);
+            int[] clusterIds = new int[nodes[cluster].length];
+            for (int i = 0; i < clusterIds.length; i++) {
+                clusterIds[i] = allocate(nodes[cluster][i], cluster, i);
+            }
+            ids[cluster] = clusterIds;
+            relink.set(cluster);
+            for (int dir = 0; dir < 4; dir++) {
+                int neighbour = neighbour(cluster, dir);
+                if (neighbour >= 0) {
+                    relink.set(neighbour); // their crossings point at this cluster's old ids
+                }
+            }
+        }
+        for (int cluster = dirtyClusters.nextSetBit(0); cluster >= 0; cluster = dirtyClusters.nextSetBit(cluster + 1)) {
+            connectNodes(cluster);
+            clustersRebuilt++;
+        }
+        dirtyClusters.clear();
+        for (int cluster = relink.nextSetBit(0); cluster >= 0; cluster = relink.nextSetBit(cluster + 1)) {
+            for (int id : ids[cluster]) {
+                linkCrossings(id);
+            }
+        }
+    }
+
+    private int allocate(int cell, int cluster, int position) {
+        int id;
+        if (freeCount > 0) {
+            id = free[--freeCount];
+        } else {
+            if (nodeCount == capacity) {
+                grow();
+            }
+            id = nodeCount;
+        }
+        nodeCount++;
+        nodeCell[id] = cell;
+        nodeX[id] = cell % width;
+        nodeY[id] = cell / width;
+        nodeCluster[id] = cluster;
+        nodePosition[id] = position;
+        return id;
+    }
+
+    private void release(int id) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, Math.max(16, freeCount * 2));
+        }
+        free[freeCount++] = id;
+        nodeCount--;
+    }
+
+    /** Grows the per-node arrays; the query's start and goal slots move to the new end. */
+    private void grow() {
+        capacity = Math.max(1024, capacity * 2);
+        nodeCell = Arrays.copyOf(nodeCell, capacity);
+        nodeCluster = Arrays.copyOf(nodeCluster, capacity);
+        nodePosition = Arrays.copyOf(nodePosition, capacity);
+        edges = Arrays.copyOf(edges, capacity);
+        crossing = Arrays.copyOf(crossing, capacity * 4);
+        nodeX = Arrays.copyOf(nodeX, capacity + 2);
+        nodeY = Arrays.copyOf(nodeY, capacity + 2);
+        gScore = new int[capacity + 2];
+        parent = new int[capacity + 2];
+        stamp = new int[capacity + 2];
+        search = 0;
+    }
+
+    /** Records the nodes one step from this one, across a cluster border, that it may move to. */
+    private void linkCrossings(int id) {
+        int x = nodeX[id];
+        int y = nodeY[id];
+        for (int dir = 0; dir < 4; dir++) {
+            int nx = x + DX[dir];
+            int ny = y + DY[dir];
+            int next = -1;
+            if (planner.canMove(x, y, dir) && clusterOf(nx, ny) != nodeCluster[id]) {
+                next = nodeId(ny * width + nx, clusterOf(nx, ny));
+            }
+            crossing[id * 4 + dir] = next;
+        }
+    }
+
+    /** @return the cluster next to this one in the direction, or -1 at the map edge */
+    private int neighbour(int cluster, int dir) {
+        int cx = cluster % clustersX + DX[dir];
+        int cy = cluster / clustersX + DY[dir];
+        if (cx < 0 || cy < 0 || cx >= clustersX || cy * size >= height) {
+            return -1;
+        }
+        return cy * clustersX + cx;
+    }
+
+    /** Collects the cluster's transition cells on all four borders and its light and sign cells. */
+    private void findNodes(int cluster) {
+        int x0 = (cluster % clustersX) * size;
+        int y0 = (cluster / clustersX) * size;
+        int x1 = Math.min(x0 + size, width) - 1;
+        int y1 = Math.min(y0 + size, height) - 1;
+        int count = 0;
+        for (boolean forward : new boolean[]{true, false}) {
+            count = transitions(x1, y0, y1, EAST, forward, false, count); // east border, this side
+            count = transitions(x0 - 1, y0, y1, EAST, forward, true, count); // west border, seen from the west neighbour
+            count = transitions(y1, x0, x1, SOUTH, forward, false, count);
+            count = transitions(y0 - 1, x0, x1, SOUTH, forward, true, count);
+        }
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                int cell = y * width + x;
+                if ((seen[cell] & ELEMENT) != 0 && !planner.isBlocked(cell)) {
+                    count = add(cell, count);
+                }
+            }
+        }
+        Arrays.sort(scratch, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || scratch[unique - 1] != scratch[i]) {
+                scratch[unique++] = scratch[i];
+            }
+        }
+        nodes[cluster] = Arrays.copyOf(scratch, unique);
+    }
+
+    /**
+     * Finds the transitions across the border after column (EAST) or row (SOUTH) 'line', between
+     * the given rows or columns, crossing it in the direction (forward) or against it, and adds
+     * their cells on the near side or, with far, the far side.
+     */
+    private int transitions(int line, int from, int to, int dir, boolean forward, boolean far, int count) {
+        boolean vertical = dir == EAST;
+        if (line < 0 || line + 1 >= (vertical ? width : height)) {
+            return count; // map edge
+        }
+        int runStart = -1;
+        for (int i = from; i <= to + 1; i++) {
+            boolean open = i <= to && crossable(vertical ? line : i, vertical ? i : line, dir, forward);
+            if (open && runStart < 0) {
+                runStart = i;
+            } else if (!open && runStart >= 0) {
+                int runEnd = i - 1;
+                if (hasRule(line, runStart, runEnd, vertical)) {
+                    // ONE_WAY cells may cut the run's cells off from each other: every pair is a transition
+                    for (int j = runStart; j <= runEnd; j++) {
+                        count = addTransition(line, j, vertical, far, count);
+                    }
+                } else if (runEnd - runStart + 1 >= LONG_ENTRANCE) {
+                    count = addTransition(line, runStart, vertical, far, count);
+                    count = addTransition(line, runEnd, vertical, far, count);
+                } else {
+                    count = addTransition(line, (runStart + runEnd) / 2, vertical, far, count);
+                }
+                runStart = -1;
+            }
+        }
+        return count;
+    }
+
+    /** @return whether any cell on either side of the run has a rule other than OPEN */
+    private boolean hasRule(int line, int from, int to, boolean vertical) {
+        for (int i = from; i <= to; i++) {
+            int near = vertical ? i * width + line : line * width + i;
+            int far = vertical ? near + 1 : near + width;
+            if (planner.getRule(near) != PathPlanner.OPEN || planner.getRule(far) != PathPlanner.OPEN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return whether a robot may cross from (x,y) to its neighbour in the direction, or back with forward false */
+    private boolean crossable(int x, int y, int dir, boolean forward) {
+        int nx = x + DX[dir];
+        int ny = y + DY[dir];
+        return !planner.isBlocked(y * width + x) && !planner.isBlocked(ny * width + nx)
+                && (forward ? planner.canMove(x, y, dir) : planner.canMove(nx, ny, (dir + 2) % 4));
+    }
+
+    private int addTransition(int line, int i, boolean vertical, boolean far, int count) {
+        int offset = far ? 1 : 0;
+        return add(vertical ? i * width + line + offset : (line + offset) * width + i, count);
+    }
+
+    private int add(int cell, int count) {
+        if (count == scratch.length) {
+            scratch = Arrays.copyOf(scratch, count * 2);
+        }
+        scratch[count] = cell;
+        return count + 1;
+    }
+
+    /**
+     * Computes the distances between the cluster's nodes within the cluster and keeps an edge
+     * i->j only if no other node k lies on a shortest route from i to j: A* reaches j through k
+     * at the same cost, and the search pushes far fewer heap entries.
+     */
+    private void connectNodes(int cluster) {
+        int[] clusterNodes = nodes[cluster];
+        int n = clusterNodes.length;
+        int[] distance = new int[n * n];
+        for (int i = 0; i < n; i++) {
+            clusterBfs(cluster, clusterNodes[i], false);
+            for (int j = 0; j < n; j++) {
+                distance[i * n + j] = local[localIndex(cluster, clusterNodes[j])];
+            }
+        }
+        int[] pairs = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            int length = 0;
+            for (int j = 0; j < n; j++) {
+                int d = distance[i * n + j];
+                if (j != i && d != UNREACHABLE && !passesThroughNode(distance, n, i, j)) {
+                    pairs[length++] = ids[cluster][j];
+                    pairs[length++] = d;
+                }
+            }
+            edges[ids[cluster][i]] = Arrays.copyOf(pairs, length);
+        }
+    }
+
+    private static boolean passesThroughNode(int[] distance, int n, int i, int j) {
+        int d = distance[i * n + j];
+        for (int k = 0; k < n; k++) {
+            if (k != i && k != j) {
+                long via = (long) distance[i * n + k] + distance[k * n + j];
+                if (via == d) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * BFS from a cell over the cells of its cluster, filling local distances and parents;
+     * reverse follows moves backwards, giving the distance from each cell to the source instead.
+     */
+    private void clusterBfs(int cluster, int source, boolean reverse) {
+        int x0 = (cluster % clustersX) * size;
+        int y0 = (cluster / clustersX) * size;
+        int w = Math.min(size, width - x0);
+        int h = Math.min(size, height - y0);
+        Arrays.fill(local, UNREACHABLE);
+        int head = 0;
+        int tail = 0;
+        int first = localIndex(cluster, source);
+        local[first] = 0;
+        localParent[first] = -1;
+        queue[tail++] = first;
+        while (head < tail) {
+            int current = queue[head++];
+            int lx = current % size;
+            int ly = current / size;
+            for (int dir = 0; dir < 4; dir++) {
+                int nx = lx + DX[dir];
+                int ny = ly + DY[dir];
+                if (nx < 0 || ny < 0 || nx >= w || ny >= h) {
+                    continue;
+                }
+                int next = ny * size + nx;
+                if (local[next] != UNREACHABLE) {
+                    continue;
+                }
+                boolean passable = reverse
+                        ? planner.canMove(x0 + nx, y0 + ny, (dir + 2) % 4)
+                        : planner.canMove(x0 + lx, y0 + ly, dir);
+                if (passable) {
+                    local[next] = local[current] + 1;
+                    localParent[next] = current;
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    private int localIndex(int cluster, int cell) {
+        int x0 = (cluster % clustersX) * size;
+        int y0 = (cluster / clustersX) * size;
+        return (cell / width - y0) * size + cell % width - x0;
+    }
+
+    private int clusterOf(int x, int y) {
+        return (y / size) * clustersX + x / size;
+    }
+
+    /** @return the node id of the cell in its cluster, or -1 if it is not a node */
+    private int nodeId(int cell, int cluster) {
+        int position = Arrays.binarySearch(nodes[cluster], cell);
+        return position >= 0 ? ids[cluster][position] : -1;
+    }
+
+    private byte state(int cell) {
+        int flags = environment.getCellFlags(cell % width, cell / width);
+        boolean element = (flags & (Environment.FLAG_LIGHT | Environment.FLAG_SIGN)) != 0;
+        return (byte) (planner.getRule(cell) | (element ? ELEMENT : 0));
+    }
+
+    /**
+     * Checks reachability and every step against PathPlanner.findPath on small random maps dense
+     * with walls, NO_ENTRY and ONE_WAY cells and tiny clusters, including maps of one cluster.
+     * @throws IllegalStateException on the first trip where they disagree
+     */
+    static void checkRandomMaps(int maps, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int m = 0; m < maps; m++) {
+            int w = 3 + random.nextInt(12);
+            int h = 3 + random.nextInt(12);
+            Environment environment = new Environment(w, h);
+            for (int i = 0; i < w * h / 5; i++) {
+                environment.addWall(random.nextInt(w), random.nextInt(h));
+            }
+            for (int i = 0; i < w * h / 4; i++) {
+                int x = random.nextInt(w);
+                int y = random.nextInt(h);
+                if (!environment.isWall(x, y)) {
+                    environment.addTrafficSign(x, y, random.nextInt(5) == 0 ? TrafficSignType.NO_ENTRY : TrafficSignType.ONE_WAY);
+                }
+            }
+            PathPlanner planner = new PathPlanner(environment);
+            HierarchicalPlanner hierarchy = new HierarchicalPlanner(planner, m % 8 == 0 ? 32 : 2 + random.nextInt(4));
+            for (int k = 0; k < 20; k++) {
+                int[] trip = {random.nextInt(w), random.nextInt(h), random.nextInt(w), random.nextInt(h)};
+                int[] grid = planner.findPath(trip[0], trip[1], trip[2], trip[3]);
+                int[] path = hierarchy.findPath(trip[0], trip[1], trip[2], trip[3]);
+                if ((grid == null) != (path == null)) {
+                    throw new IllegalStateException("Reachability differs on map " + m + " for trip " + Arrays.toString(trip));
+                }
+                for (int i = 1; path != null && i < path.length; i++) {
+                    int from = path[i - 1];
+                    boolean legal = false;
+                    for (int dir = 0; dir < 4; dir++) {
+                        legal |= planner.canMove(from % w, from / w, dir) && from + DY[dir] * w + DX[dir] == path[i];
+                    }
+                    if (!legal) {
+                        throw new IllegalStateException("Illegal step on map " + m + " for trip " + Arrays.toString(trip));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks random small maps, then compares routing on the hierarchy with PathPlanner.findPath
+     * over random long trips on a city grid with scattered obstacles and ONE_WAY signs (so the
+     * grid planner runs plain A*), then times incremental updates after walls are added.
+     * Usage: HierarchicalPlanner [size] [queries] [clusterSize]
+     */
+    public static void main(String[] args) {
+        checkRandomMaps(5000, 11);
+        System.out.println("5000 random small maps: routes agree with the grid planner");
+        int mapSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int clusterSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        Environment environment = new Environment(mapSize, mapSize);
+        environment.createCityGrid(12);
+        for (int y = 0; y < mapSize; y += 24) {
+            for (int x = 0; x < mapSize; x += 24) {
+                environment.addTrafficLight(x, y, TrafficLightState.RED);
+            }
+        }
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < mapSize * mapSize / 400; i++) {
+            environment.addWall(random.nextInt(mapSize), random.nextInt(mapSize)); // road works and parked trucks
+        }
+        for (int i = 0; i < mapSize / 4; i++) {
+            int x = random.nextInt(mapSize);
+            int y = random.nextInt(mapSize);
+            if (!environment.isWall(x, y)) {
+                environment.addTrafficSign(x, y, TrafficSignType.ONE_WAY); // turns off JPS in the grid planner
+            }
+        }
+        int[][] trips = new int[queries][];
+        for (int i = 0; i < queries; i++) {
+            int[] trip;
+            do {
+                trip = new int[]{random.nextInt(mapSize), random.nextInt(mapSize), random.nextInt(mapSize),
+                        random.nextInt(mapSize)};
+            } while (environment.isWall(trip[0], trip[1]) || environment.isWall(trip[2], trip[3]));
+            trips[i] = trip;
+        }
+
+        PathPlanner planner = new PathPlanner(environment);
+        long start = System.nanoTime();
+        HierarchicalPlanner hierarchy = new HierarchicalPlanner(planner, clusterSize);
+        hierarchy.getNodeCount();
+        System.out.printf("%dx%d map: %d clusters, %d nodes, built in %.1f ms%n", mapSize, mapSize,
+                hierarchy.getClusterCount(), hierarchy.getNodeCount(), (System.nanoTime() - start) / 1e6);
+
+        long gridNanos = 0;
+        long routeNanos = 0;
+        long pathNanos = 0;
+        long gridLength = 0;
+        long hierarchyLength = 0;
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            gridNanos = routeNanos = pathNanos = gridLength = hierarchyLength = 0;
+            for (int[] trip : trips) {
+                long t0 = System.nanoTime();
+                int[] grid = planner.findPath(trip[0], trip[1], trip[2], trip[3]);
+                long t1 = System.nanoTime();
+                int[] route = hierarchy.findRoute(trip[0], trip[1], trip[2], trip[3]);
+                long t2 = System.nanoTime();
+                int[] path = hierarchy.findPath(trip[0], trip[1], trip[2], trip[3]);
+                long t3 = System.nanoTime();
+                gridNanos += t1 - t0;
+                routeNanos += t2 - t1;
+                pathNanos += t3 - t2;
+                if ((grid == null) != (route == null)) {
+                    throw new IllegalStateException("Reachability differs for trip " + Arrays.toString(trip));
+                }
+                if (grid != null) {
+                    gridLength += grid.length;
+                    hierarchyLength += path.length;
+                }
+            }
+        }
+        System.out.printf("grid A*/JPS %.1f us, hierarchy route %.1f us, refined path %.1f us per query; "
+                        + "paths %.2f%% longer%n", gridNanos / 1e3 / queries, routeNanos / 1e3 / queries,
+                pathNanos / 1e3 / queries, 100.0 * (hierarchyLength - gridLength) / gridLength);
+
+        long rebuiltBefore = hierarchy.getClustersRebuilt();
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            int x = random.nextInt(mapSize);
+            int y = random.nextInt(mapSize);
+            environment.addWall(x, y);
+            hierarchy.findRoute(trips[i % queries][0], trips[i % queries][1], trips[i % queries][2], trips[i % queries][3]);
+        }
+        System.out.printf("100 walls added one query apart: %d clusters rebuilt, %.1f us per edit and query%n",
+                hierarchy.getClustersRebuilt() - rebuiltBefore, (System.nanoTime() - start) / 1e3 / 100);
+    }
+}
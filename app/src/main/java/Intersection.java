@@ -0,0 +1,425 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Signal controller for the lights of one junction, replacing their independent fixed cycles.
+ * <p>
+ * Lights are grouped into phases: the lights of one phase are green together and every other
+ * phase is red, with a yellow transition between phases. Virtual loop detectors cover the
+ * approach cells of each phase and read the fleet's OccupancyGrid every tick; a vehicle on a
+ * detector that has not moved since the last tick counts as queued. The controller then picks
+ * the next phase in one of three ways:
+ * <ul>
+ *   <li>FIXED: every phase gets maxGreen ticks in turn, like uncoordinated timed lights but
+ *       without conflicting greens;</li>
+ *   <li>ACTUATED: after minGreen the green is held while vehicles are on its detectors and
+ *       handed to the next phase with a queue once they clear (gap-out) or at maxGreen;</li>
+ *   <li>MAX_PRESSURE: after minGreen the green goes to the phase with the highest pressure,
+ *       its queued vehicles minus the vehicles on its exit detectors, so a phase is not served
+ *       while the road it feeds is backed up. maxGreen still bounds a green while others wait.</li>
+ * </ul>
+ * The controller counts vehicles discharged over its stop lines (leaving a light cell) and the
+ * delay they accumulated (vehicle-ticks spent queued), from which throughput and average delay
+ * follow. Lights added to a phase are taken off the engine's TrafficLightScheduler. Add the
+ * intersection to the engine with addAgent once its phases are set up. Its phase, timers,
+ * detector readings and counters go into the engine's checkpoints through saveState.
+ */
+public class Intersection implements Agent {
+
+    public enum Control {
+        FIXED, ACTUATED, MAX_PRESSURE
+    }
+
+    /**
+     * @param minGreen ticks a phase stays green before the controller may switch
+     * @param maxGreen ticks a phase may stay green while another phase has a queue
+     * @param yellow ticks of yellow between two phases
+     */
+    public record Timing(int minGreen, int maxGreen, int yellow) {
+
+        public Timing {
+            if (minGreen < 1 || maxGreen < minGreen || yellow < 1) {
+                throw new IllegalArgumentException("Timing needs 1 <= minGreen <= maxGreen and yellow >= 1.");
+            }
+        }
+
+        public static Timing defaults() {
+            return new Timing(5, 30, 3);
+        }
+    }
+
+    private static final class Phase {
+        int[] lights = new int[0]; // cell indices
+        int[] lightOccupant = new int[0];
+        int[] detectors = new int[0];
+        int[] detectorOccupant = new int[0];
+        int[] exits = new int[0];
+        int queue; // stopped vehicles on the detectors
+        int presence; // any vehicles on the detectors
+        int exitOccupancy;
+    }
+
+    private final Environment environment;
+    private final TrafficLightScheduler scheduler;
+    private final OccupancyGrid occupancy;
+    private final Control control;
+    private final Timing timing;
+    private final int width;
+    private final List<Phase> phases = new ArrayList<>();
+    private final LightSetter lightSetter = new LightSetter();
+
+    private int current;
+    private int next = -1;
+    private int elapsed; // ticks of green so far
+    private int yellowLeft;
+
+    private long ticks;
+    private long discharged;
+    private long delay;
+    private long switches;
+
+    public Intersection(SimulationEngine engine, Control control, Timing timing) {
+        this.environment = engine.getEnvironment();
+        this.scheduler = engine.getLightScheduler();
+        this.occupancy = engine.getFleet().getOccupancy();
+        this.control = control;
+        this.timing = timing;
+        this.width = environment.getWidth();
+    }
+
+    /**
+     * Signalizes the crossing of two streets two cells wide, as laid out by
+     * Environment.createCityGrid, whose top-left crossing cell is (x,y). Lights go on the four
+     * approach cell pairs, which are added to the map if need be: north and south form phase 0,
+     * west and east phase 1. Each approach gets a detector reaching the given number of cells
+     * back from its light; approaches off the map or walled off are left out.
+     */
+    public static Intersection cityCrossing(SimulationEngine engine, int x, int y, int reach,
+                                            Control control, Timing timing) {
+        Intersection crossing = new Intersection(engine, control, timing);
+        int northSouth = crossing.addPhase();
+        int westEast = crossing.addPhase();
+        for (int lane = 0; lane < 2; lane++) {
+            crossing.addApproach(northSouth, x + lane, y - 1, 0, -1, reach);
+            crossing.addApproach(northSouth, x + lane, y + 2, 0, 1, reach);
+            crossing.addApproach(westEast, x - 1, y + lane, -1, 0, reach);
+            crossing.addApproach(westEast, x + 2, y + lane, 1, 0, reach);
+        }
+        return crossing;
+    }
+
+    private void addApproach(int phase, int x, int y, int dx, int dy, int reach) {
+        if ((environment.getCellFlags(x, y) & Environment.FLAG_BLOCKED) != 0) {
+            return;
+        }
+        if ((environment.getCellFlags(x, y) & Environment.FLAG_LIGHT) == 0) {
+            environment.addTrafficLight(x, y, TrafficLightState.RED);
+        }
+        addLight(phase, x, y);
+        for (int i = 1; i <= reach; i++) {
+            int cx = x + dx * i;
+            int cy = y + dy * i;
+            if ((environment.getCellFlags(cx, cy) & Environment.FLAG_BLOCKED) != 0) {
+                break;
+            }
+            addDetector(phase, cx, cy, cx, cy);
+        }
+    }
+
+    /** @return the id of a new, empty phase; phase 0 starts green */
+    public int addPhase() {
+        phases.add(new Phase());
+        return phases.size() - 1;
+    }
+
+    /** Puts the traffic lights on (x,y) under this controller as part of the phase. */
+    public void addLight(int phase, int x, int y) {
+        if ((environment.getCellFlags(x, y) & Environment.FLAG_LIGHT) == 0) {
+            throw new IllegalArgumentException("No traffic light at (" + x + "," + y + ")");
+        }
+        Phase p = phases.get(phase);
+        p.lights = append(p.lights, y * width + x);
+        p.lightOccupant = append(p.lightOccupant, -1);
+        scheduler.control(x, y, true);
+        setLights(x, y, phase == current ? TrafficLightState.GREEN : TrafficLightState.RED);
+    }
+
+    /** Adds loop detectors on every road cell of the rectangle, counting the phase's queue. */
+    public void addDetector(int phase, int x0, int y0, int x1, int y1) {
+        Phase p = phases.get(phase);
+        for (int cell : roadCells(x0, y0, x1, y1)) {
+            p.detectors = append(p.detectors, cell);
+            p.detectorOccupant = append(p.detectorOccupant, -1);
+        }
+    }
+
+    /** Adds detectors on the road the phase feeds into; MAX_PRESSURE holds back a phase whose exit is full. */
+    public void addExitDetector(int phase, int x0, int y0, int x1, int y1) {
+        Phase p = phases.get(phase);
+        for (int cell : roadCells(x0, y0, x1, y1)) {
+            p.exits = append(p.exits, cell);
+        }
+    }
+
+    @Override
+    public void step(Environment environment, long tick) {
+        if (phases.isEmpty()) {
+            return;
+        }
+        ticks++;
+        sense();
+        if (yellowLeft > 0) {
+            if (--yellowLeft == 0) {
+                setPhase(current, TrafficLightState.RED);
+                current = next;
+                next = -1;
+                elapsed = 0;
+                setPhase(current, TrafficLightState.GREEN);
+            }
+            return;
+        }
+        elapsed++;
+        int target = choose();
+        if (target != current) {
+            setPhase(current, TrafficLightState.YELLOW);
+            next = target;
+            yellowLeft = timing.yellow();
+            switches++;
+        }
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(current);
+        out.writeInt(next);
+        out.writeInt(elapsed);
+        out.writeInt(yellowLeft);
+        out.writeLong(ticks);
+        out.writeLong(discharged);
+        out.writeLong(delay);
+        out.writeLong(switches);
+        out.writeInt(phases.size());
+        for (Phase phase : phases) {
+            out.writeInt(phase.queue);
+            out.writeInt(phase.presence);
+            out.writeInt(phase.exitOccupancy);
+            writeInts(out, phase.detectorOccupant);
+            writeInts(out, phase.lightOccupant);
+        }
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        int savedCurrent = in.readInt();
+        int savedNext = in.readInt();
+        int savedElapsed = in.readInt();
+        int savedYellowLeft = in.readInt();
+        long savedTicks = in.readLong();
+        long savedDischarged = in.readLong();
+        long savedDelay = in.readLong();
+        long savedSwitches = in.readLong();
+        if (in.readInt() != phases.size()) {
+            throw new IOException("Checkpoint was taken with a different number of phases.");
+        }
+        for (Phase phase : phases) {
+            int queue = in.readInt();
+            int presence = in.readInt();
+            int exitOccupancy = in.readInt();
+            readInts(in, phase.detectorOccupant);
+            readInts(in, phase.lightOccupant);
+            phase.queue = queue;
+            phase.presence = presence;
+            phase.exitOccupancy = exitOccupancy;
+        }
+        current = savedCurrent;
+        next = savedNext;
+        elapsed = savedElapsed;
+        yellowLeft = savedYellowLeft;
+        ticks = savedTicks;
+        discharged = savedDischarged;
+        delay = savedDelay;
+        switches = savedSwitches;
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /** Fills values, which must be as long as the array that was written. */
+    private static void readInts(DataInput in, int[] values) throws IOException {
+        if (in.readInt() != values.length) {
+            throw new IOException("Checkpoint was taken with different lights or detectors.");
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+    }
+
+    private void sense() {
+        for (Phase phase : phases) {
+            phase.queue = 0;
+            phase.presence = 0;
+            for (int i = 0; i < phase.detectors.length; i++) {
+                int occupant = occupantAt(phase.detectors[i]);
+                if (occupant >= 0) {
+                    phase.presence++;
+                    if (occupant == phase.detectorOccupant[i]) {
+                        phase.queue++;
+                    }
+                }
+                phase.detectorOccupant[i] = occupant;
+            }
+            delay += phase.queue;
+            phase.exitOccupancy = 0;
+            for (int cell : phase.exits) {
+                if (occupantAt(cell) >= 0) {
+                    phase.exitOccupancy++;
+                }
+            }
+            for (int i = 0; i < phase.lights.length; i++) {
+                int occupant = occupantAt(phase.lights[i]);
+                if (phase.lightOccupant[i] >= 0 && occupant != phase.lightOccupant[i]) {
+                    discharged++; // the vehicle on the stop line has moved on
+                }
+                phase.lightOccupant[i] = occupant;
+            }
+        }
+    }
+
+    private int choose() {
+        if (phases.size() < 2 || elapsed < timing.minGreen()) {
+            return current;
+        }
+        return switch (control) {
+            case FIXED -> elapsed >= timing.maxGreen() ? (current + 1) % phases.size() : current;
+            case ACTUATED -> {
+                int waiting = nextWithQueue();
+                boolean gapOut = phases.get(current).presence == 0;
+                yield waiting >= 0 && (gapOut || elapsed >= timing.maxGreen()) ? waiting : current;
+            }
+            case MAX_PRESSURE -> {
+                int best = current;
+                for (int phase = 0; phase < phases.size(); phase++) {
+                    if (pressure(phase) > pressure(best)) {
+                        best = phase;
+                    }
+                }
+                if (best == current && elapsed >= timing.maxGreen()) {
+                    int waiting = nextWithQueue();
+                    best = waiting >= 0 ? waiting : current;
+                }
+                yield best;
+            }
+        };
+    }
+
+    private int pressure(int phase) {
+        Phase p = phases.get(phase);
+        return p.queue - p.exitOccupancy;
+    }
+
+    /** @return the first phase after the current one, in order, with a queue; -1 if none */
+    private int nextWithQueue() {
+        for (int i = 1; i < phases.size(); i++) {
+            int phase = (current + i) % phases.size();
+            if (phases.get(phase).queue > 0) {
+                return phase;
+            }
+        }
+        return -1;
+    }
+
+    private int occupantAt(int cell) {
+        return occupancy.occupantAt(cell % width, cell / width);
+    }
+
+    private void setPhase(int phase, TrafficLightState state) {
+        for (int cell : phases.get(phase).lights) {
+            setLights(cell % width, cell / width, state);
+        }
+    }
+
+    private void setLights(int x, int y, TrafficLightState state) {
+        lightSetter.state = state;
+        environment.forEachElement(x, y, lightSetter);
+    }
+
+    private static final class LightSetter implements Environment.ElementVisitor {
+        TrafficLightState state;
+
+        @Override
+        public void visitLight(int x, int y, TrafficLight light) {
+            if (light.getState() != state) {
+                light.setState(state);
+            }
+        }
+    }
+
+    private int[] roadCells(int x0, int y0, int x1, int y1) {
+        int[] cells = new int[0];
+        for (int y = Math.min(y0, y1); y <= Math.max(y0, y1); y++) {
+            for (int x = Math.min(x0, x1); x <= Math.max(x0, x1); x++) {
+                if ((environment.getCellFlags(x, y) & Environment.FLAG_BLOCKED) == 0) {
+                    cells = append(cells, y * width + x);
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] grown = Arrays.copyOf(array, array.length + 1);
+        grown[array.length] = value;
+        return grown;
+    }
+
+    public Control getControl() {
+        return control;
+    }
+
+    public int getPhaseCount() {
+        return phases.size();
+    }
+
+    /** @return the phase that is green, or yellow while changing */
+    public int getCurrentPhase() {
+        return current;
+    }
+
+    /** @return stopped vehicles on the phase's detectors at the last tick */
+    public int getQueue(int phase) {
+        return phases.get(phase).queue;
+    }
+
+    /** @return vehicles that crossed a stop line of this intersection */
+    public long getDischarged() {
+        return discharged;
+    }
+
+    /** @return vehicle-ticks spent queued on the detectors */
+    public long getTotalDelay() {
+        return delay;
+    }
+
+    /** @return queued ticks per discharged vehicle */
+    public double getAverageDelay() {
+        return discharged == 0 ? 0 : delay / (double) discharged;
+    }
+
+    /** @return discharged vehicles per tick */
+    public double getThroughput() {
+        return ticks == 0 ? 0 : discharged / (double) ticks;
+    }
+
+    /** @return how many times the green moved to another phase */
+    public long getSwitches() {
+        return switches;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * How a kind of robot moves and sees. Distances are in cells and times in ticks (for a Car, one
+ * keypress counts as one tick).
+ * @param maxSpeed top speed in cells per tick; may be fractional, 0 keeps the robot parked
+ * @param acceleration speed gained per tick when starting off or after being stopped
+ * @param vision perception radius
+ * @param footprint radius of the robot's body, at most half a cell since robots hold one cell each
+ */
+public record KinematicProfile(double maxSpeed, double acceleration, double vision, double footprint) {
+
+    /** Top speed on a cell with a SPEED_LIMIT sign, whatever the profile allows. */
+    public static final double SPEED_LIMIT = 0.5;
+
+    /** One cell per tick from a standing start: the behaviour robots had before profiles. */
+    public static final KinematicProfile DEFAULT = new KinematicProfile(1, 1, 10, 0.4);
+
+    public KinematicProfile {
+        if (!(maxSpeed >= 0) || !(acceleration > 0) || !(vision >= 0) || !(footprint > 0) || footprint > 0.5) {
+            throw new IllegalArgumentException("Invalid kinematic profile: speed and vision must be non-negative, "
+                    + "acceleration positive and footprint in (0,0.5].");
+        }
+    }
+
+    public KinematicProfile withMaxSpeed(double maxSpeed) {
+        return new KinematicProfile(maxSpeed, acceleration, vision, footprint);
+    }
+
+    public KinematicProfile withVision(double vision) {
+        return new KinematicProfile(maxSpeed, acceleration, vision, footprint);
+    }
+
+    /** @return the speed allowed on a cell with the given {@link Environment#getCellFlags} bits */
+    public double speedLimit(int cellFlags) {
+        return (cellFlags & Environment.FLAG_SPEED_LIMIT) != 0 ? Math.min(maxSpeed, SPEED_LIMIT) : maxSpeed;
+    }
+}
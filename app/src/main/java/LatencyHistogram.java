@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds with power-of-two buckets.
+ * Recording is a few array writes and never allocates. Each histogram has a single writer
+ * (the engine thread or the FX thread); readers on other threads may see a sample that is
+ * counted but not yet summed, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+    
+    private static final int BUCKETS = 64;
+    
+    private final long[] counts = new long[BUCKETS]; // bucket b holds values in [2^(b-1), 2^b)
+    private long count;
+    private long sum;
+    private long max;
+    
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[BUCKETS - Long.numberOfLeadingZeros(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public long getMax() {
+        return max;
+    }
+    
+    public double getMean() {
+        long n = count;
+        return n == 0 ? 0 : (double) sum / n;
+    }
+    
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return upper bound of the bucket holding that percentile, so at most 2x the true value
+     */
+    public long getPercentile(double fraction) {
+        long n = count;
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return bucket == 0 ? 0 : Math.min(max, (1L << bucket) - 1);
+            }
+        }
+        return max;
+    }
+    
+    /** Adds the other histogram's samples to this one, e.g. to combine per-thread histograms. */
+    public void add(LatencyHistogram other) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] += other.counts[bucket];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+    
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+}
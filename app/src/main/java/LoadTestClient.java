@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for {@link SimulationServer}: many clients, each on a virtual thread, send requests
+ * back to back for a fixed time while WebSocket subscribers take the pushed tick deltas.
+ * The request mix is mostly cell and status queries with some agent and light listings, as a
+ * planner polling the simulation would send. Reports requests per second, latency percentiles,
+ * failed requests, frames received per subscriber, and the engine's tick rate under load.
+ * Without a URL it starts a server in this process on a running city-grid simulation.
+ * Usage: LoadTestClient [clients] [seconds] [websockets] [url]
+ */
+public class LoadTestClient {
+
+    private final HttpClient client;
+    private final String base;
+    private final int width;
+    private final int height;
+    private final AtomicLong failures = new AtomicLong();
+
+    LoadTestClient(HttpClient client, String base) throws IOException, InterruptedException {
+        this.client = client;
+        this.base = base;
+        String status = get("/status").body();
+        this.width = jsonInt(status, "width");
+        this.height = jsonInt(status, "height");
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /** Sends requests until the deadline, recording each one's latency. */
+    private void runClient(long seed, long deadline, LatencyHistogram latency) {
+        Random random = new Random(seed);
+        while (System.nanoTime() < deadline) {
+            int pick = random.nextInt(100);
+            String path;
+            if (pick < 60) {
+                path = "/cell?x=" + random.nextInt(width) + "&y=" + random.nextInt(height);
+            } else if (pick < 85) {
+                path = "/status";
+            } else if (pick < 95) {
+                path = "/lights";
+            } else {
+                path = "/agents";
+            }
+            long start = System.nanoTime();
+            try {
+                HttpResponse<String> response = get(path);
+                if (response.statusCode() != 200) {
+                    failures.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /** Counts the frames pushed to one WebSocket subscriber. */
+    private static final class Subscriber implements WebSocket.Listener {
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong fullFrames = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        private final StringBuilder partial = new StringBuilder();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                frames.incrementAndGet();
+                bytes.addAndGet(partial.length());
+                if (partial.indexOf("\"type\":\"full\"") >= 0) {
+                    fullFrames.incrementAndGet();
+                }
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+
+    private static int jsonInt(String json, String name) {
+        int at = json.indexOf("\"" + name + "\":");
+        if (at < 0) {
+            throw new IllegalArgumentException("No " + name + " in " + json);
+        }
+        int start = at + name.length() + 3;
+        int end = start;
+        while (end < json.length() && (Character.isDigit(json.charAt(end)) || json.charAt(end) == '-')) {
+            end++;
+        }
+        return Integer.parseInt(json.substring(start, end));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+        int webSockets = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String base = args.length > 3 ? args[3] : null;
+
+        SimulationServer server = null;
+        if (base == null) {
+            Environment environment = new Environment(200, 200);
+            environment.createCityGrid(12);
+            for (int y = 0; y < 200; y += 12) {
+                for (int x = 0; x < 200; x += 12) {
+                    environment.addTrafficLight(x, y, (x + y) % 24 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+                }
+            }
+            SimulationEngine engine = new SimulationEngine(environment, 1);
+            engine.getFleet().spawnRandom(2_000);
+            server = new SimulationServer(engine, 0);
+            server.start();
+            engine.setTickRate(100);
+            engine.start();
+            base = "http://localhost:" + server.getPort();
+        }
+
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(threads).build();
+        LoadTestClient test = new LoadTestClient(http, base);
+        int webSocketPort = jsonInt(test.get("/status").body(), "webSocketPort");
+        URI webSocketUri = URI.create("ws://" + URI.create(base).getHost() + ":" + webSocketPort + "/");
+        List<Subscriber> subscribers = new ArrayList<>();
+        List<WebSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < webSockets; i++) {
+            Subscriber subscriber = new Subscriber();
+            subscribers.add(subscriber);
+            sockets.add(http.newWebSocketBuilder().buildAsync(webSocketUri, subscriber).join());
+        }
+
+        String before = test.get("/status").body();
+        long start = System.nanoTime();
+        long deadline = start + (long) (seconds * 1e9);
+        List<LatencyHistogram> latencies = new ArrayList<>();
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            LatencyHistogram latency = new LatencyHistogram();
+            latencies.add(latency);
+            long seed = i;
+            running.add(CompletableFuture.runAsync(() -> test.runClient(seed, deadline, latency), threads));
+        }
+        CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        String after = test.get("/status").body();
+
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram latency : latencies) {
+            total.add(latency);
+        }
+        long frames = 0;
+        long fullFrames = 0;
+        long bytes = 0;
+        for (Subscriber subscriber : subscribers) {
+            frames += subscriber.frames.get();
+            fullFrames += subscriber.fullFrames.get();
+            bytes += subscriber.bytes.get();
+        }
+        double ticks = jsonInt(after, "tick") - jsonInt(before, "tick");
+        System.out.printf("%d clients for %.1f s against %s%n", clients, elapsed, base);
+        System.out.printf("requests: %d (%.0f/s), failed %d%n", total.getCount(), total.getCount() / elapsed, test.failures.get());
+        System.out.printf("latency: mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                total.getMean() / 1e6, total.getPercentile(0.5) / 1e6, total.getPercentile(0.9) / 1e6,
+                total.getPercentile(0.99) / 1e6, total.getMax() / 1e6);
+        System.out.printf("engine: %.0f ticks/s during the test%n", ticks / elapsed);
+        if (webSockets > 0) {
+            System.out.printf("websockets: %d subscribers, %.1f frames/s each (%d full), %.0f bytes/frame%n",
+                    webSockets, frames / elapsed / webSockets, fullFrames, frames == 0 ? 0.0 : bytes / (double) frames);
+        }
+
+        for (WebSocket socket : sockets) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "done").get(5, TimeUnit.SECONDS);
+        }
+        if (server != null) {
+            server.close();
+        }
+        threads.shutdownNow();
+        System.exit(test.failures.get() == 0 ? 0 : 1);
+    }
+}
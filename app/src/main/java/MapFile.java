@@ -0,0 +1,297 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary map/scenario format and ASCII import/export.
+ * <p>
+ * Binary layout (little-endian):
+ * <pre>
+ *   int    magic 'ARMP'
+ *   short  format version
+ *   int    width, height
+ *   int    light count, sign count
+ *   byte[width*height]  CellType ordinal per cell, row-major (same as Environment's packed grid)
+ *   lights: int x, int y, byte state, int red, int yellow, int green, int offset
+ *   signs:  int x, int y, byte type
+ * </pre>
+ * Loading reads the cell block with one bulk read into the byte array the Environment keeps as
+ * its grid, so no per-cell objects are created; the grid is still a full copy on the heap.
+ * <p>
+ * The ASCII form is the {@link Cell#getDisplayChar()} legend, optionally wrapped in the frame
+ * printed by {@link Environment#display()}. 'T' is shared by ONE_WAY and NO_ENTRY and imports as ONE_WAY.
+ */
+public final class MapFile {
+    
+    private static final int MAGIC = 0x504D5241; // "ARMP" read little-endian
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 2 + 4 * 4;
+    private static final int LIGHT_BYTES = 4 + 4 + 1 + 4 * 4;
+    private static final int SIGN_BYTES = 4 + 4 + 1;
+    private static final TrafficLightState[] LIGHT_STATES = TrafficLightState.values();
+    private static final TrafficSignType[] SIGN_TYPES = TrafficSignType.values();
+    
+    private MapFile() {
+    }
+    
+    public static void save(Environment environment, Path path) throws IOException {
+        List<int[]> signs = new ArrayList<>();
+        environment.forEachOccupiedCell((x, y, cell) -> {
+            for (TrafficElement element : cell.getTrafficElements()) {
+                if (element instanceof TrafficSign sign) {
+                    signs.add(new int[]{x, y, sign.getType().ordinal()});
+                }
+            }
+        });
+        List<TrafficLight> lights = environment.getTrafficLights();
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort(VERSION)
+                    .putInt(environment.getWidth()).putInt(environment.getHeight())
+                    .putInt(lights.size()).putInt(signs.size());
+            writeFully(channel, header.flip());
+            if (environment.isChunked()) {
+                // No flat array to hand over: stream the grid a row at a time
+                byte[] row = new byte[environment.getWidth()];
+                for (int y = 0; y < environment.getHeight(); y++) {
+                    environment.copyRow(y, row);
+                    writeFully(channel, ByteBuffer.wrap(row));
+                }
+            } else {
+                writeFully(channel, ByteBuffer.wrap(environment.cellTypeArray()));
+            }
+            
+            ByteBuffer elements = ByteBuffer.allocate(lights.size() * LIGHT_BYTES + signs.size() * SIGN_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (TrafficLight light : lights) {
+                elements.putInt(light.getX()).putInt(light.getY()).put((byte) light.getState().ordinal())
+                        .putInt(light.getDuration(TrafficLightState.RED))
+                        .putInt(light.getDuration(TrafficLightState.YELLOW))
+                        .putInt(light.getDuration(TrafficLightState.GREEN))
+                        .putInt(light.getOffset());
+            }
+            for (int[] sign : signs) {
+                elements.putInt(sign[0]).putInt(sign[1]).put((byte) sign[2]);
+            }
+            writeFully(channel, elements.flip());
+        }
+    }
+    
+    /** @return {width, height} of a map file, read from its header alone */
+    public static int[] readDimensions(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getShort() != VERSION) {
+                throw new IOException("Not a map file: " + path);
+            }
+            return new int[]{header.getInt(), header.getInt()};
+        }
+    }
+    
+    public static Environment load(Path path) throws IOException {
+        return loadRows(path, 0, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Loads only rows [y0, y1) of a map, clipped to its height, as an Environment of that many
+     * rows: map row y0 becomes row 0 and lights and signs outside the band are skipped. Only the
+     * band's cells are read from the file, so a worker owning one tile of a huge map never holds
+     * the rest.
+     */
+    public static Environment loadRows(Path path, int y0, int y1) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_BYTES || !readFully(channel, buffer, 0) || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a map file: " + path);
+            }
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported map format version " + version + " in " + path);
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int lightCount = buffer.getInt();
+            int signCount = buffer.getInt();
+            long expected = HEADER_BYTES + (long) width * height
+                    + (long) lightCount * LIGHT_BYTES + (long) signCount * SIGN_BYTES;
+            if (width <= 0 || height <= 0 || channel.size() != expected) {
+                throw new IOException("Corrupt map file: " + path);
+            }
+            
+            int from = Math.max(0, y0);
+            int to = Math.min(height, y1);
+            if (from >= to) {
+                throw new IllegalArgumentException("Rows " + y0 + ".." + y1 + " are outside the map's " + height + " rows");
+            }
+            
+            byte[] cells = new byte[Math.multiplyExact(width, to - from)];
+            buffer = ByteBuffer.allocate(lightCount * LIGHT_BYTES + signCount * SIGN_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, ByteBuffer.wrap(cells), HEADER_BYTES + (long) from * width)
+                    || !readFully(channel, buffer, HEADER_BYTES + (long) width * height)) {
+                throw new IOException("Corrupt map file: " + path);
+            }
+            Environment environment = new Environment(width, to - from, cells);
+            
+            for (int i = 0; i < lightCount; i++) {
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                TrafficLight light = new TrafficLight(LIGHT_STATES[buffer.get()]);
+                light.setDurations(buffer.getInt(), buffer.getInt(), buffer.getInt());
+                light.setOffset(buffer.getInt());
+                if (y >= from && y < to) {
+                    environment.getCell(x, y - from).addTrafficElement(light);
+                }
+            }
+            for (int i = 0; i < signCount; i++) {
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                TrafficSignType type = SIGN_TYPES[buffer.get()];
+                if (y >= from && y < to) {
+                    environment.addTrafficSign(x, y - from, type);
+                }
+            }
+            return environment;
+        }
+    }
+    
+    /**
+     * Streams an ASCII layout into an Environment. Lines are read one at a time and the grid is
+     * kept as one byte per cell until the end, so large layouts never exist as Cell objects.
+     */
+    public static Environment importAscii(Reader source) throws IOException {
+        BufferedReader reader = source instanceof BufferedReader buffered ? buffered : new BufferedReader(source);
+        ByteArrayOutputStream cells = new ByteArrayOutputStream();
+        List<int[]> elements = new ArrayList<>(); // x, y, display char
+        int width = -1;
+        int height = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("Environment (") || line.startsWith("+") || line.isEmpty()) {
+                continue; // header and frame lines written by Environment.display()
+            }
+            if (line.startsWith("|") && line.endsWith("|") && line.length() >= 2) {
+                line = line.substring(1, line.length() - 1);
+            }
+            if (width < 0) {
+                width = line.length();
+            } else if (line.length() != width) {
+                throw new IOException("Row " + height + " has " + line.length() + " cells, expected " + width);
+            }
+            for (int x = 0; x < width; x++) {
+                char c = line.charAt(x);
+                switch (c) {
+                    case '#' -> cells.write(CellType.WALL.ordinal());
+                    case ' ', '.' -> cells.write(CellType.ROAD.ordinal());
+                    case 'R', 'Y', 'G', 'S', 'y', 'L', 'T' -> {
+                        cells.write(CellType.ROAD.ordinal());
+                        elements.add(new int[]{x, height, c});
+                    }
+                    default -> throw new IOException("Unknown map character '" + c + "' at (" + x + "," + height + ")");
+                }
+            }
+            height++;
+        }
+        if (width <= 0 || height == 0) {
+            throw new IOException("Empty map layout");
+        }
+        
+        Environment environment = new Environment(width, height, cells.toByteArray());
+        for (int[] element : elements) {
+            int x = element[0];
+            int y = element[1];
+            switch ((char) element[2]) {
+                case 'R' -> environment.addTrafficLight(x, y, TrafficLightState.RED);
+                case 'Y' -> environment.addTrafficLight(x, y, TrafficLightState.YELLOW);
+                case 'G' -> environment.addTrafficLight(x, y, TrafficLightState.GREEN);
+                case 'S' -> environment.addTrafficSign(x, y, TrafficSignType.STOP);
+                case 'y' -> environment.addTrafficSign(x, y, TrafficSignType.YIELD);
+                case 'L' -> environment.addTrafficSign(x, y, TrafficSignType.SPEED_LIMIT);
+                default -> environment.addTrafficSign(x, y, TrafficSignType.ONE_WAY);
+            }
+        }
+        return environment;
+    }
+    
+    /** Writes the layout row by row in the same legend, without the display() frame. */
+    public static void exportAscii(Environment environment, Writer target) throws IOException {
+        BufferedWriter writer = target instanceof BufferedWriter buffered ? buffered : new BufferedWriter(target);
+        char[] row = new char[environment.getWidth()];
+        for (int y = 0; y < environment.getHeight(); y++) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = environment.isWall(x, y) ? '#' : ' ';
+            }
+            environment.forEachOccupiedCellInRow(y, (x, ignored, cell) -> row[x] = cell.getDisplayChar());
+            writer.write(row);
+            writer.newLine();
+            if (y % 1024 == 0) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+    }
+    
+    /** Fills the buffer from the given file position and flips it; false if the file ends first. */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        buffer.flip();
+        return true;
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /**
+     * Converts and inspects map files.
+     * Usage: MapFile import layout.txt map.armp | MapFile export map.armp layout.txt | MapFile info map.armp
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("import")) {
+            Environment environment;
+            try (Reader reader = Files.newBufferedReader(Path.of(args[1]), StandardCharsets.UTF_8)) {
+                environment = importAscii(reader);
+            }
+            save(environment, Path.of(args[2]));
+        } else if (args.length == 3 && args[0].equals("export")) {
+            Environment environment = load(Path.of(args[1]));
+            try (Writer writer = Files.newBufferedWriter(Path.of(args[2]), StandardCharsets.UTF_8)) {
+                exportAscii(environment, writer);
+            }
+        } else if (args.length == 2 && args[0].equals("info")) {
+            long start = System.nanoTime();
+            Environment environment = load(Path.of(args[1]));
+            System.out.printf("%dx%d, %d lights, %d occupied cells, loaded in %.1f ms%n",
+                    environment.getWidth(), environment.getHeight(), environment.getTrafficLights().size(),
+                    environment.getOccupiedCellCount(), (System.nanoTime() - start) / 1e6);
+        } else {
+            System.err.println("Usage: MapFile import <layout.txt> <map.armp> | export <map.armp> <layout.txt> | info <map.armp>");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Which agent, if any, stands on each cell of an Environment.
+ * One int per cell (agent id + 1, 0 = free), so occupancy and neighbour checks are O(1) array reads.
+ * During a fleet tick a free cell may also carry a move claim, stored as -(agent id + 1) in the
+ * same slot so that checking and claiming a target touches a single cache line.
+ */
+public class OccupancyGrid {
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(int[].class);
+    
+    private final int width;
+    private final int height;
+    private final int[] occupants;
+    
+    public OccupancyGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.occupants = new int[Math.multiplyExact(width, height)];
+    }
+    
+    public boolean isOccupied(int x, int y) {
+        return occupants[y * width + x] > 0;
+    }
+    
+    /** @return the id of the agent on (x,y), or -1 if the cell is free */
+    public int occupantAt(int x, int y) {
+        return Math.max(occupants[y * width + x], 0) - 1;
+    }
+    
+    /**
+     * Atomically records that an agent wants to move onto a free cell this tick; the lowest id
+     * wins regardless of the order claims arrive in. Safe to call from several threads.
+     */
+    public void claim(int index, int agentId) {
+        int wanted = -(agentId + 1);
+        int current = (int) CELLS.getVolatile(occupants, index);
+        while ((current == 0 || current < wanted) && !CELLS.compareAndSet(occupants, index, current, wanted)) {
+            current = (int) CELLS.getVolatile(occupants, index);
+        }
+    }
+    
+    /** @return whether the agent holds the winning claim on the cell; false once anyone moved in */
+    public boolean holdsClaim(int index, int agentId) {
+        return (int) CELLS.getVolatile(occupants, index) == -(agentId + 1);
+    }
+    
+    public void occupy(int x, int y, int agentId) {
+        occupants[y * width + x] = agentId + 1;
+    }
+    
+    public void vacate(int x, int y) {
+        occupants[y * width + x] = 0;
+    }
+    
+    /** Counts occupied cells in the square of the given radius around (x,y), excluding (x,y) itself. */
+    public int countNeighbours(int x, int y, int radius) {
+        int count = 0;
+        for (int ny = Math.max(0, y - radius); ny <= Math.min(height - 1, y + radius); ny++) {
+            int row = ny * width;
+            for (int nx = Math.max(0, x - radius); nx <= Math.min(width - 1, x + radius); nx++) {
+                if (occupants[row + nx] > 0 && (nx != x || ny != y)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    public void clear() {
+        Arrays.fill(occupants, 0);
+    }
+}
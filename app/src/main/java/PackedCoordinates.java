@@ -0,0 +1,21 @@
+/**
+ * Grid coordinates packed into one long (x in the high half, y in the low half), so positions
+ * can be returned, stored and compared without allocating an int[] or a point object.
+ */
+public final class PackedCoordinates {
+    
+    private PackedCoordinates() {
+    }
+    
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+    
+    public static int x(long packed) {
+        return (int) (packed >> 32);
+    }
+    
+    public static int y(long packed) {
+        return (int) packed;
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.Arrays;
+
+/**
+ * Measures fleet tick throughput from 1 to N worker threads and checks that every run ends
+ * in exactly the same state as the sequential one.
+ * Usage: ParallelScaling [size] [agents] [ticks] [maxThreads]
+ */
+public class ParallelScaling {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int agents = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        long seed = 42;
+        
+        System.out.printf("%dx%d map, %d agents, %d ticks%n", size, size, agents, ticks);
+        System.out.printf("%-8s %12s %10s %s%n", "threads", "ticks/s", "speedup", "state");
+        long expected = 0;
+        double baseline = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            Environment env = new Environment(size, size);
+            env.createSimpleRoadNetwork();
+            SimulationEngine engine = new SimulationEngine(env, seed);
+            engine.setParallelism(threads);
+            engine.getFleet().spawnRandom(agents);
+            engine.run(ticks / 10); // warm-up
+            engine.run(ticks);
+            engine.setParallelism(1);
+            
+            long hash = stateHash(engine.getFleet());
+            if (threads == 1) {
+                expected = hash;
+                baseline = engine.getTicksPerSecond();
+            }
+            System.out.printf("%-8d %12.1f %9.2fx %s%n", threads, engine.getTicksPerSecond(),
+                    engine.getTicksPerSecond() / baseline, hash == expected ? "identical" : "DIFFERENT");
+            if (threads >= maxThreads) {
+                break;
+            }
+        }
+    }
+    
+    private static long stateHash(Fleet fleet) {
+        int[][] positions = fleet.copyPositions();
+        return 31L * Arrays.hashCode(positions[0]) + Arrays.hashCode(positions[1])
+                + 17L * fleet.getMoves() + fleet.getCollisions();
+    }
+}
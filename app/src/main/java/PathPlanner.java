@@ -0,0 +1,425 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Route planning over an Environment grid with 4-connected moves.
+ * <p>
+ * Single routes use A*, switching to Jump Point Search when the map has no ONE_WAY signs
+ * (JPS relies on every open cell being enterable from every side). Horizontal jumps are read
+ * from precomputed per-row tables (JPS+), which are rebuilt row by row when the map changes,
+ * so a vertical jump costs O(rows crossed) instead of rescanning each row. Goals that many robots
+ * share should use {@link #distanceField}, which is computed once by a reverse BFS, cached
+ * (LRU) and repaired incrementally when the map changes, so each robot only reads an array.
+ * <p>
+ * Traffic sign semantics: NO_ENTRY cells are impassable, and a ONE_WAY cell may only be
+ * entered moving north, the direction of the arrow drawn by the renderer.
+ * Cell indices are {@code y * width + x}. Not thread-safe; use it from the engine thread.
+ */
+public class PathPlanner implements EnvironmentListener {
+    
+    static final int[] DX = Fleet.DX;
+    static final int[] DY = Fleet.DY;
+    static final int NORTH = 0;
+    static final int EAST = 1;
+    static final int WEST = 3;
+    
+    // Ordered from least to most restrictive
+    static final byte OPEN = 0;
+    static final byte ONE_WAY_NORTH = 1;
+    static final byte BLOCKED = 2;
+    
+    private final Environment environment;
+    private final int width;
+    private final int height;
+    private final byte[] rules;
+    private int oneWayCells;
+    
+    private final Map<Integer, DistanceField> fields;
+    private long fieldsComputed;
+    
+    // A*/JPS scratch space, reset lazily through the search stamp
+    private int[] jumpEast; // > 0: steps to the next jump point, <= 0: -(steps before a dead end)
+    private int[] jumpWest;
+    private final int[] gScore;
+    private final int[] parent;
+    private final int[] stamp;
+    private int search;
+    private final IntHeap open = new IntHeap();
+    
+    public PathPlanner(Environment environment) {
+        this(environment, 64);
+    }
+    
+    /** @param maxCachedFields how many goal distance fields to keep before evicting the least recently used */
+    public PathPlanner(Environment environment, int maxCachedFields) {
+        this.environment = environment;
+        this.width = environment.getWidth();
+        this.height = environment.getHeight();
+        int cells = Math.multiplyExact(width, height);
+        this.rules = new byte[cells];
+        this.gScore = new int[cells];
+        this.parent = new int[cells];
+        this.stamp = new int[cells];
+        this.fields = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, DistanceField> eldest) {
+                if (size() > maxCachedFields) {
+                    eldest.getValue().markEvicted(); // no longer repaired on map changes
+                    return true;
+                }
+                return false;
+            }
+        };
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (environment.isWall(x, y)) {
+                    rules[y * width + x] = BLOCKED;
+                }
+            }
+        }
+        environment.forEachOccupiedCell((x, y, cell) -> refreshRule(x, y));
+        environment.addListener(this);
+    }
+    
+    /**
+     * Finds a shortest route from (startX,startY) to (goalX,goalY).
+     * @return cell indices from start to goal inclusive, or null if the goal cannot be reached
+     */
+    public int[] findPath(int startX, int startY, int goalX, int goalY) {
+        if (!environment.isValidPosition(startX, startY) || !environment.isValidPosition(goalX, goalY)
+                || rules[goalY * width + goalX] == BLOCKED) {
+            return null;
+        }
+        int start = startY * width + startX;
+        int goal = goalY * width + goalX;
+        boolean jumpPoints = oneWayCells == 0;
+        
+        if (++search == 0) { // stamp wrapped around
+            Arrays.fill(stamp, 0);
+            search = 1;
+        }
+        if (jumpPoints && jumpEast == null) {
+            buildJumpTables();
+        }
+        open.clear();
+        visit(start, 0, -1);
+        open.push(priority(0, start, goal), start);
+        
+        while (!open.isEmpty()) {
+            long key = open.peekKey();
+            int current = open.pop();
+            int g = gScore[current];
+            if (key != priority(g, current, goal)) {
+                continue; // stale heap entry
+            }
+            if (current == goal) {
+                return reconstruct(start, goal);
+            }
+            int cx = current % width;
+            int cy = current / width;
+            int arrivedFrom = parent[current] < 0 ? -1 : direction(parent[current], current);
+            for (int dir = 0; dir < 4; dir++) {
+                int next;
+                if (jumpPoints) {
+                    if (arrivedFrom >= 0 && dir == (arrivedFrom + 2) % 4) {
+                        continue; // never jump straight back
+                    }
+                    next = jump(cx, cy, dir, goal);
+                } else {
+                    next = canMove(cx, cy, dir) ? current + DY[dir] * width + DX[dir] : -1;
+                }
+                if (next < 0) {
+                    continue;
+                }
+                int cost = g + Math.abs(next % width - cx) + Math.abs(next / width - cy);
+                if (stamp[next] != search || cost < gScore[next]) {
+                    visit(next, cost, current);
+                    open.push(priority(cost, next, goal), next);
+                }
+            }
+        }
+        return null;
+    }
+    
+    /** @return the shared, incrementally maintained distance field towards (goalX,goalY) */
+    public DistanceField distanceField(int goalX, int goalY) {
+        int goal = goalY * width + goalX;
+        DistanceField field = fields.get(goal);
+        if (field == null) {
+            field = new DistanceField(this, goal);
+            fields.put(goal, field);
+            fieldsComputed++;
+        }
+        return field;
+    }
+    
+    /** @return how many fields had to be computed from scratch (cache misses) */
+    public long getFieldsComputed() {
+        return fieldsComputed;
+    }
+    
+    public int getCachedFieldCount() {
+        return fields.size();
+    }
+    
+    @Override
+    public void cellChanged(int x, int y) {
+        int index = y * width + x;
+        byte before = rules[index];
+        refreshRule(x, y);
+        byte after = rules[index];
+        if (before == after) {
+            return; // e.g. a light changing colour
+        }
+        if (jumpEast != null) {
+            for (int row = Math.max(0, y - 1); row <= Math.min(height - 1, y + 1); row++) {
+                buildJumpRow(row);
+            }
+        }
+        for (DistanceField field : new ArrayList<>(fields.values())) {
+            if (after > before) {
+                field.tighten(index);
+            } else {
+                field.relax(index);
+            }
+        }
+    }
+    
+    /** @return the route as a list of [x,y] pairs, convenient for printing */
+    public List<int[]> toCoordinates(int[] path) {
+        List<int[]> coordinates = new ArrayList<>(path.length);
+        for (int index : path) {
+            coordinates.add(new int[]{index % width, index / width});
+        }
+        return coordinates;
+    }
+    
+    Environment getEnvironment() {
+        return environment;
+    }
+    
+    int getWidth() {
+        return width;
+    }
+    
+    int getHeight() {
+        return height;
+    }
+    
+    /** @return OPEN, ONE_WAY_NORTH or BLOCKED */
+    byte getRule(int index) {
+        return rules[index];
+    }
+    
+    boolean isBlocked(int index) {
+        return rules[index] == BLOCKED;
+    }
+    
+    /** @return whether a robot on (x,y) may move one cell in the given direction */
+    boolean canMove(int x, int y, int dir) {
+        int nx = x + DX[dir];
+        int ny = y + DY[dir];
+        if (nx < 0 || ny < 0 || nx >= width || ny >= height) {
+            return false;
+        }
+        byte rule = rules[ny * width + nx];
+        return rule == OPEN || (rule == ONE_WAY_NORTH && dir == NORTH);
+    }
+    
+    private void refreshRule(int x, int y) {
+        int index = y * width + x;
+        byte rule = OPEN;
+        int flags = environment.getCellFlags(x, y);
+        if ((flags & Environment.FLAG_BLOCKED) != 0) {
+            rule = BLOCKED;
+        } else if ((flags & Environment.FLAG_SIGN) != 0) {
+            for (TrafficElement element : environment.getCell(x, y).getTrafficElements()) {
+                if (element instanceof TrafficSign sign) {
+                    if (sign.getType() == TrafficSignType.NO_ENTRY) {
+                        rule = BLOCKED;
+                    } else if (sign.getType() == TrafficSignType.ONE_WAY && rule == OPEN) {
+                        rule = ONE_WAY_NORTH;
+                    }
+                }
+            }
+        }
+        if (rules[index] == ONE_WAY_NORTH) {
+            oneWayCells--;
+        }
+        if (rule == ONE_WAY_NORTH) {
+            oneWayCells++;
+        }
+        rules[index] = rule;
+    }
+    
+    private boolean isOpen(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height && rules[y * width + x] == OPEN;
+    }
+    
+    /**
+     * Jump Point Search step for 4-connected grids: walks from (x,y) in one direction until it
+     * reaches the goal, a dead end, or a cell where the route may have to turn.
+     * Vertical runs stop wherever a horizontal run would find something.
+     */
+    private int jump(int x, int y, int dir, int goal) {
+        if (DX[dir] != 0) {
+            return jumpHorizontally(x, y, dir, goal);
+        }
+        int dy = DY[dir];
+        while (canMove(x, y, dir)) {
+            y += dy;
+            int index = y * width + x;
+            if (index == goal || jumpHorizontally(x, y, EAST, goal) >= 0 || jumpHorizontally(x, y, WEST, goal) >= 0) {
+                return index;
+            }
+        }
+        return -1;
+    }
+    
+    private int jumpHorizontally(int x, int y, int dir, int goal) {
+        int index = y * width + x;
+        int steps = dir == EAST ? jumpEast[index] : jumpWest[index];
+        int goalOffset = (goal % width - x) * DX[dir];
+        if (goal / width == y && goalOffset > 0 && goalOffset <= Math.abs(steps)) {
+            return goal;
+        }
+        return steps > 0 ? index + steps * DX[dir] : -1;
+    }
+    
+    private void buildJumpTables() {
+        jumpEast = new int[rules.length];
+        jumpWest = new int[rules.length];
+        for (int y = 0; y < height; y++) {
+            buildJumpRow(y);
+        }
+    }
+    
+    private void buildJumpRow(int y) {
+        int row = y * width;
+        int next = 0;
+        for (int x = width - 1; x >= 0; x--) {
+            jumpEast[row + x] = next;
+            next = rules[row + x] != OPEN ? 0 : isForced(x, y, 1) ? 1 : next > 0 ? next + 1 : next - 1;
+        }
+        next = 0;
+        for (int x = 0; x < width; x++) {
+            jumpWest[row + x] = next;
+            next = rules[row + x] != OPEN ? 0 : isForced(x, y, -1) ? 1 : next > 0 ? next + 1 : next - 1;
+        }
+    }
+    
+    /** @return whether a horizontal run arriving at (x,y) moving dx may have to turn there */
+    private boolean isForced(int x, int y, int dx) {
+        return (isOpen(x, y - 1) && !isOpen(x - dx, y - 1)) || (isOpen(x, y + 1) && !isOpen(x - dx, y + 1));
+    }
+    
+    private void visit(int index, int g, int from) {
+        stamp[index] = search;
+        gScore[index] = g;
+        parent[index] = from;
+    }
+    
+    private int heuristic(int index, int goal) {
+        return Math.abs(index % width - goal % width) + Math.abs(index / width - goal / width);
+    }
+    
+    /** Orders by f = g + h, breaking the many Manhattan ties in favour of the deeper node. */
+    private long priority(int g, int index, int goal) {
+        return ((long) (g + heuristic(index, goal)) << 32) - g;
+    }
+    
+    private int direction(int from, int to) {
+        int dx = Integer.signum(to % width - from % width);
+        int dy = Integer.signum(to / width - from / width);
+        for (int dir = 0; dir < 4; dir++) {
+            if (DX[dir] == dx && DY[dir] == dy) {
+                return dir;
+            }
+        }
+        return -1;
+    }
+    
+    /** Walks the parent chain back from the goal, filling in the cells between jump points. */
+    private int[] reconstruct(int start, int goal) {
+        int[] path = new int[gScore[goal] + 1];
+        int position = path.length - 1;
+        int current = goal;
+        while (current != start) {
+            int previous = parent[current];
+            int dir = direction(previous, current);
+            int step = DY[dir] * width + DX[dir];
+            for (int cell = current; cell != previous; cell -= step) {
+                path[position--] = cell;
+            }
+            current = previous;
+        }
+        path[0] = start;
+        return path;
+    }
+    
+    /** Minimal binary min-heap of (long key, int value) pairs; duplicates are skipped by the caller. */
+    static final class IntHeap {
+        private long[] keys = new long[256];
+        private int[] values = new int[256];
+        private int size;
+        
+        void clear() {
+            size = 0;
+        }
+        
+        boolean isEmpty() {
+            return size == 0;
+        }
+        
+        void push(long key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int up = (i - 1) >>> 1;
+                if (keys[up] <= key) {
+                    break;
+                }
+                keys[i] = keys[up];
+                values[i] = values[up];
+                i = up;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+        
+        long peekKey() {
+            return keys[0];
+        }
+        
+        int pop() {
+            int value = values[0];
+            long lastKey = keys[--size];
+            int lastValue = values[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (lastKey <= keys[child]) {
+                    break;
+                }
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = lastKey;
+            values[i] = lastValue;
+            return value;
+        }
+    }
+}
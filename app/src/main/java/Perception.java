@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers "what can this robot see" within its vision radius.
+ * Traffic lights and signs come from a TrafficElementIndex and are kept if a ray to them is not
+ * blocked by a wall, so the cost grows with the number of nearby elements, not with radius squared.
+ * Visible walls are optional and use recursive shadow-casting field of view.
+ * Results are cached per observer and reused while the observer has not moved and the map's
+ * layout is unchanged; light colours stay live because results hold the TrafficLight itself.
+ * Not thread-safe; use one instance per thread.
+ */
+public class Perception {
+    
+    /** One traffic element in view. */
+    public record Sighting(int x, int y, TrafficElement element) {
+    }
+    
+    /** Everything visible from one position. */
+    public static final class Result {
+        private final List<Sighting> sightings;
+        private final int[] walls;
+        
+        Result(List<Sighting> sightings, int[] walls) {
+            this.sightings = Collections.unmodifiableList(sightings);
+            this.walls = walls;
+        }
+        
+        public List<Sighting> getSightings() {
+            return sightings;
+        }
+        
+        public List<TrafficLight> getLights() {
+            List<TrafficLight> lights = new ArrayList<>();
+            for (Sighting sighting : sightings) {
+                if (sighting.element() instanceof TrafficLight light) {
+                    lights.add(light);
+                }
+            }
+            return lights;
+        }
+        
+        public List<TrafficSign> getSigns() {
+            List<TrafficSign> signs = new ArrayList<>();
+            for (Sighting sighting : sightings) {
+                if (sighting.element() instanceof TrafficSign sign) {
+                    signs.add(sign);
+                }
+            }
+            return signs;
+        }
+        
+        /** @return cell indices (y * width + x) of visible walls; empty if walls were not requested */
+        public int[] getVisibleWalls() {
+            return walls;
+        }
+    }
+    
+    private static final class CacheEntry {
+        int x;
+        int y;
+        int radius;
+        boolean walls;
+        long version;
+        Result result;
+    }
+    
+    // Octant transforms for shadow-casting: (xx, xy, yx, yy)
+    private static final int[][] OCTANTS = {
+        {1, 0, 0, 1}, {0, 1, 1, 0}, {0, -1, 1, 0}, {-1, 0, 0, 1},
+        {-1, 0, 0, -1}, {0, -1, -1, 0}, {0, 1, -1, 0}, {1, 0, 0, -1}
+    };
+    
+    private final Environment environment;
+    private final TrafficElementIndex index;
+    private final Map<Object, CacheEntry> cache = new HashMap<>();
+    private long hits;
+    private long misses;
+    
+    // Shadow-casting scratch
+    private int[] wallBuffer = new int[64];
+    private int wallCount;
+    private final BitSet seenWalls = new BitSet();
+    
+    public Perception(Environment environment) {
+        this(environment, new TrafficElementIndex(environment));
+    }
+    
+    /** Shares an existing index, e.g. between one Perception per worker thread. */
+    public Perception(Environment environment, TrafficElementIndex index) {
+        this.environment = environment;
+        this.index = index;
+    }
+    
+    /** What the car sees with its current vision radius, cached while it stands still. */
+    public Result perceive(Car car) {
+        return perceive(car, car.getGridX(), car.getGridY(), (int) car.getVision(), false);
+    }
+    
+    /**
+     * @param observer cache key identifying the robot (a Car, a fleet agent id...), or null to skip the cache
+     * @param includeWalls whether to run field of view for walls as well
+     */
+    public Result perceive(Object observer, int x, int y, int radius, boolean includeWalls) {
+        if (observer == null) {
+            return compute(x, y, radius, includeWalls);
+        }
+        CacheEntry entry = cache.computeIfAbsent(observer, key -> new CacheEntry());
+        long version = environment.getVersion();
+        if (entry.result != null && entry.x == x && entry.y == y && entry.radius == radius
+                && entry.version == version && (entry.walls || !includeWalls)) {
+            hits++;
+            return entry.result;
+        }
+        misses++;
+        entry.x = x;
+        entry.y = y;
+        entry.radius = radius;
+        entry.walls = includeWalls;
+        entry.version = version;
+        entry.result = compute(x, y, radius, includeWalls);
+        return entry.result;
+    }
+    
+    /** Drops the cached result of an observer that left the simulation. */
+    public void forget(Object observer) {
+        cache.remove(observer);
+    }
+    
+    public long getCacheHits() {
+        return hits;
+    }
+    
+    public long getCacheMisses() {
+        return misses;
+    }
+    
+    private Result compute(int x, int y, int radius, boolean includeWalls) {
+        List<Sighting> sightings = new ArrayList<>();
+        index.forEachWithin(x, y, radius, (cx, cy, cell) -> {
+            if (hasLineOfSight(x, y, cx, cy)) {
+                for (TrafficElement element : cell.getTrafficElements()) {
+                    sightings.add(new Sighting(cx, cy, element));
+                }
+            }
+        });
+        int[] walls = new int[0];
+        if (includeWalls) {
+            wallCount = 0;
+            seenWalls.clear();
+            for (int[] octant : OCTANTS) {
+                castLight(x, y, radius, 1, 1.0, 0.0, octant[0], octant[1], octant[2], octant[3]);
+            }
+            walls = Arrays.copyOf(wallBuffer, wallCount);
+        }
+        return new Result(sightings, walls);
+    }
+    
+    /** Bresenham ray; the end cells themselves may be anything, only cells strictly between block. */
+    private boolean hasLineOfSight(int x0, int y0, int x1, int y1) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int error = dx + dy;
+        int x = x0;
+        int y = y0;
+        while (x != x1 || y != y1) {
+            int doubled = 2 * error;
+            if (doubled >= dy) {
+                error += dy;
+                x += sx;
+            }
+            if (doubled <= dx) {
+                error += dx;
+                y += sy;
+            }
+            if (x == x1 && y == y1) {
+                return true;
+            }
+            // isWall is false off the map, so a ray that somehow left it would never end
+            if (!environment.isValidPosition(x, y) || environment.isWall(x, y)) {
+                return false;
+            }
+        }
+        return true; // the observer's own cell
+    }
+    
+    /** Recursive shadow-casting over one octant (Bjorn Bergstrom's formulation). */
+    private void castLight(int cx, int cy, int radius, int row, double start, double end,
+                           int xx, int xy, int yx, int yy) {
+        if (start < end) {
+            return;
+        }
+        int radiusSquared = radius * radius;
+        double newStart = 0;
+        for (int distance = row; distance <= radius; distance++) {
+            boolean blocked = false;
+            for (int deltaX = -distance, deltaY = -distance; deltaX <= 0; deltaX++) {
+                int mapX = cx + deltaX * xx + deltaY * xy;
+                int mapY = cy + deltaX * yx + deltaY * yy;
+                double leftSlope = (deltaX - 0.5) / (deltaY + 0.5);
+                double rightSlope = (deltaX + 0.5) / (deltaY - 0.5);
+                if (start < rightSlope) {
+                    continue;
+                }
+                if (end > leftSlope) {
+                    break;
+                }
+                boolean wall = !environment.isValidPosition(mapX, mapY) || environment.isWall(mapX, mapY);
+                if (wall && deltaX * deltaX + deltaY * deltaY <= radiusSquared
+                        && environment.isValidPosition(mapX, mapY)) {
+                    recordWall(mapY * environment.getWidth() + mapX);
+                }
+                if (blocked) {
+                    if (wall) {
+                        newStart = rightSlope;
+                    } else {
+                        blocked = false;
+                        start = newStart;
+                    }
+                } else if (wall && distance < radius) {
+                    blocked = true;
+                    castLight(cx, cy, radius, distance + 1, start, leftSlope, xx, xy, yx, yy);
+                    newStart = rightSlope;
+                }
+            }
+            if (blocked) {
+                break;
+            }
+        }
+    }
+    
+    private void recordWall(int cell) {
+        if (seenWalls.get(cell)) {
+            return; // octant borders are visited twice
+        }
+        seenWalls.set(cell);
+        if (wallCount == wallBuffer.length) {
+            wallBuffer = Arrays.copyOf(wallBuffer, wallCount * 2);
+        }
+        wallBuffer[wallCount++] = cell;
+    }
+}
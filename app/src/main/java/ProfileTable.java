@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The kinematic profiles of a fleet, shared by id so that each agent stores one byte instead of
+ * its own copy. Registering an equal profile twice returns the same id. The fields the tick reads
+ * are also kept in primitive arrays indexed by id, so stepping a million agents never touches a
+ * record.
+ */
+public class ProfileTable {
+
+    public static final int MAX_PROFILES = 256;
+
+    private final List<KinematicProfile> profiles = new ArrayList<>();
+    private final Map<KinematicProfile, Integer> ids = new HashMap<>();
+    private float[] maxSpeed = new float[4];
+    private float[] acceleration = new float[4];
+    private double fastest;
+
+    /** Creates a table whose profile 0 is {@link KinematicProfile#DEFAULT}. */
+    public ProfileTable() {
+        register(KinematicProfile.DEFAULT);
+    }
+
+    /**
+     * @return the id of the profile, adding it if no equal profile is registered yet
+     * @throws IllegalStateException if the table already holds MAX_PROFILES profiles
+     */
+    public int register(KinematicProfile profile) {
+        Integer id = ids.get(profile);
+        if (id != null) {
+            return id;
+        }
+        if (profiles.size() == MAX_PROFILES) {
+            throw new IllegalStateException("At most " + MAX_PROFILES + " kinematic profiles per fleet.");
+        }
+        int next = profiles.size();
+        if (next == maxSpeed.length) {
+            maxSpeed = Arrays.copyOf(maxSpeed, next * 2);
+            acceleration = Arrays.copyOf(acceleration, next * 2);
+        }
+        profiles.add(profile);
+        ids.put(profile, next);
+        maxSpeed[next] = (float) profile.maxSpeed();
+        acceleration[next] = (float) profile.acceleration();
+        fastest = Math.max(fastest, profile.maxSpeed());
+        return next;
+    }
+
+    public KinematicProfile get(int id) {
+        return profiles.get(id);
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+    float maxSpeed(int id) {
+        return maxSpeed[id];
+    }
+
+    float acceleration(int id) {
+        return acceleration[id];
+    }
+
+    /** @return the highest top speed of any registered profile */
+    public double getFastest() {
+        return fastest;
+    }
+
+    /** Replaces every profile, keeping their ids, e.g. when restoring a checkpoint. */
+    void restore(List<KinematicProfile> restored) {
+        profiles.clear();
+        ids.clear();
+        fastest = 0;
+        for (KinematicProfile profile : restored) {
+            register(profile);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Headless, fixed-timestep simulation loop.
+ * The engine owns the Environment, its traffic elements and the agents driving on it.
+ * It can be stepped manually (tests, batch runs) or run on its own thread, either as fast
+ * as the CPU allows or throttled to a real-time tick rate. UIs only read snapshots.
+ * <p>
+ * Map edits from other threads go through {@link #submit}: they are queued without locking and
+ * applied on the engine thread at the start of the next tick, so a click or a network request
+ * never waits for a tick to finish and a tick never sees a half-applied edit.
+ */
+public class SimulationEngine {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_EDITS_PER_TICK = 10_000; // a flood of edits delays, but can't stall, the tick
+
+    private final Environment environment;
+    private final TrafficLightScheduler lightScheduler;
+    private final PathPlanner pathPlanner;
+    private final Fleet fleet;
+    private final SimulationMetrics metrics = new SimulationMetrics();
+    private ForkJoinPool pool;
+    private final List<Agent> agents = new ArrayList<>();
+    private final ConcurrentLinkedQueue<PendingEdit> pendingEdits = new ConcurrentLinkedQueue<>();
+    private volatile long tick; // written under the lock, readable without it
+    private CheckpointLog checkpointLog;
+    private long checkpointInterval;
+
+    private volatile long tickIntervalNanos; // 0 = unthrottled
+    private volatile boolean running;
+    private volatile double ticksPerSecond;
+    private Thread worker;
+
+    public SimulationEngine(Environment environment) {
+        this(environment, 0);
+    }
+
+    /** @param seed seed for the fleet's random decisions */
+    public SimulationEngine(Environment environment, long seed) {
+        this.environment = environment;
+        this.lightScheduler = new TrafficLightScheduler(environment);
+        this.pathPlanner = new PathPlanner(environment);
+        this.fleet = new Fleet(environment, seed);
+        fleet.setPlanner(pathPlanner);
+    }
+
+    public Environment getEnvironment() {
+        return environment;
+    }
+
+    public TrafficLightScheduler getLightScheduler() {
+        return lightScheduler;
+    }
+
+    public PathPlanner getPathPlanner() {
+        return pathPlanner;
+    }
+
+    /** Edit the fleet (spawning etc.) through {@link #edit} while the engine is running. */
+    public Fleet getFleet() {
+        return fleet;
+    }
+
+    /**
+     * Splits the fleet step across the given number of worker threads (1 = sequential).
+     * Results for a given seed are identical for every setting.
+     */
+    public synchronized void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = threads == 1 ? null : new ForkJoinPool(threads);
+        fleet.setPool(pool);
+    }
+
+    /** Timing and counters for this engine; disabled until enabled through it or JMX. */
+    public SimulationMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized void addAgent(Agent agent) {
+        agents.add(agent);
+    }
+
+    /** @return the agents added with addAgent, in the order they step */
+    synchronized List<Agent> getAgents() {
+        return List.copyOf(agents);
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /** Only for restoring checkpoints: the state must already match the given tick. */
+    synchronized void setTick(long tick) {
+        this.tick = tick;
+    }
+
+    /**
+     * Writes a checkpoint to the log every given number of ticks.
+     * @param log the log, or null to stop checkpointing
+     */
+    public synchronized void setCheckpointLog(CheckpointLog log, long everyTicks) {
+        if (log != null && everyTicks < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least one tick.");
+        }
+        checkpointLog = log;
+        checkpointInterval = everyTicks;
+    }
+
+    /** @return ticks per second measured over the last run window */
+    public double getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    /**
+     * Sets the real-time throttle.
+     * @param ticksPerSecond target rate, or 0 to run as fast as possible
+     */
+    public void setTickRate(double ticksPerSecond) {
+        if (ticksPerSecond < 0) {
+            throw new IllegalArgumentException("Tick rate must be non-negative.");
+        }
+        tickIntervalNanos = ticksPerSecond == 0 ? 0 : (long) (NANOS_PER_SECOND / ticksPerSecond);
+    }
+
+    /** Advances the simulation by exactly one fixed step. */
+    public synchronized void step() {
+        applyEdits(MAX_EDITS_PER_TICK);
+        long tickStart = metrics.start();
+        lightScheduler.advance(tick);
+        long phaseStart = metrics.lap(SimulationMetrics.Phase.LIGHTS, tickStart);
+        fleet.step(environment, tick);
+        phaseStart = metrics.lap(SimulationMetrics.Phase.FLEET, phaseStart);
+        for (int i = 0; i < agents.size(); i++) { // indexed: no iterator garbage per tick
+            agents.get(i).step(environment, tick);
+        }
+        metrics.lap(SimulationMetrics.Phase.AGENTS, phaseStart);
+        tick++;
+        if (checkpointLog != null && tick % checkpointInterval == 0) {
+            checkpointLog.checkpoint();
+        }
+        if (tickStart != 0) {
+            metrics.lap(SimulationMetrics.Phase.TICK, tickStart);
+            metrics.recordFleet(fleet);
+        }
+    }
+
+    /** Runs the given number of ticks on the calling thread, unthrottled. */
+    public void run(long ticks) {
+        long start = System.nanoTime();
+        for (long i = 0; i < ticks; i++) {
+            step();
+        }
+        recordRate(ticks, System.nanoTime() - start);
+    }
+
+    /** Applies a map edit between two ticks, after any submitted edits, waiting for the current tick. */
+    public synchronized void edit(Consumer<Environment> edit) {
+        applyEdits(Integer.MAX_VALUE);
+        edit.accept(environment);
+    }
+
+    /**
+     * Queues a map edit for the start of the next tick and returns at once. Edits are applied in
+     * submission order; one that throws completes its future exceptionally and the rest go on.
+     * When the engine is not running the edit is applied before this returns.
+     * @return completes on the engine thread once the edit has been applied
+     */
+    public CompletableFuture<Void> submit(Consumer<Environment> edit) {
+        PendingEdit pending = new PendingEdit(edit, new CompletableFuture<>());
+        pendingEdits.add(pending);
+        if (!running) {
+            flushEdits();
+        }
+        return pending.done;
+    }
+
+    private synchronized void flushEdits() {
+        applyEdits(Integer.MAX_VALUE);
+    }
+
+    private void applyEdits(int limit) {
+        PendingEdit pending;
+        for (int i = 0; i < limit && (pending = pendingEdits.poll()) != null; i++) {
+            try {
+                pending.edit.accept(environment);
+                pending.done.complete(null);
+            } catch (RuntimeException e) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    public synchronized SimulationSnapshot snapshot() {
+        List<TrafficLight> lights = environment.getTrafficLights();
+        int[] lightX = new int[lights.size()];
+        int[] lightY = new int[lights.size()];
+        TrafficLightState[] states = new TrafficLightState[lights.size()];
+        for (int i = 0; i < states.length; i++) {
+            TrafficLight light = lights.get(i);
+            lightX[i] = light.getX();
+            lightY[i] = light.getY();
+            states[i] = light.getState();
+        }
+        int[][] agents = fleet.copyPositions();
+        return new SimulationSnapshot(tick, ticksPerSecond, lightX, lightY, states, agents[0], agents[1]);
+    }
+
+    /**
+     * Runs a batch of ticks, unthrottled, on the engine's own daemon thread. Checking that the
+     * engine is stopped and claiming it happen under one lock, so two callers can't both step it;
+     * while the batch runs, submitted edits wait for tick boundaries as they do under start().
+     * stop() ends the batch early.
+     * @return completes with the number of ticks run once the batch is over
+     * @throws IllegalStateException if the engine is already running
+     */
+    public synchronized CompletableFuture<Long> startBatch(long ticks) {
+        if (running) {
+            throw new IllegalStateException("The engine is already running.");
+        }
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        running = true;
+        worker = new Thread(() -> runBatch(ticks, done), "simulation-engine");
+        worker.setDaemon(true);
+        worker.start();
+        return done;
+    }
+
+    private void runBatch(long ticks, CompletableFuture<Long> done) {
+        long start = System.nanoTime();
+        long ran = 0;
+        try {
+            while (ran < ticks && running) {
+                step();
+                ran++;
+            }
+            recordRate(ran, System.nanoTime() - start);
+        } catch (RuntimeException | Error e) {
+            done.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                if (worker == Thread.currentThread()) {
+                    running = false;
+                    worker = null;
+                }
+            }
+            flushEdits(); // submitted while the batch was winding down
+            done.complete(ran);
+        }
+    }
+
+    /** Starts stepping on a background daemon thread. */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::loop, "simulation-engine");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Stops the background thread and waits for the current tick to finish. */
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = worker;
+            worker = null;
+        }
+        if (current != null && current != Thread.currentThread()) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushEdits(); // submitted while the loop was winding down
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void loop() {
+        long windowStart = System.nanoTime();
+        long windowTicks = 0;
+        long nextTick = windowStart;
+        while (running) {
+            step();
+            windowTicks++;
+
+            long now = System.nanoTime();
+            if (now - windowStart >= NANOS_PER_SECOND) {
+                recordRate(windowTicks, now - windowStart);
+                windowStart = now;
+                windowTicks = 0;
+            }
+
+            long interval = tickIntervalNanos;
+            if (interval > 0) {
+                nextTick += interval;
+                long wait = nextTick - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else {
+                    nextTick = System.nanoTime(); // fell behind, don't try to catch up in a burst
+                }
+            }
+        }
+    }
+
+    private record PendingEdit(Consumer<Environment> edit, CompletableFuture<Void> done) {
+    }
+
+    private void recordRate(long ticks, long nanos) {
+        if (nanos > 0) {
+            ticksPerSecond = ticks * (double) NANOS_PER_SECOND / nanos;
+        }
+    }
+}
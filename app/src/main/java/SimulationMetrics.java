@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Timing and counters for the simulation loop and the renderer.
+ * <p>
+ * Disabled by default. While disabled, {@link #start()} returns 0 without reading the clock and
+ * every other recording call returns straight away, so instrumented hot paths pay one volatile
+ * read. While enabled, each phase costs two System.nanoTime() calls and a histogram update;
+ * nothing allocates.
+ * <p>
+ * Usage on a hot path:
+ * <pre>
+ *   long start = metrics.start();
+ *   ...work...
+ *   start = metrics.lap(Phase.LIGHTS, start);
+ * </pre>
+ */
+public class SimulationMetrics implements SimulationMetricsMXBean {
+
+    public enum Phase {
+        LIGHTS, FLEET, AGENTS, TICK, RENDER
+    }
+
+    private static final double NANOS_PER_MICRO = 1_000;
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+    private final LongAdder carMoves = new LongAdder();
+    private volatile boolean enabled;
+
+    // Latest fleet totals, published by the engine thread after each tick
+    private volatile int agentCount;
+    private volatile long moves;
+    private volatile long blockedMoves;
+    private volatile long collisions;
+    private volatile long engineThreadId = -1;
+
+    private long allocationSampleNanos;
+    private long allocationSampleBytes = -1;
+    private double allocationRate;
+    private ScheduledExecutorService dumper;
+    private ObjectName objectName;
+
+    public SimulationMetrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** @return the current time to pass to {@link #lap}, or 0 when disabled */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since start for the phase.
+     * @return the current time, to start the next phase with, or 0 if start was 0
+     */
+    public long lap(Phase phase, long start) {
+        if (start == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        histograms.get(phase).record(now - start);
+        return now;
+    }
+
+    /** Publishes the fleet's totals; called by the engine thread after a timed tick. */
+    void recordFleet(Fleet fleet) {
+        engineThreadId = Thread.currentThread().threadId();
+        agentCount = fleet.size();
+        moves = fleet.getMoves();
+        blockedMoves = fleet.getBlockedMoves();
+        collisions = fleet.getCollisions();
+    }
+
+    public void recordCarMove() {
+        if (enabled) {
+            carMoves.increment();
+        }
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        carMoves.reset();
+    }
+
+    @Override
+    public long getTicks() {
+        return histograms.get(Phase.TICK).getCount();
+    }
+
+    @Override
+    public double getTickMeanMicros() {
+        return histograms.get(Phase.TICK).getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getTickP99Micros() {
+        return micros(histograms.get(Phase.TICK).getPercentile(0.99));
+    }
+
+    @Override
+    public long getTickMaxMicros() {
+        return micros(histograms.get(Phase.TICK).getMax());
+    }
+
+    @Override
+    public double getLightsMeanMicros() {
+        return histograms.get(Phase.LIGHTS).getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getFleetMeanMicros() {
+        return histograms.get(Phase.FLEET).getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getAgentsMeanMicros() {
+        return histograms.get(Phase.AGENTS).getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getRenderedFrames() {
+        return histograms.get(Phase.RENDER).getCount();
+    }
+
+    @Override
+    public double getRenderMeanMicros() {
+        return histograms.get(Phase.RENDER).getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getRenderP99Micros() {
+        return micros(histograms.get(Phase.RENDER).getPercentile(0.99));
+    }
+
+    @Override
+    public int getAgentCount() {
+        return agentCount;
+    }
+
+    @Override
+    public long getMoves() {
+        return moves;
+    }
+
+    @Override
+    public long getBlockedMoves() {
+        return blockedMoves;
+    }
+
+    @Override
+    public long getCollisions() {
+        return collisions;
+    }
+
+    @Override
+    public long getCarMoves() {
+        return carMoves.sum();
+    }
+
+    /**
+     * Samples the engine thread's allocation counter (HotSpot's com.sun.management.ThreadMXBean).
+     * The rate is refreshed at most once per second, so JMX polling and dumps can share it.
+     * @return bytes per second, or -1 if unsupported or no timed tick ran yet
+     */
+    @Override
+    public synchronized double getAllocationBytesPerSecond() {
+        long thread = engineThreadId;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (thread < 0 || !(threads instanceof com.sun.management.ThreadMXBean hotspot)) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        if (allocationSampleBytes >= 0 && now - allocationSampleNanos < TimeUnit.SECONDS.toNanos(1)) {
+            return allocationRate;
+        }
+        long bytes = hotspot.getThreadAllocatedBytes(thread);
+        if (bytes < 0) {
+            return -1;
+        }
+        if (allocationSampleBytes >= 0) {
+            allocationRate = (bytes - allocationSampleBytes) * 1e9 / (now - allocationSampleNanos);
+        }
+        allocationSampleNanos = now;
+        allocationSampleBytes = bytes;
+        return allocationRate;
+    }
+
+    /** Registers this object on the platform MBean server as AutonomousRobots:type=SimulationMetrics,name=... */
+    public synchronized void registerMBean(String name) {
+        try {
+            unregisterMBean();
+            objectName = new ObjectName("AutonomousRobots:type=SimulationMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean " + name, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // already gone
+        }
+        objectName = null;
+    }
+
+    /**
+     * Appends a row to the file at a fixed period on a background thread: JSON lines if the file
+     * name ends in .json, CSV (with a header for a new file) otherwise.
+     */
+    public synchronized void startDump(Path file, long periodMillis) {
+        stopDump();
+        boolean json = file.getFileName().toString().endsWith(".json");
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                StringBuilder text = new StringBuilder();
+                if (!json && (!Files.exists(file) || Files.size(file) == 0)) {
+                    text.append(csvHeader()).append('\n');
+                }
+                text.append(json ? jsonRow() : csvRow()).append('\n');
+                Files.writeString(file, text, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // cancels further dumps
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    public String csvHeader() {
+        StringBuilder header = new StringBuilder("timestamp_ms");
+        for (Phase phase : Phase.values()) {
+            String name = phase.name().toLowerCase(Locale.ROOT);
+            header.append(',').append(name).append("_count,").append(name).append("_mean_us,")
+                    .append(name).append("_p50_us,").append(name).append("_p99_us,").append(name).append("_max_us");
+        }
+        return header.append(",agent_count,moves,blocked,collisions,car_moves,alloc_bytes_per_s").toString();
+    }
+
+    public String csvRow() {
+        StringBuilder row = new StringBuilder().append(System.currentTimeMillis());
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = histograms.get(phase);
+            row.append(',').append(histogram.getCount())
+                    .append(',').append(String.format(Locale.ROOT, "%.3f", histogram.getMean() / NANOS_PER_MICRO))
+                    .append(',').append(micros(histogram.getPercentile(0.5)))
+                    .append(',').append(micros(histogram.getPercentile(0.99)))
+                    .append(',').append(micros(histogram.getMax()));
+        }
+        return row.append(',').append(agentCount).append(',').append(moves).append(',').append(blockedMoves)
+                .append(',').append(collisions).append(',').append(getCarMoves())
+                .append(',').append(String.format(Locale.ROOT, "%.0f", getAllocationBytesPerSecond())).toString();
+    }
+
+    public String jsonRow() {
+        StringBuilder row = new StringBuilder("{\"timestamp_ms\":").append(System.currentTimeMillis());
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = histograms.get(phase);
+            row.append(",\"").append(phase.name().toLowerCase(Locale.ROOT)).append("\":{")
+                    .append("\"count\":").append(histogram.getCount())
+                    .append(",\"mean_us\":").append(String.format(Locale.ROOT, "%.3f", histogram.getMean() / NANOS_PER_MICRO))
+                    .append(",\"p50_us\":").append(micros(histogram.getPercentile(0.5)))
+                    .append(",\"p99_us\":").append(micros(histogram.getPercentile(0.99)))
+                    .append(",\"max_us\":").append(micros(histogram.getMax())).append('}');
+        }
+        return row.append(",\"agent_count\":").append(agentCount).append(",\"moves\":").append(moves)
+                .append(",\"blocked\":").append(blockedMoves).append(",\"collisions\":").append(collisions)
+                .append(",\"car_moves\":").append(getCarMoves())
+                .append(",\"alloc_bytes_per_s\":").append(String.format(Locale.ROOT, "%.0f", getAllocationBytesPerSecond()))
+                .append('}').toString();
+    }
+
+    private static long micros(long nanos) {
+        return (nanos + 500) / 1_000;
+    }
+}
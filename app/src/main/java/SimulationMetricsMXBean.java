@@ -0,0 +1,45 @@
+/**
+ * JMX view of {@link SimulationMetrics}. Latencies are in microseconds, percentiles are
+ * bucket upper bounds (within 2x of the exact value).
+ */
+public interface SimulationMetricsMXBean {
+    
+    boolean isEnabled();
+    
+    void setEnabled(boolean enabled);
+    
+    void reset();
+    
+    long getTicks();
+    
+    double getTickMeanMicros();
+    
+    long getTickP99Micros();
+    
+    long getTickMaxMicros();
+    
+    double getLightsMeanMicros();
+    
+    double getFleetMeanMicros();
+    
+    double getAgentsMeanMicros();
+    
+    long getRenderedFrames();
+    
+    double getRenderMeanMicros();
+    
+    long getRenderP99Micros();
+    
+    int getAgentCount();
+    
+    long getMoves();
+    
+    long getBlockedMoves();
+    
+    long getCollisions();
+    
+    long getCarMoves();
+    
+    /** @return bytes allocated per second by the engine thread since the previous call */
+    double getAllocationBytesPerSecond();
+}
@@ -0,0 +1,793 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Local HTTP and WebSocket API over a headless SimulationEngine, for driving the simulator from
+ * external planners. Every request and every WebSocket client is served on a virtual thread.
+ * <p>
+ * The tick loop never waits for a client. Requests that need a consistent view of the engine
+ * (agent positions, light states, spawning) are queued with SimulationEngine.submit and answered
+ * at the next tick boundary, or at once while the engine is stopped; the handler thread then
+ * formats the reply. Cell queries read the Environment directly, which is safe from any thread.
+ * A /step batch also runs on the engine's own thread, so no handler holds the engine's monitor
+ * for longer than one query and virtual threads never stay pinned behind a long batch.
+ * <p>
+ * Endpoints, all answering JSON:
+ * <pre>
+ * GET  /status                          tick, rate, map size, agent and light counts
+ * GET  /cell?x=&amp;y=                  cell type, flags, elements and occupant
+ * GET  /agents                          agent positions
+ * GET  /lights                          light positions and states
+ * POST /map?width=&amp;height=&amp;block=   new city-grid map, or an ASCII layout (MapFile legend) as body
+ * POST /robots?count=  or  ?x=&amp;y=     spawn random robots or one at a cell
+ * POST /lights?x=&amp;y=&amp;state=        add a light
+ * POST /signs?x=&amp;y=&amp;type=          add a sign
+ * POST /step?ticks=                     run 1 to 100000 ticks on the engine thread; only while stopped
+ * POST /run?rate=                       run on the engine thread (rate 0 = flat out)
+ * POST /stop                            stop the engine thread
+ * </pre>
+ * The WebSocket port (HTTP port + 1) pushes text frames of JSON. A client first gets a "full"
+ * frame with every agent and light, then "delta" frames with only the agents that moved
+ * ([id, x, y, ...]) and the lights that changed ([x, y, state, ...]), at most PUSH_RATE a second.
+ * A client that falls behind skips frames and gets a full frame again.
+ * Usage: SimulationServer [port] [size] [agents] [ticks/s, 0 = stopped]
+ */
+public class SimulationServer implements Closeable {
+
+    static final int PUSH_RATE = 30;
+    private static final long QUERY_TIMEOUT_SECONDS = 10;
+    private static final int MAX_STEP_TICKS = 100_000;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    static {
+        // Otherwise the JDK server leaves Nagle on and small replies wait out the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer http;
+    private final ServerSocket webSockets;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<PushClient> pushClients = new CopyOnWriteArrayList<>();
+    private final ReentrantLock frameLock = new ReentrantLock(); // not synchronized: virtual threads must not pin
+    private final Condition newSnapshot = frameLock.newCondition();
+    private final Condition newFrame = frameLock.newCondition();
+    private SimulationSnapshot pendingSnapshot; // guarded by frameLock
+    private Frame latestFrame; // guarded by frameLock
+    private volatile SimulationEngine engine;
+    private volatile boolean closed;
+
+    /** Binds HTTP to the port (0 = any free one) and WebSockets to the next one, on the loopback address. */
+    public SimulationServer(SimulationEngine engine, int port) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        http = HttpServer.create(new InetSocketAddress(loopback, port), 128);
+        http.setExecutor(threads);
+        http.createContext("/", this::handle);
+        webSockets = new ServerSocket(port == 0 ? 0 : port + 1, 128, loopback);
+        setEngine(engine);
+    }
+
+    public void start() {
+        http.start();
+        threads.execute(this::acceptWebSockets);
+        threads.execute(this::broadcast);
+    }
+
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    public int getWebSocketPort() {
+        return webSockets.getLocalPort();
+    }
+
+    public SimulationEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        http.stop(0);
+        webSockets.close();
+        for (PushClient client : pushClients) {
+            client.close();
+        }
+        frameLock.lock();
+        try {
+            newSnapshot.signalAll();
+        } finally {
+            frameLock.unlock();
+        }
+        threads.shutdownNow();
+        engine.stop();
+    }
+
+    private synchronized void setEngine(SimulationEngine replacement) {
+        SimulationEngine old = engine;
+        if (old != null) {
+            old.stop();
+        }
+        replacement.addAgent(publisher(replacement));
+        engine = replacement;
+    }
+
+    /** @return an agent that hands a snapshot to the broadcaster at most PUSH_RATE times a second while anyone listens */
+    private Agent publisher(SimulationEngine owner) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / PUSH_RATE;
+        long[] lastPublish = {System.nanoTime() - interval};
+        return (environment, tick) -> {
+            long now = System.nanoTime();
+            if (pushClients.isEmpty() || now - lastPublish[0] < interval) {
+                return;
+            }
+            lastPublish[0] = now;
+            SimulationSnapshot snapshot = owner.snapshot(); // reentrant: this runs inside step()
+            frameLock.lock();
+            try {
+                pendingSnapshot = snapshot;
+                newSnapshot.signal();
+            } finally {
+                frameLock.unlock();
+            }
+        };
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            body = route(exchange);
+        } catch (HttpError e) {
+            status = e.status;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}";
+        } catch (RuntimeException e) {
+            status = 500;
+            body = "{\"error\":" + quote(e.toString()) + "}";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        boolean get = method.equals("GET");
+        boolean post = method.equals("POST");
+        return switch (path) {
+            case "/status" -> get ? status() : notAllowed(method);
+            case "/cell" -> get ? cell(intParam(query, "x"), intParam(query, "y")) : notAllowed(method);
+            case "/agents" -> get ? agents() : notAllowed(method);
+            case "/lights" -> get ? lights() : post ? addLight(query) : notAllowed(method);
+            case "/signs" -> post ? addSign(query) : notAllowed(method);
+            case "/robots" -> post ? spawn(query) : notAllowed(method);
+            case "/map" -> post ? loadMap(query, exchange.getRequestBody()) : notAllowed(method);
+            case "/step" -> post ? step(intParam(query, "ticks", 1)) : notAllowed(method);
+            case "/run" -> post ? run(Double.parseDouble(query.getOrDefault("rate", "0"))) : notAllowed(method);
+            case "/stop" -> post ? stop() : notAllowed(method);
+            default -> throw new HttpError(404, "No endpoint " + path);
+        };
+    }
+
+    private String status() {
+        SimulationEngine current = engine;
+        Environment environment = current.getEnvironment();
+        return new StringBuilder("{\"tick\":").append(current.getTick())
+                .append(",\"running\":").append(current.isRunning())
+                .append(",\"ticksPerSecond\":").append(Math.round(current.getTicksPerSecond()))
+                .append(",\"width\":").append(environment.getWidth())
+                .append(",\"height\":").append(environment.getHeight())
+                .append(",\"agents\":").append(current.getFleet().size())
+                .append(",\"lights\":").append(environment.getTrafficLights().size())
+                .append(",\"webSocketPort\":").append(getWebSocketPort())
+                .append('}').toString();
+    }
+
+    private String cell(int x, int y) {
+        SimulationEngine current = engine;
+        Environment environment = current.getEnvironment();
+        if (!environment.isValidPosition(x, y)) {
+            throw new IllegalArgumentException("(" + x + "," + y + ") is outside the map.");
+        }
+        StringBuilder json = new StringBuilder("{\"x\":").append(x).append(",\"y\":").append(y)
+                .append(",\"type\":\"").append(environment.getCellType(x, y))
+                .append("\",\"flags\":").append(environment.getCellFlags(x, y))
+                .append(",\"occupant\":").append(current.getFleet().getOccupancy().occupantAt(x, y))
+                .append(",\"elements\":[");
+        List<TrafficElement> elements = environment.getCell(x, y).getTrafficElements();
+        for (int i = 0; i < elements.size(); i++) {
+            json.append(i == 0 ? "" : ",");
+            if (elements.get(i) instanceof TrafficLight light) {
+                json.append("{\"light\":\"").append(light.getState()).append("\"}");
+            } else if (elements.get(i) instanceof TrafficSign sign) {
+                json.append("{\"sign\":\"").append(sign.getType()).append("\"}");
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    private String agents() {
+        SimulationSnapshot snapshot = query(SimulationEngine::snapshot);
+        StringBuilder json = new StringBuilder(snapshot.agentCount() * 12 + 32)
+                .append("{\"tick\":").append(snapshot.tick()).append(",\"agents\":[");
+        for (int i = 0; i < snapshot.agentCount(); i++) {
+            json.append(i == 0 ? "" : ",").append(snapshot.agentX()[i]).append(',').append(snapshot.agentY()[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    private String lights() {
+        SimulationSnapshot snapshot = query(SimulationEngine::snapshot);
+        StringBuilder json = new StringBuilder("{\"tick\":").append(snapshot.tick()).append(",\"lights\":[");
+        appendLights(json, snapshot, null);
+        return json.append("]}").toString();
+    }
+
+    private String addLight(Map<String, String> query) {
+        int x = intParam(query, "x");
+        int y = intParam(query, "y");
+        TrafficLightState state = TrafficLightState.valueOf(query.getOrDefault("state", "RED").toUpperCase(Locale.ROOT));
+        editCell(x, y, environment -> environment.addTrafficLight(x, y, state));
+        return "{\"x\":" + x + ",\"y\":" + y + ",\"light\":\"" + state + "\"}";
+    }
+
+    private String addSign(Map<String, String> query) {
+        int x = intParam(query, "x");
+        int y = intParam(query, "y");
+        TrafficSignType type = TrafficSignType.valueOf(query.getOrDefault("type", "STOP").toUpperCase(Locale.ROOT));
+        editCell(x, y, environment -> environment.addTrafficSign(x, y, type));
+        return "{\"x\":" + x + ",\"y\":" + y + ",\"sign\":\"" + type + "\"}";
+    }
+
+    private void editCell(int x, int y, Consumer<Environment> edit) {
+        query(current -> {
+            Environment environment = current.getEnvironment();
+            if (!environment.isValidPosition(x, y) || environment.isWall(x, y)) {
+                throw new IllegalArgumentException("(" + x + "," + y + ") is not a road cell.");
+            }
+            edit.accept(environment);
+            return null;
+        });
+    }
+
+    private String spawn(Map<String, String> query) {
+        if (query.containsKey("x") || query.containsKey("y")) {
+            int x = intParam(query, "x");
+            int y = intParam(query, "y");
+            int id = query(current -> current.getFleet().spawn(x, y));
+            if (id < 0) {
+                throw new HttpError(409, "(" + x + "," + y + ") is blocked or taken.");
+            }
+            return "{\"spawned\":1,\"id\":" + id + "}";
+        }
+        int count = intParam(query, "count", 1);
+        int[] result = query(current -> new int[]{current.getFleet().spawnRandom(count), current.getFleet().size()});
+        return "{\"spawned\":" + result[0] + ",\"agents\":" + result[1] + "}";
+    }
+
+    private String loadMap(Map<String, String> query, InputStream body) throws IOException {
+        Environment environment;
+        byte[] layout = body.readAllBytes();
+        if (layout.length > 0) {
+            environment = MapFile.importAscii(new InputStreamReader(
+                    new ByteArrayInputStream(layout), StandardCharsets.UTF_8));
+        } else {
+            int width = intParam(query, "width");
+            int height = intParam(query, "height", width);
+            int block = intParam(query, "block", 12);
+            if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bad map size " + width + "x" + height);
+            }
+            environment = new Environment(width, height);
+            environment.createCityGrid(block);
+            for (int y = 0; y < height; y += block) {
+                for (int x = 0; x < width; x += block) {
+                    environment.addTrafficLight(x, y, (x + y) % (2 * block) == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+                }
+            }
+        }
+        setEngine(new SimulationEngine(environment, intParam(query, "seed", 0)));
+        return status();
+    }
+
+    private String step(int ticks) {
+        if (ticks < 1 || ticks > MAX_STEP_TICKS) {
+            throw new IllegalArgumentException("ticks must be between 1 and " + MAX_STEP_TICKS + ".");
+        }
+        SimulationEngine current = engine;
+        CompletableFuture<Long> batch;
+        try {
+            batch = current.startBatch(ticks); // the engine thread steps; this virtual thread only parks
+        } catch (IllegalStateException e) {
+            throw new HttpError(409, "The engine is running; POST /stop before stepping.");
+        }
+        long start = System.nanoTime();
+        long ran;
+        try {
+            ran = batch.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Interrupted; the batch goes on until POST /stop.");
+        }
+        long nanos = System.nanoTime() - start;
+        return "{\"tick\":" + current.getTick() + ",\"ticks\":" + ran + ",\"millis\":" + nanos / 1_000_000.0 + "}";
+    }
+
+    private String run(double rate) {
+        SimulationEngine current = engine;
+        current.setTickRate(rate);
+        current.start();
+        return status();
+    }
+
+    private String stop() {
+        engine.stop();
+        return status();
+    }
+
+    /**
+     * Runs a query on the engine thread at the next tick boundary (or now, if the engine is
+     * stopped) and waits for its result; only this virtual thread waits, never the tick loop.
+     * A query that times out is cancelled, so an edit the client was told failed never runs; one
+     * the engine already started is waited for and answered normally.
+     */
+    private <T> T query(Function<SimulationEngine, T> query) {
+        SimulationEngine current = engine;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicBoolean claimed = new AtomicBoolean();
+        current.submit(environment -> {
+            if (claimed.compareAndSet(false, true)) {
+                result.complete(query.apply(current));
+            }
+        }).exceptionally(error -> {
+            result.completeExceptionally(error);
+            return null;
+        });
+        try {
+            try {
+                return result.get(QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (claimed.compareAndSet(false, true)) {
+                    throw new HttpError(503, "The engine did not reach a tick boundary in time.");
+                }
+                return result.get(); // already running on the engine thread
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (claimed.compareAndSet(false, true)) {
+                throw new HttpError(503, "Interrupted.");
+            }
+            throw new HttpError(503, "Interrupted; the request may still be applied.");
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null || raw.isEmpty()) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int split = pair.indexOf('=');
+            String key = split < 0 ? pair : pair.substring(0, split);
+            String value = split < 0 ? "" : pair.substring(split + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static int intParam(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return Integer.parseInt(value);
+    }
+
+    private static int intParam(Map<String, String> query, String name, int fallback) {
+        return query.containsKey(name) ? intParam(query, name) : fallback;
+    }
+
+    private static String notAllowed(String method) {
+        throw new HttpError(405, method + " is not supported here.");
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static final class HttpError extends RuntimeException {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /** One snapshot ready to send: the delta from the previous one, and the full state on demand. */
+    private static final class Frame {
+        final long sequence;
+        final SimulationSnapshot snapshot;
+        final byte[] delta;
+        private byte[] full;
+
+        Frame(long sequence, SimulationSnapshot snapshot, byte[] delta) {
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+            this.delta = delta;
+        }
+
+        synchronized byte[] full() {
+            if (full == null) {
+                StringBuilder json = new StringBuilder(snapshot.agentCount() * 12 + 64)
+                        .append("{\"type\":\"full\",\"tick\":").append(snapshot.tick()).append(",\"agents\":[");
+                for (int i = 0; i < snapshot.agentCount(); i++) {
+                    json.append(i == 0 ? "" : ",").append(snapshot.agentX()[i]).append(',').append(snapshot.agentY()[i]);
+                }
+                json.append("],\"lights\":[");
+                appendLights(json, snapshot, null);
+                full = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return full;
+        }
+    }
+
+    /** Turns snapshots from the engine thread into frames and wakes the client threads. */
+    private void broadcast() {
+        SimulationSnapshot previous = null;
+        long sequence = 0;
+        while (!closed) {
+            SimulationSnapshot snapshot;
+            frameLock.lock();
+            try {
+                while (pendingSnapshot == null && !closed) {
+                    newSnapshot.awaitUninterruptibly();
+                }
+                snapshot = pendingSnapshot;
+                pendingSnapshot = null;
+            } finally {
+                frameLock.unlock();
+            }
+            if (snapshot == null) {
+                return;
+            }
+            Frame frame = new Frame(++sequence, snapshot, delta(previous, snapshot));
+            previous = snapshot;
+            frameLock.lock();
+            try {
+                latestFrame = frame;
+                newFrame.signalAll();
+            } finally {
+                frameLock.unlock();
+            }
+        }
+    }
+
+    /** @return the agents and lights that changed between two snapshots, or null if they can't be compared */
+    private static byte[] delta(SimulationSnapshot before, SimulationSnapshot after) {
+        if (before == null || before.agentCount() > after.agentCount() || after.tick() < before.tick()) {
+            return null; // first frame, despawns or a new map: only a full frame describes it
+        }
+        StringBuilder json = new StringBuilder(256).append("{\"type\":\"delta\",\"tick\":").append(after.tick())
+                .append(",\"count\":").append(after.agentCount()).append(",\"agents\":[");
+        int[] xs = after.agentX();
+        int[] ys = after.agentY();
+        boolean first = true;
+        for (int i = 0; i < xs.length; i++) {
+            if (i >= before.agentCount() || xs[i] != before.agentX()[i] || ys[i] != before.agentY()[i]) {
+                json.append(first ? "" : ",").append(i).append(',').append(xs[i]).append(',').append(ys[i]);
+                first = false;
+            }
+        }
+        json.append("],\"lights\":[");
+        boolean sameLights = before.lightCount() == after.lightCount();
+        for (int i = 0; sameLights && i < after.lightCount(); i++) {
+            sameLights = before.lightX()[i] == after.lightX()[i] && before.lightY()[i] == after.lightY()[i];
+        }
+        if (!sameLights) {
+            return null;
+        }
+        appendLights(json, after, before);
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Appends x, y, state for every light, or only those whose state differs from before. */
+    private static void appendLights(StringBuilder json, SimulationSnapshot snapshot, SimulationSnapshot before) {
+        boolean first = true;
+        for (int i = 0; i < snapshot.lightCount(); i++) {
+            if (before != null && before.lightStates()[i] == snapshot.lightStates()[i]) {
+                continue;
+            }
+            json.append(first ? "" : ",").append(snapshot.lightX()[i]).append(',').append(snapshot.lightY()[i])
+                    .append(",\"").append(snapshot.lightStates()[i]).append('"');
+            first = false;
+        }
+    }
+
+    private void acceptWebSockets() {
+        while (!closed) {
+            try {
+                Socket socket = webSockets.accept();
+                threads.execute(() -> serveWebSocket(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("WebSocket accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serveWebSocket(Socket socket) {
+        PushClient client;
+        try {
+            socket.setTcpNoDelay(true);
+            client = PushClient.handshake(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+        pushClients.add(client);
+        threads.execute(client::readUntilClosed);
+        try {
+            long sent = 0;
+            while (!closed && client.isOpen()) {
+                Frame frame;
+                frameLock.lock();
+                try {
+                    while ((latestFrame == null || latestFrame.sequence == sent) && !closed && client.isOpen()) {
+                        newFrame.await(1, TimeUnit.SECONDS); // wakes now and then to notice a closed client
+                    }
+                    frame = latestFrame;
+                } finally {
+                    frameLock.unlock();
+                }
+                if (frame == null || frame.sequence == sent) {
+                    continue;
+                }
+                boolean next = frame.sequence == sent + 1 && frame.delta != null && sent != 0;
+                client.sendText(next ? frame.delta : frame.full());
+                sent = frame.sequence;
+            }
+        } catch (IOException | InterruptedException e) {
+            // client went away
+        } finally {
+            pushClients.remove(client);
+            client.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    /** A WebSocket connection (RFC 6455) that the server only writes text to; pings are answered. */
+    private static final class PushClient implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile boolean open = true;
+
+        private PushClient(Socket socket, DataInputStream in) throws IOException {
+            this.socket = socket;
+            this.in = in;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        }
+
+        /** Reads the HTTP upgrade request and answers it. */
+        static PushClient handshake(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            String key = null;
+            String line = readLine(in);
+            if (line == null || !line.startsWith("GET ")) {
+                throw new IOException("Not a WebSocket upgrade: " + line);
+            }
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    key = line.substring(colon + 1).trim();
+                }
+            }
+            if (key == null) {
+                throw new IOException("Missing Sec-WebSocket-Key");
+            }
+            PushClient client = new PushClient(socket, in);
+            String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n";
+            client.out.write(response.getBytes(StandardCharsets.US_ASCII));
+            client.out.flush();
+            return client;
+        }
+
+        private static String accept(String key) {
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+                return Base64.getEncoder().encodeToString(digest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // every JDK has SHA-1
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+                if (line.length() > 8192) {
+                    throw new IOException("Header line too long");
+                }
+            }
+            return c == -1 && line.isEmpty() ? null : line.toString();
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        void sendText(byte[] payload) throws IOException {
+            send(0x1, payload);
+        }
+
+        private void send(int opcode, byte[] payload) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(0x80 | opcode); // FIN, no extensions; server frames are not masked
+                if (payload.length < 126) {
+                    out.write(payload.length);
+                } else if (payload.length < 65536) {
+                    out.write(126);
+                    out.write(payload.length >>> 8);
+                    out.write(payload.length);
+                } else {
+                    out.write(127);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) ((long) payload.length >>> shift));
+                    }
+                }
+                out.write(payload);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** Answers pings and returns once the client closes; client data frames are ignored. */
+        void readUntilClosed() {
+            try {
+                while (open) {
+                    int first = in.readUnsignedByte();
+                    int second = in.readUnsignedByte();
+                    long length = second & 0x7F;
+                    if (length == 126) {
+                        length = in.readUnsignedShort();
+                    } else if (length == 127) {
+                        length = in.readLong();
+                    }
+                    byte[] mask = new byte[4];
+                    if ((second & 0x80) != 0) {
+                        in.readFully(mask);
+                    }
+                    if (length < 0 || length > 1 << 20) {
+                        throw new IOException("Bad client frame length " + length);
+                    }
+                    byte[] payload = new byte[(int) length];
+                    in.readFully(payload);
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+                    int opcode = first & 0x0F;
+                    if (opcode == 0x8) {
+                        send(0x8, payload);
+                        break;
+                    } else if (opcode == 0x9) {
+                        send(0xA, payload);
+                    }
+                }
+            } catch (IOException e) {
+                // connection dropped
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            closeQuietly(socket);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int agents = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        Environment environment = new Environment(size, size);
+        environment.createCityGrid(12);
+        for (int y = 0; y < size; y += 12) {
+            for (int x = 0; x < size; x += 12) {
+                environment.addTrafficLight(x, y, (x + y) % 24 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+            }
+        }
+        SimulationEngine engine = new SimulationEngine(environment, 1);
+        engine.getFleet().spawnRandom(agents);
+        SimulationServer server = new SimulationServer(engine, port);
+        server.start();
+        if (rate > 0) {
+            engine.setTickRate(rate);
+            engine.start();
+        }
+        System.out.printf("Serving http://localhost:%d/status and ws://localhost:%d/%n",
+                server.getPort(), server.getWebSocketPort());
+        Thread.currentThread().join(); // until killed
+    }
+}
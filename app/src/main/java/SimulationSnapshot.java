@@ -0,0 +1,22 @@
+/**
+ * Immutable view of the engine state at the end of a tick, safe to hand to the UI thread.
+ * Traffic lights and fleet agents are stored as parallel arrays: light i sits at
+ * (lightX[i], lightY[i]) and agent i at (agentX[i], agentY[i]).
+ */
+public record SimulationSnapshot(
+        long tick,
+        double ticksPerSecond,
+        int[] lightX,
+        int[] lightY,
+        TrafficLightState[] lightStates,
+        int[] agentX,
+        int[] agentY) {
+
+    public int lightCount() {
+        return lightStates.length;
+    }
+
+    public int agentCount() {
+        return agentX.length;
+    }
+}
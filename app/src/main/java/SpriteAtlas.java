@@ -0,0 +1,137 @@
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Traffic sign and light glyphs rasterised once into a strip image, one square sprite per sign
+ * type and light state, so the renderer draws any glyph with one drawImage from the strip instead
+ * of polygons, ovals and text per cell and frame.
+ * <p>
+ * Strips are made on first use at power-of-two sprite sizes from 8 to 64 pixels; a cell is drawn
+ * from the smallest strip whose sprites are at least as big, so glyphs stay sharp at any zoom.
+ * Must be used on the FX thread.
+ */
+final class SpriteAtlas {
+
+    private static final int MIN_SHIFT = 3;
+    private static final int MAX_SHIFT = 6;
+    private static final int PADDING = 2;
+    private static final TrafficSignType[] SIGN_TYPES = TrafficSignType.values();
+    private static final TrafficLightState[] LIGHT_STATES = TrafficLightState.values();
+
+    private final WritableImage[] strips = new WritableImage[MAX_SHIFT + 1];
+
+    /** Draws a sign into the square of the given pixel size at (x,y). */
+    void drawSign(GraphicsContext gc, TrafficSignType type, double x, double y, double size) {
+        draw(gc, type.ordinal(), x, y, size);
+    }
+
+    /** Draws a light in the given state into the square of the given pixel size at (x,y). */
+    void drawLight(GraphicsContext gc, TrafficLightState state, double x, double y, double size) {
+        draw(gc, SIGN_TYPES.length + state.ordinal(), x, y, size);
+    }
+
+    private void draw(GraphicsContext gc, int sprite, double x, double y, double size) {
+        int shift = MIN_SHIFT;
+        while (shift < MAX_SHIFT && (1 << shift) < size) {
+            shift++;
+        }
+        WritableImage strip = strips[shift];
+        if (strip == null) {
+            strip = rasterise(1 << shift);
+            strips[shift] = strip;
+        }
+        int spriteSize = 1 << shift;
+        gc.drawImage(strip, sprite * spriteSize, 0, spriteSize, spriteSize, x, y, size, size);
+    }
+
+    private static WritableImage rasterise(int size) {
+        Canvas canvas = new Canvas(size * (SIGN_TYPES.length + LIGHT_STATES.length), size);
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        for (TrafficSignType type : SIGN_TYPES) {
+            drawTrafficSign(gc, type.ordinal() * size, 0, size, type);
+        }
+        for (TrafficLightState state : LIGHT_STATES) {
+            drawTrafficLight(gc, (SIGN_TYPES.length + state.ordinal()) * size, 0, size, state);
+        }
+        SnapshotParameters parameters = new SnapshotParameters();
+        parameters.setFill(Color.TRANSPARENT);
+        return canvas.snapshot(parameters, null);
+    }
+
+    private static void drawTrafficLight(GraphicsContext gc, int x, int y, int cellSize, TrafficLightState state) {
+        gc.setFill(Color.DARKGREY);
+        gc.fillRect(x + PADDING, y + PADDING, cellSize - 2*PADDING, cellSize - 2*PADDING);
+        switch (state) {
+            case RED    -> gc.setFill(Color.RED);
+            case YELLOW -> gc.setFill(Color.YELLOW);
+            case GREEN  -> gc.setFill(Color.LIME);
+        }
+        gc.fillOval(x + cellSize/4, y + cellSize/4, cellSize/2, cellSize/2);
+    }
+
+    private static void drawTrafficSign(GraphicsContext gc, int x, int y, int cellSize, TrafficSignType type) {
+        boolean text = cellSize >= 32; // the default font doesn't fit anything smaller
+        switch (type) {
+            case STOP -> {
+                gc.setFill(Color.RED);
+                double[] xp = new double[8];
+                double[] yp = new double[8];
+                double r = cellSize/2 - PADDING;
+                double cx = x + cellSize/2;
+                double cy = y + cellSize/2;
+                for (int i = 0; i < 8; i++) {
+                    double angle = Math.PI/8 + i * Math.PI/4;
+                    xp[i] = cx + r * Math.cos(angle);
+                    yp[i] = cy + r * Math.sin(angle);
+                }
+                gc.fillPolygon(xp, yp, 8);
+                if (text) {
+                    gc.setFill(Color.WHITE);
+                    gc.fillText("STOP", x + cellSize/2 - 13, y + cellSize/2 + 4);
+                }
+            }
+            case YIELD -> {
+                gc.setFill(Color.YELLOW);
+                gc.fillPolygon(
+                    new double[]{x+cellSize/2, x+PADDING, x+cellSize-PADDING},
+                    new double[]{y+PADDING, y+cellSize-PADDING, y+cellSize-PADDING},
+                    3
+                );
+            }
+            case SPEED_LIMIT -> {
+                gc.setFill(Color.WHITE);
+                gc.fillOval(x+PADDING, y+PADDING, cellSize-2*PADDING, cellSize-2*PADDING);
+                gc.setStroke(Color.RED);
+                gc.setLineWidth(Math.max(1, cellSize/12));
+                gc.strokeOval(x+PADDING, y+PADDING, cellSize-2*PADDING, cellSize-2*PADDING);
+                if (text) {
+                    gc.setFill(Color.BLACK);
+                    gc.fillText("30", x+cellSize/2-7, y+cellSize/2+4);
+                }
+            }
+            case ONE_WAY -> {
+                gc.setFill(Color.BLUE);
+                gc.fillRect(x+PADDING, y+PADDING, cellSize-2*PADDING, cellSize-2*PADDING);
+                gc.setFill(Color.WHITE);
+                gc.fillPolygon(
+                    new double[]{x+cellSize/2, x+cellSize/4, x+3*cellSize/4},
+                    new double[]{y+PADDING+2, y+cellSize-PADDING-2, y+cellSize-PADDING-2},
+                    3
+                );
+                gc.fillRect(x+cellSize/2-cellSize/12, y+cellSize/3, Math.max(1, cellSize/6), cellSize/3);
+            }
+            case NO_ENTRY -> {
+                gc.setFill(Color.WHITE);
+                gc.fillOval(x+PADDING, y+PADDING, cellSize-2*PADDING, cellSize-2*PADDING);
+                gc.setFill(Color.RED);
+                gc.fillRect(x+PADDING+2, y+cellSize/2-cellSize/8, cellSize-2*PADDING-4, Math.max(1, cellSize/4));
+                gc.setStroke(Color.RED);
+                gc.setLineWidth(Math.max(1, cellSize/12));
+                gc.strokeOval(x+PADDING, y+PADDING, cellSize-2*PADDING, cellSize-2*PADDING);
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+/**
+ * Streams per-tick agent positions, light states and map events to a binary file for offline
+ * analysis; read it back with {@link TelemetryReader}.
+ * <p>
+ * The exporter is an Agent: added to a SimulationEngine with addAgent, it captures a frame after
+ * the fleet has moved on every sampled tick. Capturing copies the state column by column into a
+ * preallocated slot of a bounded single-producer ring buffer and returns; the tick loop never
+ * waits for the disk. A background thread drains the ring, packs frames into batches, optionally
+ * deflates each batch and appends it through a FileChannel. If the writer falls behind and the
+ * ring is full, the frame is dropped and counted rather than stalling the simulation.
+ * <p>
+ * File layout (little-endian): int magic, short version, int width, int height, int everyTicks,
+ * int agentStride, byte compression level, then blocks of int raw length, int stored length and
+ * the batch, deflated unless the level is 0. A frame in a batch is: long tick, int agent count, int light count, int event count,
+ * four longs of fleet totals (moves, blocked, collisions, arrivals), then the columns int x[],
+ * int y[] of the sampled agents, int lightX[], int lightY[], byte lightState[], and the events
+ * since the previous frame as byte kind[], int x[], int y[], int value[].
+ */
+public class TelemetryExporter implements Agent, EnvironmentListener, Closeable {
+
+    static final int MAGIC = 0x4D4C5441; // "ATLM" read little-endian
+    static final short VERSION = 2;
+    static final int HEADER_BYTES = 4 + 2 + 4 * 4 + 1;
+    static final int FRAME_HEADER_BYTES = 8 + 4 * 3 + 8 * 4;
+    /** Event kind: a traffic light on (x,y) changed to the TrafficLightState ordinal in value. */
+    public static final byte EVENT_LIGHT = 0;
+    /** Event kind: the cell (x,y) changed to the CellType ordinal in value. */
+    public static final byte EVENT_CELL = 1;
+    /**
+     * Event kind: the signs on (x,y) changed; bit t of value is set when a sign of the
+     * TrafficSignType with ordinal t is on the cell, so 0 means its last sign was removed.
+     */
+    public static final byte EVENT_SIGN = 2;
+
+    /**
+     * @param everyTicks capture every n-th tick
+     * @param agentStride export every n-th agent (by id)
+     * @param compression Deflater level, 0 to store batches uncompressed
+     * @param ringFrames frames the ring buffer holds before new ones are dropped
+     * @param batchBytes raw size at which a batch is written out
+     */
+    public record Options(int everyTicks, int agentStride, int compression, int ringFrames, int batchBytes) {
+
+        public Options {
+            if (everyTicks < 1 || agentStride < 1 || compression < 0 || compression > 9 || ringFrames < 1
+                    || batchBytes < 1) {
+                throw new IllegalArgumentException("Invalid telemetry options.");
+            }
+        }
+
+        /** Every tick, every agent, fast compression, 64 frames of slack, 1 MiB batches. */
+        public static Options defaults() {
+            return new Options(1, 1, Deflater.BEST_SPEED, 64, 1 << 20);
+        }
+    }
+
+    private final SimulationEngine engine;
+    private final Environment environment;
+    private final Options options;
+    private final FileChannel channel;
+    private final Thread writer;
+    private final ElementRecorder recorder = new ElementRecorder();
+    private final BitSet signedCells = new BitSet(); // cells whose last EVENT_SIGN had signs
+
+    // Ring buffer: the engine thread owns tail and the slots from tail on, the writer owns head
+    private final ByteBuffer[] slots;
+    private volatile long head;
+    private volatile long tail;
+    private volatile boolean closed;
+
+    // Events since the last frame, appended on the engine thread
+    private int eventCount;
+    private byte[] eventKind = new byte[64];
+    private int[] eventX = new int[64];
+    private int[] eventY = new int[64];
+    private int[] eventValue = new int[64];
+
+    private volatile long framesWritten;
+    private volatile long framesDropped;
+    private volatile long bytesWritten;
+    private volatile IOException failure;
+
+    public TelemetryExporter(SimulationEngine engine, Path file, Options options) throws IOException {
+        this.engine = engine;
+        this.environment = engine.getEnvironment();
+        this.options = options;
+        this.slots = new ByteBuffer[options.ringFrames()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort(VERSION).putInt(environment.getWidth()).putInt(environment.getHeight())
+                .putInt(options.everyTicks()).putInt(options.agentStride())
+                .put((byte) options.compression()).flip();
+        writeFully(header);
+        bytesWritten = HEADER_BYTES;
+        writer = new Thread(this::drain, "telemetry-writer");
+        writer.setDaemon(true);
+        writer.start();
+        environment.addListener(this);
+    }
+
+    @Override
+    public void step(Environment environment, long tick) {
+        if (closed || tick % options.everyTicks() != 0) {
+            return;
+        }
+        long t = tail;
+        if (failure != null || t - head == slots.length) {
+            framesDropped++; // only the engine thread writes this counter
+            eventCount = 0;
+            return;
+        }
+        int slot = (int) (t % slots.length);
+        slots[slot] = capture(slots[slot], tick);
+        eventCount = 0;
+        tail = t + 1; // publishes the slot to the writer
+        LockSupport.unpark(writer);
+    }
+
+    private ByteBuffer capture(ByteBuffer buffer, long tick) {
+        Fleet fleet = engine.getFleet();
+        int stride = options.agentStride();
+        int agents = (fleet.size() + stride - 1) / stride;
+        List<TrafficLight> lights = environment.getTrafficLights();
+        int size = FRAME_HEADER_BYTES + agents * 8 + lights.size() * 9 + eventCount * 13;
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        buffer.putLong(tick).putInt(agents).putInt(lights.size()).putInt(eventCount);
+        buffer.putLong(fleet.getMoves()).putLong(fleet.getBlockedMoves()).putLong(fleet.getCollisions())
+                .putLong(fleet.getArrivals());
+        for (int i = 0; i < fleet.size(); i += stride) {
+            buffer.putInt(fleet.getX(i));
+        }
+        for (int i = 0; i < fleet.size(); i += stride) {
+            buffer.putInt(fleet.getY(i));
+        }
+        for (int i = 0; i < lights.size(); i++) {
+            buffer.putInt(lights.get(i).getX());
+        }
+        for (int i = 0; i < lights.size(); i++) {
+            buffer.putInt(lights.get(i).getY());
+        }
+        for (int i = 0; i < lights.size(); i++) {
+            buffer.put((byte) lights.get(i).getState().ordinal());
+        }
+        buffer.put(eventKind, 0, eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            buffer.putInt(eventX[i]);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            buffer.putInt(eventY[i]);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            buffer.putInt(eventValue[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void cellChanged(int x, int y) {
+        int flags = environment.getCellFlags(x, y);
+        int index = y * environment.getWidth() + x;
+        boolean signs = (flags & Environment.FLAG_SIGN) != 0 || signedCells.get(index);
+        recorder.signMask = 0;
+        if ((flags & Environment.FLAG_LIGHT) != 0 || signs) {
+            environment.forEachElement(x, y, recorder);
+        }
+        if ((flags & Environment.FLAG_LIGHT) == 0) {
+            addEvent(EVENT_CELL, x, y, environment.getCellType(x, y).ordinal());
+        }
+        if (signs) {
+            addEvent(EVENT_SIGN, x, y, recorder.signMask);
+            signedCells.set(index, recorder.signMask != 0);
+        }
+    }
+
+    private final class ElementRecorder implements Environment.ElementVisitor {
+        int signMask;
+
+        @Override
+        public void visitLight(int x, int y, TrafficLight light) {
+            addEvent(EVENT_LIGHT, x, y, light.getState().ordinal());
+        }
+
+        @Override
+        public void visitSign(int x, int y, TrafficSign sign) {
+            signMask |= 1 << sign.getType().ordinal();
+        }
+    }
+
+    private void addEvent(byte kind, int x, int y, int value) {
+        if (eventCount == eventKind.length) {
+            int capacity = eventCount * 2;
+            eventKind = Arrays.copyOf(eventKind, capacity);
+            eventX = Arrays.copyOf(eventX, capacity);
+            eventY = Arrays.copyOf(eventY, capacity);
+            eventValue = Arrays.copyOf(eventValue, capacity);
+        }
+        eventKind[eventCount] = kind;
+        eventX[eventCount] = x;
+        eventY[eventCount] = y;
+        eventValue[eventCount] = value;
+        eventCount++;
+    }
+
+    /** Writer thread: moves frames from the ring into batches until closed and drained. */
+    private void drain() {
+        ByteBuffer batch = ByteBuffer.allocate(options.batchBytes());
+        Deflater deflater = options.compression() > 0 ? new Deflater(options.compression()) : null;
+        byte[] compressed = new byte[0];
+        ByteBuffer blockHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (true) {
+                boolean done = closed; // read before tail: every frame published before close() is seen
+                long h = head;
+                boolean empty = h == tail;
+                if (!empty) {
+                    ByteBuffer frame = slots[(int) (h % slots.length)];
+                    if (batch.position() > 0 && batch.remaining() < frame.remaining()) {
+                        compressed = writeBatch(batch, deflater, compressed, blockHeader);
+                    }
+                    if (batch.capacity() < frame.remaining()) {
+                        batch = ByteBuffer.allocate(frame.remaining()); // a single frame bigger than a batch
+                    }
+                    batch.put(frame.duplicate());
+                    framesWritten++;
+                    head = h + 1; // hands the slot back to the engine thread
+                } else if (batch.position() > 0 && (done || batch.position() >= options.batchBytes() / 2)) {
+                    compressed = writeBatch(batch, deflater, compressed, blockHeader);
+                } else if (done) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(this, 10_000_000);
+                }
+            }
+        } catch (IOException e) {
+            failure = e; // step() drops every later capture
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private byte[] writeBatch(ByteBuffer batch, Deflater deflater, byte[] compressed, ByteBuffer blockHeader)
+            throws IOException {
+        batch.flip();
+        int rawLength = batch.remaining();
+        ByteBuffer payload = batch;
+        if (deflater != null) {
+            if (compressed.length < rawLength + 64) {
+                compressed = new byte[rawLength + rawLength / 8 + 64];
+            }
+            deflater.reset();
+            deflater.setInput(batch.array(), 0, rawLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+            }
+            payload = ByteBuffer.wrap(compressed, 0, length);
+        }
+        blockHeader.clear();
+        blockHeader.putInt(rawLength).putInt(payload.remaining()).flip();
+        long written = blockHeader.remaining() + payload.remaining();
+        ByteBuffer[] block = {blockHeader, payload};
+        while (blockHeader.hasRemaining() || payload.hasRemaining()) {
+            channel.write(block);
+        }
+        bytesWritten += written;
+        batch.clear();
+        return compressed;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** @return frames handed to the file (some may still be in the writer's current batch) */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /** @return frames dropped because the ring buffer was full */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /** @return bytes written to the file so far */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Stops capturing, writes every queued frame and closes the file; call it after the engine has stopped. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        environment.removeListener(this);
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file written by {@link TelemetryExporter} one frame at a time. Getters read the current
+ * frame's columns in place, so scanning a long run does not create objects per frame.
+ * Usage: TelemetryReader telemetry-file [trajectories.csv]
+ */
+public class TelemetryReader implements Closeable {
+
+    private static final TrafficLightState[] LIGHT_STATES = TrafficLightState.values();
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int everyTicks;
+    private final int agentStride;
+    private final boolean compressed;
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private final Inflater inflater = new Inflater();
+    private byte[] stored = new byte[0];
+    private ByteBuffer batch = ByteBuffer.allocate(0);
+
+    // Current frame
+    private long tick;
+    private int agents;
+    private int lights;
+    private int events;
+    private long moves;
+    private long blocked;
+    private long collisions;
+    private long arrivals;
+    private int xs;
+    private int ys;
+    private int lightXs;
+    private int lightYs;
+    private int lightStates;
+    private int eventKinds;
+    private int eventXs;
+    private int eventYs;
+    private int eventValues;
+
+    public TelemetryReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(TelemetryExporter.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header);
+            header.flip();
+            if (header.getInt() != TelemetryExporter.MAGIC || header.getShort() != TelemetryExporter.VERSION) {
+                throw new IOException("Not a telemetry file: " + file);
+            }
+            width = header.getInt();
+            height = header.getInt();
+            everyTicks = header.getInt();
+            agentStride = header.getInt();
+            compressed = header.get() != 0;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Moves to the next frame. @return false at the end of the file */
+    public boolean next() throws IOException {
+        if (!batch.hasRemaining() && !readBlock()) {
+            return false;
+        }
+        tick = batch.getLong();
+        agents = batch.getInt();
+        lights = batch.getInt();
+        events = batch.getInt();
+        moves = batch.getLong();
+        blocked = batch.getLong();
+        collisions = batch.getLong();
+        arrivals = batch.getLong();
+        xs = batch.position();
+        ys = xs + agents * 4;
+        lightXs = ys + agents * 4;
+        lightYs = lightXs + lights * 4;
+        lightStates = lightYs + lights * 4;
+        eventKinds = lightStates + lights;
+        eventXs = eventKinds + events;
+        eventYs = eventXs + events * 4;
+        eventValues = eventYs + events * 4;
+        batch.position(eventValues + events * 4);
+        return true;
+    }
+
+    private boolean readBlock() throws IOException {
+        blockHeader.clear();
+        int read = channel.read(blockHeader);
+        if (read < 0) {
+            return false;
+        }
+        readFully(blockHeader);
+        blockHeader.flip();
+        int rawLength = blockHeader.getInt();
+        int storedLength = blockHeader.getInt();
+        if (stored.length < storedLength) {
+            stored = new byte[storedLength];
+        }
+        readFully(ByteBuffer.wrap(stored, 0, storedLength));
+        if (batch.capacity() < rawLength) {
+            batch = ByteBuffer.allocate(rawLength).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        batch.clear();
+        if (!compressed) {
+            batch.put(stored, 0, rawLength);
+        } else {
+            inflater.reset();
+            inflater.setInput(stored, 0, storedLength);
+            try {
+                if (inflater.inflate(batch.array(), 0, rawLength) != rawLength) {
+                    throw new IOException("Truncated telemetry block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt telemetry block", e);
+            }
+            batch.position(rawLength);
+        }
+        batch.flip();
+        return true;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Telemetry file ends in the middle of a block");
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getEveryTicks() {
+        return everyTicks;
+    }
+
+    /** @return n when every n-th agent was exported: agent i of a frame is fleet agent i * n */
+    public int getAgentStride() {
+        return agentStride;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public int getAgentCount() {
+        return agents;
+    }
+
+    public int getX(int agent) {
+        return batch.getInt(xs + agent * 4);
+    }
+
+    public int getY(int agent) {
+        return batch.getInt(ys + agent * 4);
+    }
+
+    public int getLightCount() {
+        return lights;
+    }
+
+    public int getLightX(int light) {
+        return batch.getInt(lightXs + light * 4);
+    }
+
+    public int getLightY(int light) {
+        return batch.getInt(lightYs + light * 4);
+    }
+
+    public TrafficLightState getLightState(int light) {
+        return LIGHT_STATES[batch.get(lightStates + light)];
+    }
+
+    /** @return events since the previous exported frame */
+    public int getEventCount() {
+        return events;
+    }
+
+    /** @return TelemetryExporter.EVENT_LIGHT, EVENT_CELL or EVENT_SIGN */
+    public byte getEventKind(int event) {
+        return batch.get(eventKinds + event);
+    }
+
+    public int getEventX(int event) {
+        return batch.getInt(eventXs + event * 4);
+    }
+
+    public int getEventY(int event) {
+        return batch.getInt(eventYs + event * 4);
+    }
+
+    /** @return the TrafficLightState or CellType ordinal, or the sign bit mask, depending on the kind */
+    public int getEventValue(int event) {
+        return batch.getInt(eventValues + event * 4);
+    }
+
+    /** @return true if the event is an EVENT_SIGN whose cell now holds a sign of the given type */
+    public boolean hasEventSign(int event, TrafficSignType type) {
+        return getEventKind(event) == TelemetryExporter.EVENT_SIGN
+                && (getEventValue(event) & 1 << type.ordinal()) != 0;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    public long getBlockedMoves() {
+        return blocked;
+    }
+
+    public long getCollisions() {
+        return collisions;
+    }
+
+    public long getArrivals() {
+        return arrivals;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    /** Prints a summary and optionally writes every trajectory point as tick,agent,x,y CSV. */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TelemetryReader <telemetry-file> [trajectories.csv]");
+            System.exit(2);
+        }
+        try (TelemetryReader reader = new TelemetryReader(Path.of(args[0]));
+             BufferedWriter csv = args.length > 1
+                     ? Files.newBufferedWriter(Path.of(args[1]), StandardCharsets.UTF_8) : null) {
+            if (csv != null) {
+                csv.write("tick,agent,x,y");
+                csv.newLine();
+            }
+            long frames = 0;
+            long points = 0;
+            long events = 0;
+            long first = -1;
+            while (reader.next()) {
+                if (first < 0) {
+                    first = reader.getTick();
+                }
+                frames++;
+                points += reader.getAgentCount();
+                events += reader.getEventCount();
+                if (csv != null) {
+                    for (int i = 0; i < reader.getAgentCount(); i++) {
+                        csv.write(reader.getTick() + "," + i * reader.getAgentStride() + ","
+                                + reader.getX(i) + "," + reader.getY(i));
+                        csv.newLine();
+                    }
+                }
+            }
+            System.out.printf("%dx%d map, every %d ticks, every %d agents%n", reader.getWidth(), reader.getHeight(),
+                    reader.getEveryTicks(), reader.getAgentStride());
+            System.out.printf("%d frames (ticks %d..%d), %d agent positions, %d events; final totals: "
+                            + "moves %d, blocked %d, collisions %d, arrivals %d%n",
+                    frames, first, reader.getTick(), points, events, reader.getMoves(), reader.getBlockedMoves(),
+                    reader.getCollisions(), reader.getArrivals());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Draws a viewport of the map in a terminal, using the {@link Cell#getDisplayChar()} legend with
+ * fleet agents overlaid as 'o'.
+ * <p>
+ * A frame is rendered in two steps. {@link #capture} fills a reusable char buffer with the
+ * viewport (a status line, the framed cells, agents on top), reading only cell flags and the
+ * OccupancyGrid, so it touches viewport-many cells rather than the whole map; run it under the
+ * engine's lock with SimulationEngine.edit while the engine runs. {@link #write} then compares
+ * the buffer with the last frame sent and emits only the changed runs of characters, each after
+ * an ANSI cursor move, in a single write; the first frame, and any after the viewport moves,
+ * clears the screen and is sent whole. A steady map with a few moving agents costs a few bytes
+ * per frame, which keeps live monitoring over SSH smooth.
+ * Usage: TerminalRenderer [size] [agents] [fps] [columns] [rows]
+ */
+public class TerminalRenderer {
+
+    static final char AGENT = 'o';
+    private static final int MERGE_GAP = 4; // rewriting a short unchanged gap is cheaper than a cursor move
+    private static final int FOLLOW_MARGIN = 5;
+
+    private final Environment environment;
+    private final Fleet fleet;
+    private final int columns;
+    private final int rows;
+    private final int screenWidth;
+    private final int screenHeight;
+    private char[] screen;
+    private char[] sent;
+    private char[] out = new char[4096];
+    private int length;
+    private boolean fullRedraw = true;
+    private int viewX;
+    private int viewY;
+
+    /**
+     * @param fleet agents to overlay, or null for the bare map
+     * @param columns map cells shown per row
+     * @param rows map rows shown
+     */
+    public TerminalRenderer(Environment environment, Fleet fleet, int columns, int rows) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("The viewport needs at least one cell.");
+        }
+        this.environment = environment;
+        this.fleet = fleet;
+        this.columns = Math.min(columns, environment.getWidth());
+        this.rows = Math.min(rows, environment.getHeight());
+        this.screenWidth = this.columns + 2;
+        this.screenHeight = this.rows + 3; // status line and two border lines
+        this.screen = new char[screenWidth * screenHeight];
+        this.sent = new char[screen.length];
+    }
+
+    /** Moves the viewport so its top-left cell is (x,y), clamped to the map. */
+    public void setViewport(int x, int y) {
+        int clampedX = Math.max(0, Math.min(x, environment.getWidth() - columns));
+        int clampedY = Math.max(0, Math.min(y, environment.getHeight() - rows));
+        if (clampedX != viewX || clampedY != viewY) {
+            viewX = clampedX;
+            viewY = clampedY;
+            fullRedraw = true;
+        }
+    }
+
+    /** Moves the viewport so (x,y) is in its middle, as far as the map allows. */
+    public void centerOn(int x, int y) {
+        setViewport(x - columns / 2, y - rows / 2);
+    }
+
+    /**
+     * Recentres on (x,y) only once it comes within margin cells of the viewport edge, so following
+     * an agent redraws the whole screen now and then instead of on every frame.
+     */
+    public void keepInView(int x, int y, int margin) {
+        int marginX = Math.min(margin, (columns - 1) / 2);
+        int marginY = Math.min(margin, (rows - 1) / 2);
+        if (x < viewX + marginX || x >= viewX + columns - marginX || y < viewY + marginY || y >= viewY + rows - marginY) {
+            centerOn(x, y);
+        }
+    }
+
+    public int getViewX() {
+        return viewX;
+    }
+
+    public int getViewY() {
+        return viewY;
+    }
+
+    /** Renders the viewport into the frame buffer; the status text is cut to the frame width. */
+    public void capture(String status) {
+        Arrays.fill(screen, 0, screenWidth, ' ');
+        status.getChars(0, Math.min(status.length(), screenWidth), screen, 0);
+        border(1);
+        border(screenHeight - 1);
+        OccupancyGrid occupancy = fleet != null ? fleet.getOccupancy() : null;
+        for (int row = 0; row < rows; row++) {
+            int offset = (row + 2) * screenWidth;
+            int y = viewY + row;
+            screen[offset] = '|';
+            for (int column = 0; column < columns; column++) {
+                int x = viewX + column;
+                char c;
+                if (occupancy != null && occupancy.isOccupied(x, y)) {
+                    c = AGENT;
+                } else {
+                    c = displayChar(environment, x, y);
+                }
+                screen[offset + 1 + column] = c;
+            }
+            screen[offset + screenWidth - 1] = '|';
+        }
+    }
+
+    /** The display char of a cell without creating a Cell for plain road and wall cells. */
+    static char displayChar(Environment environment, int x, int y) {
+        int flags = environment.getCellFlags(x, y);
+        if ((flags & Environment.FLAG_BLOCKED) != 0) {
+            return '#';
+        }
+        if ((flags & (Environment.FLAG_LIGHT | Environment.FLAG_SIGN)) != 0) {
+            return environment.getCell(x, y).getDisplayChar();
+        }
+        return ' ';
+    }
+
+    private void border(int line) {
+        int offset = line * screenWidth;
+        screen[offset] = '+';
+        Arrays.fill(screen, offset + 1, offset + screenWidth - 1, '-');
+        screen[offset + screenWidth - 1] = '+';
+    }
+
+    /**
+     * Sends the captured frame, or only what changed since the last one, with one write and a flush.
+     * @return characters written
+     */
+    public int write(Writer writer) throws IOException {
+        length = 0;
+        if (fullRedraw) {
+            append("\033[2J");
+            for (int line = 0; line < screenHeight; line++) {
+                moveTo(line, 0);
+                append(screen, line * screenWidth, screenWidth);
+            }
+            fullRedraw = false;
+        } else {
+            for (int line = 0; line < screenHeight; line++) {
+                int offset = line * screenWidth;
+                int column = 0;
+                while (column < screenWidth) {
+                    if (screen[offset + column] == sent[offset + column]) {
+                        column++;
+                        continue;
+                    }
+                    int start = column;
+                    int end = column + 1; // exclusive end of the run
+                    for (int scan = end; scan < screenWidth && scan < end + MERGE_GAP; scan++) {
+                        if (screen[offset + scan] != sent[offset + scan]) {
+                            end = scan + 1;
+                        }
+                    }
+                    moveTo(line, start);
+                    append(screen, offset + start, end - start);
+                    column = end;
+                }
+            }
+        }
+        moveTo(screenHeight, 0);
+        System.arraycopy(screen, 0, sent, 0, screen.length);
+        writer.write(out, 0, length);
+        writer.flush();
+        return length;
+    }
+
+    /** @return the captured map and its frame as plain lines, without the status line or ANSI codes */
+    public String toText() {
+        StringBuilder text = new StringBuilder(screen.length + screenHeight);
+        for (int line = 1; line < screenHeight; line++) {
+            text.append(screen, line * screenWidth, screenWidth).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Forces the next write to redraw the whole screen, e.g. after the terminal was cleared. */
+    public void invalidate() {
+        fullRedraw = true;
+    }
+
+    private void moveTo(int line, int column) {
+        append("\033[");
+        appendInt(line + 1);
+        append(";");
+        appendInt(column + 1);
+        append("H");
+    }
+
+    private void append(String text) {
+        ensure(text.length());
+        text.getChars(0, text.length(), out, length);
+        length += text.length();
+    }
+
+    private void append(char[] chars, int from, int count) {
+        ensure(count);
+        System.arraycopy(chars, from, out, length, count);
+        length += count;
+    }
+
+    private void appendInt(int value) {
+        ensure(10);
+        int start = length;
+        do {
+            out[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char swap = out[i];
+            out[i] = out[j];
+            out[j] = swap;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, length + extra));
+        }
+    }
+
+    /** Runs a city-grid simulation on the engine thread and watches it live, following agent 0. */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int agents = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        double fps = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        int columns = args.length > 3 ? Integer.parseInt(args[3]) : 78;
+        int rows = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        Environment environment = new Environment(size, size);
+        environment.createCityGrid(12);
+        for (int y = 0; y < size; y += 12) {
+            for (int x = 0; x < size; x += 12) {
+                environment.addTrafficLight(x, y, (x + y) % 24 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+            }
+        }
+        SimulationEngine engine = new SimulationEngine(environment, 1);
+        engine.getFleet().spawnRandom(agents);
+        engine.setTickRate(fps * 2);
+        engine.start();
+
+        TerminalRenderer renderer = new TerminalRenderer(environment, engine.getFleet(), columns, rows);
+        Writer terminal = new OutputStreamWriter(System.out, StandardCharsets.US_ASCII);
+        long frameNanos = (long) (1e9 / fps);
+        long sentChars = 0;
+        for (long frame = 0; ; frame++) {
+            long start = System.nanoTime();
+            double perFrame = frame == 0 ? 0 : sentChars / (double) frame;
+            engine.edit(env -> {
+                Fleet fleet = engine.getFleet();
+                renderer.keepInView(fleet.getX(0), fleet.getY(0), FOLLOW_MARGIN);
+                renderer.capture(String.format("tick %d  %.0f ticks/s  agents %d  view (%d,%d)  %.0f chars/frame",
+                        engine.getTick(), engine.getTicksPerSecond(), fleet.size(), renderer.getViewX(),
+                        renderer.getViewY(), perFrame));
+            });
+            sentChars += renderer.write(terminal);
+            long sleep = frameNanos - (System.nanoTime() - start);
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            }
+        }
+    }
+}
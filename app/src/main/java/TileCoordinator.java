@@ -0,0 +1,368 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs one simulation split across several {@link TileWorker}s, one band of rows each, and
+ * reports how the tick rate scales with the number of workers.
+ * <p>
+ * The coordinator saves the map to a file every worker loads its own rows from, launches the
+ * workers as separate JVMs on this machine (or as threads with --threads) and talks to each over
+ * a loopback socket. It is the tick barrier: every tick it sends each worker the edge rows its
+ * neighbours reported (occupancy and light states), their crossing requests into its rows and
+ * the answers to its own requests, then waits for every worker's report before the next tick.
+ * Workers therefore step in parallel and only ever see their neighbours as of the end of the
+ * previous tick; the two-step crossing handshake keeps an agent from landing on a cell the other
+ * side filled meanwhile, and counts it once it is accepted.
+ * <p>
+ * Usage: TileCoordinator [workers[,workers...]] [size] [agents] [ticks] [--threads] [--map map.armp]
+ * With a list of worker counts the same run is repeated for each and the rates compared.
+ */
+public class TileCoordinator implements AutoCloseable {
+
+    private final int width;
+    private final int[] bandStart; // first map row of each tile, plus the map height
+    private final ServerSocket server;
+    private final List<Process> processes = new ArrayList<>();
+    private final Worker[] workers;
+    private long migrations;
+    private long rejections;
+    private int answersInFlight; // accepted crossings whose origin has not despawned the agent yet
+
+    /** Connection to one tile and the last report it sent. */
+    private static final class Worker {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        byte[] topRow; // the tile's first row, for the tile above
+        byte[] bottomRow; // the tile's last row, for the tile below
+        final List<byte[]> requests = new ArrayList<>(); // TileWorker crossing requests: to be routed
+        final List<long[]> answers = new ArrayList<>(); // origin cell, accepted: to be routed
+        final List<byte[]> incomingRequests = new ArrayList<>();
+        final List<long[]> incomingAnswers = new ArrayList<>();
+        int agents;
+        long moves;
+        long collisions;
+        long stepNanos;
+
+        Worker(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    /**
+     * Starts the workers and hands each its band of the map.
+     * @param threads run the workers as threads of this JVM instead of processes
+     */
+    public TileCoordinator(Path map, int width, int height, int tiles, int agents, long seed, boolean threads)
+            throws IOException {
+        if (tiles < 1 || tiles > height) {
+            throw new IllegalArgumentException("Need between 1 and " + height + " tiles, got " + tiles);
+        }
+        this.width = width;
+        this.bandStart = new int[tiles + 1];
+        for (int i = 0; i <= tiles; i++) {
+            bandStart[i] = (int) ((long) height * i / tiles);
+        }
+        this.workers = new Worker[tiles];
+        this.server = new ServerSocket(0, tiles, InetAddress.getLoopbackAddress());
+        try {
+            for (int i = 0; i < tiles; i++) {
+                launch(threads);
+            }
+            for (int i = 0; i < tiles; i++) {
+                workers[i] = new Worker(server.accept());
+                DataOutputStream out = workers[i].out;
+                out.writeUTF(map.toAbsolutePath().toString());
+                out.writeInt(bandStart[i]);
+                out.writeInt(bandStart[i + 1]);
+                out.writeInt(height);
+                out.writeLong(seed + i);
+                out.writeInt((int) ((long) agents * (i + 1) / tiles - (long) agents * i / tiles));
+                out.flush();
+            }
+            for (int i = 0; i < tiles; i++) {
+                readReport(i);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void launch(boolean threads) throws IOException {
+        int port = server.getLocalPort();
+        if (threads) {
+            Thread thread = new Thread(() -> {
+                try {
+                    TileWorker.main(new String[]{Integer.toString(port)});
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "tile-worker");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            String java = ProcessHandle.current().info().command().orElse("java");
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "TileWorker", Integer.toString(port)).inheritIO().start());
+        }
+    }
+
+    /** Runs one tick on every tile and waits for all of them. */
+    public void step() throws IOException {
+        route();
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+            DataOutputStream out = worker.out;
+            out.writeInt(TileWorker.TICK);
+            if (i > 0) {
+                out.write(workers[i - 1].bottomRow);
+            }
+            if (i < workers.length - 1) {
+                out.write(workers[i + 1].topRow);
+            }
+            out.writeInt(worker.incomingAnswers.size());
+            for (long[] answer : worker.incomingAnswers) {
+                out.writeInt((int) answer[0]);
+                out.writeBoolean(answer[1] != 0);
+            }
+            out.writeInt(worker.incomingRequests.size());
+            for (byte[] request : worker.incomingRequests) {
+                out.write(request);
+            }
+            out.flush();
+        }
+        answersInFlight = 0;
+        for (int i = 0; i < workers.length; i++) {
+            readReport(i);
+        }
+    }
+
+    /** Moves the requests and answers of the last reports to the tiles they concern. */
+    private void route() {
+        for (Worker worker : workers) {
+            worker.incomingRequests.clear();
+            worker.incomingAnswers.clear();
+        }
+        for (Worker worker : workers) {
+            for (byte[] request : worker.requests) {
+                workers[tileOf(ByteBuffer.wrap(request).getInt(TileWorker.CROSSING_Y_OFFSET))].incomingRequests.add(request);
+            }
+            for (long[] answer : worker.answers) {
+                workers[tileOf((int) (answer[0] / width))].incomingAnswers.add(answer);
+                if (answer[1] != 0) {
+                    migrations++;
+                } else {
+                    rejections++;
+                }
+            }
+        }
+    }
+
+    private int tileOf(int row) {
+        int tile = 0;
+        while (row >= bandStart[tile + 1]) {
+            tile++;
+        }
+        return tile;
+    }
+
+    private void readReport(int tile) throws IOException {
+        Worker worker = workers[tile];
+        DataInputStream in = worker.in;
+        if (tile > 0) {
+            worker.topRow = readRow(in);
+        }
+        if (tile < workers.length - 1) {
+            worker.bottomRow = readRow(in);
+        }
+        worker.answers.clear();
+        int answers = in.readInt();
+        for (int i = 0; i < answers; i++) {
+            long[] answer = {in.readInt(), in.readBoolean() ? 1 : 0};
+            worker.answers.add(answer);
+            if (answer[1] != 0) {
+                answersInFlight++;
+            }
+        }
+        worker.requests.clear();
+        int requests = in.readInt();
+        for (int i = 0; i < requests; i++) {
+            byte[] request = new byte[TileWorker.CROSSING_BYTES]; // relayed as is; only the target row is read
+            in.readFully(request);
+            worker.requests.add(request);
+        }
+        worker.agents = in.readInt();
+        worker.moves = in.readLong();
+        worker.collisions = in.readLong();
+        worker.stepNanos = in.readLong();
+    }
+
+    private byte[] readRow(DataInputStream in) throws IOException {
+        byte[] bits = new byte[(width + 7) / 8];
+        in.readFully(bits);
+        int lights = in.readInt();
+        byte[] row = new byte[bits.length + 4 + lights * 5];
+        System.arraycopy(bits, 0, row, 0, bits.length);
+        int offset = bits.length;
+        putInt(row, offset, lights);
+        offset += 4;
+        for (int i = 0; i < lights; i++) {
+            putInt(row, offset, in.readInt());
+            row[offset + 4] = in.readByte();
+            offset += 5;
+        }
+        return row;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /** @return agents on the map; an agent accepted by a neighbour but not yet despawned counts once */
+    public int getAgentCount() {
+        int agents = 0;
+        for (Worker worker : workers) {
+            agents += worker.agents;
+        }
+        return agents - answersInFlight;
+    }
+
+    public long getMoves() {
+        long moves = 0;
+        for (Worker worker : workers) {
+            moves += worker.moves;
+        }
+        return moves;
+    }
+
+    public long getCollisions() {
+        long collisions = 0;
+        for (Worker worker : workers) {
+            collisions += worker.collisions;
+        }
+        return collisions;
+    }
+
+    /** @return agents that crossed from one tile to another */
+    public long getMigrations() {
+        return migrations;
+    }
+
+    /** @return crossings refused because the target cell was taken */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /** @return the longest time any worker has spent stepping its tile, in nanoseconds */
+    public long getMaxStepNanos() {
+        long max = 0;
+        for (Worker worker : workers) {
+            max = Math.max(max, worker.stepNanos);
+        }
+        return max;
+    }
+
+    public int getTileCount() {
+        return workers.length;
+    }
+
+    /** Stops the workers and waits for their processes to exit. */
+    @Override
+    public void close() throws IOException {
+        for (Worker worker : workers) {
+            if (worker != null) {
+                try {
+                    worker.out.writeInt(TileWorker.STOP);
+                    worker.out.flush();
+                } catch (IOException ignored) {
+                    // the worker is gone already
+                }
+                worker.socket.close();
+            }
+        }
+        server.close();
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        boolean threads = false;
+        Path map = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads" -> threads = true;
+                case "--map" -> map = Path.of(args[++i]);
+                default -> positional.add(args[i]);
+            }
+        }
+        String[] counts = (positional.size() > 0 ? positional.get(0) : "1,2,4").split(",");
+        int size = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 1_000;
+        int agents = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 50_000;
+        long ticks = positional.size() > 3 ? Long.parseLong(positional.get(3)) : 500;
+
+        if (map == null) {
+            Environment environment = new Environment(size, size);
+            environment.createCityGrid(12);
+            for (int y = 0; y < size; y += 12) {
+                for (int x = 0; x < size; x += 12) {
+                    environment.addTrafficLight(x, y, (x + y) % 24 == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+                }
+            }
+            map = Files.createTempFile("tiles", ".armp");
+            map.toFile().deleteOnExit();
+            MapFile.save(environment, map);
+        }
+        TileWorker.checkCrossing(); // an agent must keep its goal, profile and speed across tile borders
+        int[] dimensions = MapFile.readDimensions(map);
+        int width = dimensions[0];
+        int height = dimensions[1];
+
+        System.out.printf("%dx%d map, %d agents, %d ticks, workers as %s%n", width, height, agents, ticks,
+                threads ? "threads" : "processes");
+        System.out.println("workers,ticks_per_s,speedup,max_step_share,agents,moves,migrations,rejections");
+        double baseline = 0;
+        for (String count : counts) {
+            int tiles = Integer.parseInt(count.trim());
+            try (TileCoordinator coordinator = new TileCoordinator(map, width, height, tiles, agents, 1, threads)) {
+                long start = System.nanoTime();
+                for (long t = 0; t < ticks; t++) {
+                    coordinator.step();
+                }
+                long elapsed = System.nanoTime() - start;
+                double rate = ticks / (elapsed / 1e9);
+                if (baseline == 0) {
+                    baseline = rate;
+                }
+                System.out.printf("%d,%.1f,%.2f,%.2f,%d,%d,%d,%d%n", tiles, rate, rate / baseline,
+                        coordinator.getMaxStepNanos() / (double) elapsed, coordinator.getAgentCount(),
+                        coordinator.getMoves(), coordinator.getMigrations(), coordinator.getRejections());
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Simulates one tile of a map for a {@link TileCoordinator}, usually in a process of its own.
+ * <p>
+ * A tile is a band of whole rows. The worker loads only those rows and one halo row on each side
+ * from the shared map file and runs an ordinary SimulationEngine on them, with the fleet's
+ * territory limited to the owned rows. The halo rows mirror the neighbouring tiles: their
+ * occupancy is filled with ghost agents and their lights are taken off the scheduler and set to
+ * the states the neighbour reports, so agents at the edge see the same red lights and blocked
+ * cells they would on a single map.
+ * <p>
+ * An agent whose next step leads into the halo is frozen by the fleet and offered to the
+ * neighbour as a crossing request, which carries its heading, goal, speed, sub-cell progress and
+ * kinematic profile. The neighbour spawns it on the target cell with that state at the start of
+ * its next tick if the cell is free and answers; on acceptance the origin despawns the agent,
+ * on rejection it moves on. A goal outside the rows the neighbour loads can't be planned there,
+ * so such an agent wanders on. Each tick the worker receives the halo rows, answers and requests
+ * from the coordinator, steps, and sends back its edge rows, its answers, its new requests and
+ * its totals. Coordinates on the wire are map coordinates.
+ * Usage: TileWorker port
+ */
+public class TileWorker {
+
+    static final int STOP = 0;
+    static final int TICK = 1;
+    /** Size of a crossing request: origin cell, target x and y, heading, goal, velocity, progress, profile. */
+    static final int CROSSING_BYTES = 3 * 4 + 1 + 4 + 2 * 4 + 4 * 8;
+    static final int CROSSING_Y_OFFSET = 8; // of the target row, which the coordinator routes by
+    private static final int GHOST = Integer.MAX_VALUE - 1; // occupant id of agents on a neighbour's row
+    private static final TrafficLightState[] LIGHT_STATES = TrafficLightState.values();
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final SimulationEngine engine;
+    private final Environment environment;
+    private final Fleet fleet;
+    private final int width;
+    private final int originY; // map row of local row 0
+    private final int ownedMin; // local rows [ownedMin, ownedMax) belong to this tile
+    private final int ownedMax;
+    private final boolean haloAbove;
+    private final boolean haloBelow;
+    private final Set<Integer> pending = new HashSet<>(); // map cells of agents waiting for an answer
+    private final LightSetter lightSetter = new LightSetter();
+    private final byte[] rowBits;
+    private long stepNanos;
+
+    TileWorker(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Path map = Path.of(in.readUTF());
+        int y0 = in.readInt();
+        int y1 = in.readInt();
+        int mapHeight = in.readInt();
+        long seed = in.readLong();
+        int agents = in.readInt();
+
+        originY = Math.max(0, y0 - 1);
+        environment = MapFile.loadRows(map, originY, y1 + 1);
+        width = environment.getWidth();
+        ownedMin = y0 - originY;
+        ownedMax = y1 - originY;
+        haloAbove = y0 > 0;
+        haloBelow = y1 < mapHeight;
+        rowBits = new byte[(width + 7) / 8];
+
+        engine = new SimulationEngine(environment, seed);
+        for (TrafficLight light : environment.getTrafficLights()) {
+            if (light.getY() < ownedMin || light.getY() >= ownedMax) {
+                engine.getLightScheduler().control(light.getX(), light.getY(), true);
+            }
+        }
+        fleet = engine.getFleet();
+        fleet.setTerritory(ownedMin, ownedMax);
+        fleet.spawnRandom(agents);
+    }
+
+    /** Reports the initial edge rows, then runs ticks until the coordinator says stop. */
+    void run() throws IOException {
+        writeReport(List.of());
+        while (in.readInt() == TICK) {
+            if (haloAbove) {
+                readHalo(ownedMin - 1);
+            }
+            if (haloBelow) {
+                readHalo(ownedMax);
+            }
+            readAnswers();
+            List<int[]> answers = readRequests();
+            long start = System.nanoTime();
+            engine.step();
+            stepNanos += System.nanoTime() - start;
+            writeReport(answers);
+        }
+    }
+
+    private void readHalo(int row) throws IOException {
+        OccupancyGrid occupancy = fleet.getOccupancy();
+        in.readFully(rowBits);
+        for (int x = 0; x < width; x++) {
+            if ((rowBits[x >> 3] & (1 << (x & 7))) != 0) {
+                occupancy.occupy(x, row, GHOST);
+            } else {
+                occupancy.vacate(x, row);
+            }
+        }
+        int lights = in.readInt();
+        for (int i = 0; i < lights; i++) {
+            int x = in.readInt();
+            lightSetter.state = LIGHT_STATES[in.readByte()];
+            environment.forEachElement(x, row, lightSetter);
+        }
+    }
+
+    /** Applies the neighbours' answers to this tile's crossing requests. */
+    private void readAnswers() throws IOException {
+        int count = in.readInt();
+        int[] accepted = new int[count];
+        int despawns = 0;
+        for (int i = 0; i < count; i++) {
+            int origin = in.readInt();
+            boolean ok = in.readBoolean();
+            pending.remove(origin);
+            int id = fleet.getOccupancy().occupantAt(origin % width, origin / width - originY);
+            if (ok) {
+                accepted[despawns++] = id;
+            } else {
+                fleet.resolveCrossing(id, false);
+            }
+        }
+        // Despawning moves the highest id into the freed one, so go from the top
+        Arrays.sort(accepted, 0, despawns);
+        for (int i = despawns - 1; i >= 0; i--) {
+            fleet.resolveCrossing(accepted[i], true);
+        }
+    }
+
+    /** Takes in the agents the neighbours offer where their target cells are free. @return the answers */
+    private List<int[]> readRequests() throws IOException {
+        int count = in.readInt();
+        List<int[]> answers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            answers.add(acceptCrossing(in, fleet, originY, width, environment.getHeight()));
+        }
+        return answers;
+    }
+
+    /**
+     * Writes a crossing request for an agent waiting to enter the target cell (a local index).
+     * Coordinates and the goal are sent as map coordinates.
+     */
+    static void writeCrossing(DataOutput out, Fleet fleet, int id, int target, int originY, int width) throws IOException {
+        int goal = fleet.getGoal(id);
+        KinematicProfile profile = fleet.getProfile(id);
+        out.writeInt((fleet.getY(id) + originY) * width + fleet.getX(id));
+        out.writeInt(target % width);
+        out.writeInt(target / width + originY);
+        out.writeByte(fleet.getHeading(id));
+        out.writeInt(goal < 0 ? -1 : goal + originY * width);
+        out.writeFloat((float) fleet.getVelocity(id));
+        out.writeFloat(fleet.getProgress(id));
+        out.writeDouble(profile.maxSpeed());
+        out.writeDouble(profile.acceleration());
+        out.writeDouble(profile.vision());
+        out.writeDouble(profile.footprint());
+    }
+
+    /** Reads a crossing request and spawns the agent with its state if the target cell is free. @return origin cell, 1 if accepted */
+    static int[] acceptCrossing(DataInput in, Fleet fleet, int originY, int width, int height) throws IOException {
+        int origin = in.readInt();
+        int x = in.readInt();
+        int y = in.readInt() - originY;
+        byte heading = in.readByte();
+        int goal = in.readInt();
+        float velocity = in.readFloat();
+        float progress = in.readFloat();
+        KinematicProfile profile = new KinematicProfile(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        int id = fleet.spawn(x, y, fleet.getProfiles().register(profile));
+        if (id >= 0) {
+            fleet.setHeading(id, heading);
+            fleet.setMotion(id, velocity, progress);
+            int goalY = goal / width - originY;
+            if (goal >= 0 && goalY >= 0 && goalY < height) {
+                fleet.setGoal(id, goal % width, goalY);
+            }
+        }
+        return new int[]{origin, id >= 0 ? 1 : 0};
+    }
+
+    /**
+     * Sends an agent with a goal, its own profile, speed and progress across a tile border through
+     * the wire format and checks it arrives unchanged.
+     * @throws IllegalStateException if any of its state is lost on the way
+     */
+    static void checkCrossing() throws IOException {
+        int width = 20;
+        // Two tiles of a 20x20 map, rows [0,10) and [10,20), each loaded with its halo row
+        Fleet above = new SimulationEngine(new Environment(width, 11), 1).getFleet();
+        Fleet below = new SimulationEngine(new Environment(width, 11), 2).getFleet();
+        int belowOriginY = 9;
+        int id = above.spawn(4, 9, above.getProfiles().register(new KinematicProfile(2, 0.5, 6, 0.3)));
+        above.setGoal(id, 7, 10);
+        above.setHeading(id, (byte) 2);
+        above.setMotion(id, 1.5f, 1.25f);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeCrossing(new DataOutputStream(bytes), above, id, 10 * width + 4, 0, width);
+        int[] answer = acceptCrossing(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                below, belowOriginY, width, 11);
+        int arrived = below.getOccupancy().occupantAt(4, 10 - belowOriginY);
+        if (bytes.size() != CROSSING_BYTES || answer[1] != 1 || arrived < 0
+                || below.getHeading(arrived) != above.getHeading(id)
+                || below.getGoal(arrived) != above.getGoal(id) + (0 - belowOriginY) * width
+                || below.getVelocity(arrived) != above.getVelocity(id)
+                || below.getProgress(arrived) != above.getProgress(id)
+                || !below.getProfile(arrived).equals(above.getProfile(id))) {
+            throw new IllegalStateException("An agent's state changed crossing a tile border.");
+        }
+    }
+
+    private void writeReport(List<int[]> answers) throws IOException {
+        if (haloAbove) {
+            writeRow(ownedMin);
+        }
+        if (haloBelow) {
+            writeRow(ownedMax - 1);
+        }
+        out.writeInt(answers.size());
+        for (int[] answer : answers) {
+            out.writeInt(answer[0]);
+            out.writeBoolean(answer[1] != 0);
+        }
+        List<Integer> requests = new ArrayList<>();
+        for (int i = 0; i < fleet.size(); i++) {
+            int origin = (fleet.getY(i) + originY) * width + fleet.getX(i);
+            if (fleet.getCrossing(i) >= 0 && pending.add(origin)) {
+                requests.add(i);
+            }
+        }
+        out.writeInt(requests.size());
+        for (int id : requests) {
+            writeCrossing(out, fleet, id, fleet.getCrossing(id), originY, width);
+        }
+        out.writeInt(fleet.size());
+        out.writeLong(fleet.getMoves());
+        out.writeLong(fleet.getCollisions());
+        out.writeLong(stepNanos);
+        out.flush();
+    }
+
+    /** Sends an edge row as an occupancy bitmap and the states of its lights. */
+    private void writeRow(int row) throws IOException {
+        Arrays.fill(rowBits, (byte) 0);
+        OccupancyGrid occupancy = fleet.getOccupancy();
+        for (int x = 0; x < width; x++) {
+            if (occupancy.isOccupied(x, row)) {
+                rowBits[x >> 3] |= (byte) (1 << (x & 7));
+            }
+        }
+        out.write(rowBits);
+        List<TrafficLight> lights = new ArrayList<>();
+        for (int x = 0; x < width; x++) {
+            if ((environment.getCellFlags(x, row) & Environment.FLAG_LIGHT) != 0) {
+                for (TrafficElement element : environment.getCell(x, row).getTrafficElements()) {
+                    if (element instanceof TrafficLight light) {
+                        lights.add(light);
+                    }
+                }
+            }
+        }
+        out.writeInt(lights.size());
+        for (TrafficLight light : lights) {
+            out.writeInt(light.getX());
+            out.writeByte(light.getState().ordinal());
+        }
+    }
+
+    private static final class LightSetter implements Environment.ElementVisitor {
+        TrafficLightState state;
+
+        @Override
+        public void visitLight(int x, int y, TrafficLight light) {
+            if (light.getState() != state) {
+                light.setState(state);
+            }
+        }
+    }
+
+    /** Connects to a coordinator on this machine and serves one tile. */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TileWorker <coordinator-port>");
+            System.exit(2);
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+            new TileWorker(socket).run();
+        }
+    }
+}
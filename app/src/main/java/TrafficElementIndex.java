@@ -0,0 +1,100 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Coarse spatial index of the cells that hold traffic elements.
+ * The grid is cut into BUCKET x BUCKET blocks, each listing its occupied cells, so a radius
+ * query only looks at the few blocks it overlaps instead of every cell in the square.
+ * Kept current through Environment change notifications.
+ */
+public class TrafficElementIndex implements EnvironmentListener {
+    
+    static final int BUCKET = 16;
+    
+    /** Callback for {@link #forEachWithin}. */
+    public interface Visitor {
+        void visit(int x, int y, Cell cell);
+    }
+    
+    private final Environment environment;
+    private final int width;
+    private final int bucketsX;
+    private final int bucketsY;
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+    private final BitSet indexed = new BitSet();
+    
+    public TrafficElementIndex(Environment environment) {
+        this.environment = environment;
+        this.width = environment.getWidth();
+        this.bucketsX = (environment.getWidth() + BUCKET - 1) / BUCKET;
+        this.bucketsY = (environment.getHeight() + BUCKET - 1) / BUCKET;
+        this.buckets = new int[bucketsX * bucketsY][];
+        this.bucketSizes = new int[bucketsX * bucketsY];
+        environment.forEachOccupiedCell((x, y, cell) -> add(x, y));
+        environment.addListener(this);
+    }
+    
+    /** Visits every occupied cell whose centre lies within radius of (x,y). */
+    public void forEachWithin(int x, int y, int radius, Visitor visitor) {
+        int radiusSquared = radius * radius;
+        int minBx = Math.max(0, (x - radius) / BUCKET);
+        int maxBx = Math.min(bucketsX - 1, (x + radius) / BUCKET);
+        int minBy = Math.max(0, (y - radius) / BUCKET);
+        int maxBy = Math.min(bucketsY - 1, (y + radius) / BUCKET);
+        for (int by = minBy; by <= maxBy; by++) {
+            for (int bx = minBx; bx <= maxBx; bx++) {
+                int bucket = by * bucketsX + bx;
+                int[] cells = buckets[bucket];
+                for (int i = 0; i < bucketSizes[bucket]; i++) {
+                    int cx = cells[i] % width;
+                    int cy = cells[i] / width;
+                    int dx = cx - x;
+                    int dy = cy - y;
+                    if (dx * dx + dy * dy <= radiusSquared) {
+                        visitor.visit(cx, cy, environment.getCell(cx, cy));
+                    }
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void cellChanged(int x, int y) {
+        // Flags are current by the time listeners hear of a change, and light changes or wall
+        // edits that leave the cell occupied fall through without touching a Cell object
+        boolean occupied = (environment.getCellFlags(x, y) & (Environment.FLAG_LIGHT | Environment.FLAG_SIGN)) != 0;
+        if (occupied != indexed.get(y * width + x)) {
+            if (occupied) {
+                add(x, y);
+            } else {
+                remove(x, y);
+            }
+        }
+    }
+    
+    private void add(int x, int y) {
+        int bucket = (y / BUCKET) * bucketsX + x / BUCKET;
+        int[] cells = buckets[bucket];
+        if (cells == null) {
+            cells = buckets[bucket] = new int[4];
+        } else if (bucketSizes[bucket] == cells.length) {
+            cells = buckets[bucket] = Arrays.copyOf(cells, cells.length * 2);
+        }
+        cells[bucketSizes[bucket]++] = y * width + x;
+        indexed.set(y * width + x);
+    }
+    
+    private void remove(int x, int y) {
+        int bucket = (y / BUCKET) * bucketsX + x / BUCKET;
+        int[] cells = buckets[bucket];
+        int index = y * width + x;
+        for (int i = 0; i < bucketSizes[bucket]; i++) {
+            if (cells[i] == index) {
+                cells[i] = cells[--bucketSizes[bucket]];
+                break;
+            }
+        }
+        indexed.clear(index);
+    }
+}
@@ -1,5 +1,12 @@
 public class TrafficLight extends TrafficElement {
     private TrafficLightState state;
+    private int redTicks = 1;
+    private int yellowTicks = 1;
+    private int greenTicks = 1;
+    private int offset;
+    private Environment environment;
+    private int x = -1;
+    private int y = -1;
     
     public TrafficLight(TrafficLightState state) {
         this.state = state;
@@ -11,6 +18,7 @@ public class TrafficLight extends TrafficElement {
     
     public void setState(TrafficLightState state) {
         this.state = state;
+        notifyChanged();
     }
     
     public void cycleState() {
@@ -19,10 +27,86 @@ public class TrafficLight extends TrafficElement {
             case GREEN -> state = TrafficLightState.YELLOW;
             case YELLOW -> state = TrafficLightState.RED;
         }
+        notifyChanged();
+    }
+    
+    /**
+     * Sets how many ticks each state is held before cycling (all default to 1).
+     * On a placed light the current state is stretched or cut to its new length.
+     */
+    public void setDurations(int redTicks, int yellowTicks, int greenTicks) {
+        if (redTicks < 1 || yellowTicks < 1 || greenTicks < 1) {
+            throw new IllegalArgumentException("Durations must be at least one tick.");
+        }
+        this.redTicks = redTicks;
+        this.yellowTicks = yellowTicks;
+        this.greenTicks = greenTicks;
+        notifyRetimed();
+    }
+    
+    public int getDuration(TrafficLightState state) {
+        return switch (state) {
+            case RED -> redTicks;
+            case YELLOW -> yellowTicks;
+            case GREEN -> greenTicks;
+        };
+    }
+    
+    /** @return ticks for a full RED -> GREEN -> YELLOW cycle */
+    public int getCycleLength() {
+        return redTicks + yellowTicks + greenTicks;
+    }
+    
+    /**
+     * Delays the first state change by the given number of ticks, shifting this light's phase.
+     * On a placed light the next change moves by the difference to the previous offset.
+     */
+    public void setOffset(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must be non-negative.");
+        }
+        this.offset = offset;
+        notifyRetimed();
+    }
+    
+    public int getOffset() {
+        return offset;
+    }
+    
+    /** @return grid column, or -1 if the light is not placed in an Environment */
+    public int getX() {
+        return x;
+    }
+    
+    /** @return grid row, or -1 if the light is not placed in an Environment */
+    public int getY() {
+        return y;
+    }
+    
+    void attach(Environment environment, int x, int y) {
+        this.environment = environment;
+        this.x = x;
+        this.y = y;
+    }
+    
+    void detach() {
+        attach(null, -1, -1);
+    }
+    
+    private void notifyChanged() {
+        if (environment != null) {
+            environment.lightChanged(x, y);
+        }
+    }
+    
+    private void notifyRetimed() {
+        if (environment != null) {
+            environment.lightRetimed(this);
+        }
     }
     
     @Override
     public String getDescription() {
         return "Traffic Light: " + state;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Event-driven timer for the traffic lights of one Environment.
+ * Each light sits in a priority queue keyed by the tick of its next state change, so a tick
+ * only touches the lights that actually change instead of scanning the whole grid.
+ * The cycle order is the one from TrafficLight.cycleState(): RED -> GREEN -> YELLOW.
+ * Lights on cells handed to an {@link Intersection} with {@link #control} are left alone.
+ */
+public class TrafficLightScheduler implements EnvironmentListener {
+    
+    private static final class Timer {
+        final TrafficLight light;
+        final long sequence;
+        long due; // last tick of the current state
+        int duration; // length of the current state that due was computed from
+        int offset; // light offset that due was computed from
+        boolean cancelled;
+        
+        Timer(TrafficLight light, long sequence) {
+            this.light = light;
+            this.sequence = sequence;
+        }
+    }
+    
+    private final PriorityQueue<Timer> queue = new PriorityQueue<>(
+            Comparator.<Timer>comparingLong(t -> t.due).thenComparingLong(t -> t.sequence));
+    private final Map<TrafficLight, Timer> timers = new HashMap<>();
+    private final List<TrafficLight> changed = new ArrayList<>();
+    private final Set<Long> controlled = new HashSet<>(); // packed cells whose lights are not timed here
+    private final Environment environment;
+    private long sequence;
+    private long now;
+    
+    /** Creates a scheduler for the lights already in the environment and any added later. */
+    public TrafficLightScheduler(Environment environment) {
+        this.environment = environment;
+        for (TrafficLight light : environment.getTrafficLights()) {
+            schedule(light);
+        }
+        environment.addListener(this);
+    }
+    
+    /**
+     * Applies every state change due at the given tick.
+     * @return the lights that changed; the list is reused by the next call
+     */
+    public List<TrafficLight> advance(long tick) {
+        changed.clear();
+        now = tick;
+        while (!queue.isEmpty() && queue.peek().due <= tick) {
+            Timer timer = queue.poll();
+            if (timer.cancelled) {
+                continue;
+            }
+            timer.light.cycleState();
+            timer.duration = timer.light.getDuration(timer.light.getState());
+            timer.due += timer.duration;
+            queue.add(timer);
+            changed.add(timer.light);
+        }
+        now = tick + 1;
+        return changed;
+    }
+    
+    /** @return the tick at which the light will next change state, or -1 if it is not scheduled */
+    public long getNextChange(TrafficLight light) {
+        Timer timer = timers.get(light);
+        return timer != null ? timer.due : -1;
+    }
+    
+    /** Moves the scheduler's clock, e.g. when restoring a checkpoint; timers are left untouched. */
+    void rewind(long tick) {
+        now = tick;
+    }
+    
+    /** Overrides when a light next changes state; ignored for controlled lights. */
+    void setNextChange(TrafficLight light, long due) {
+        if (!isControlled(light)) {
+            reschedule(light, due);
+        }
+    }
+    
+    /**
+     * Stops timing the lights on (x,y), now and when added later, because a controller sets their
+     * state itself; with controlled false they are timed again from their current state.
+     */
+    public void control(int x, int y, boolean controlled) {
+        long cell = PackedCoordinates.pack(x, y);
+        if (controlled ? !this.controlled.add(cell) : !this.controlled.remove(cell)) {
+            return;
+        }
+        for (TrafficElement element : environment.getCell(x, y).getTrafficElements()) {
+            if (element instanceof TrafficLight light) {
+                if (controlled) {
+                    cancel(light);
+                } else {
+                    schedule(light);
+                }
+            }
+        }
+    }
+    
+    public boolean isControlled(TrafficLight light) {
+        return controlled.contains(PackedCoordinates.pack(light.getX(), light.getY()));
+    }
+    
+    public int getScheduledCount() {
+        return timers.size();
+    }
+    
+    /**
+     * Coordinates a corridor of lights into a green wave: every light copies the timings of the
+     * first one and turns green travelTicks after its predecessor.
+     */
+    public void greenWave(List<TrafficLight> corridor, int travelTicks) {
+        if (corridor.isEmpty()) {
+            return;
+        }
+        TrafficLight lead = corridor.get(0);
+        Timer leadTimer = timers.get(lead);
+        if (leadTimer == null) {
+            throw new IllegalArgumentException("Corridor lights must belong to this scheduler.");
+        }
+        int cycle = lead.getCycleLength();
+        int remaining = (int) (leadTimer.due - now + 1);
+        int leadPosition = cycleStart(lead, lead.getState()) + lead.getDuration(lead.getState()) - remaining;
+        
+        for (int i = 1; i < corridor.size(); i++) {
+            TrafficLight light = corridor.get(i);
+            if (isControlled(light)) {
+                throw new IllegalArgumentException("Light at (" + light.getX() + "," + light.getY()
+                        + ") is run by an intersection controller.");
+            }
+            light.setDurations(lead.getDuration(TrafficLightState.RED),
+                    lead.getDuration(TrafficLightState.YELLOW),
+                    lead.getDuration(TrafficLightState.GREEN));
+            int position = Math.floorMod(leadPosition - i * travelTicks, cycle);
+            TrafficLightState state = TrafficLightState.RED;
+            for (TrafficLightState candidate : new TrafficLightState[]{
+                    TrafficLightState.RED, TrafficLightState.GREEN, TrafficLightState.YELLOW}) {
+                if (position >= cycleStart(light, candidate)) {
+                    state = candidate;
+                }
+            }
+            light.setState(state);
+            long due = now + cycleStart(light, state) + light.getDuration(state) - position - 1;
+            reschedule(light, due);
+        }
+    }
+    
+    @Override
+    public void trafficLightAdded(TrafficLight light) {
+        schedule(light);
+    }
+    
+    @Override
+    public void trafficLightRemoved(TrafficLight light) {
+        cancel(light);
+    }
+    
+    /**
+     * Keeps the ticks already spent in the current state: the next change moves by the change in
+     * the current state's duration plus the change in offset, but never into the past.
+     */
+    @Override
+    public void trafficLightRetimed(TrafficLight light) {
+        Timer timer = timers.get(light);
+        if (timer == null) {
+            return;
+        }
+        int duration = light.getDuration(light.getState());
+        long due = Math.max(now, timer.due + (duration - timer.duration) + (light.getOffset() - timer.offset));
+        reschedule(light, due);
+    }
+    
+    private void schedule(TrafficLight light) {
+        if (isControlled(light)) {
+            return;
+        }
+        reschedule(light, now + light.getOffset() + light.getDuration(light.getState()) - 1);
+    }
+    
+    private void cancel(TrafficLight light) {
+        Timer timer = timers.remove(light);
+        if (timer != null) {
+            timer.cancelled = true;
+        }
+    }
+    
+    private void reschedule(TrafficLight light, long due) {
+        cancel(light);
+        Timer timer = new Timer(light, sequence++);
+        timer.due = due;
+        timer.duration = light.getDuration(light.getState());
+        timer.offset = light.getOffset();
+        timers.put(light, timer);
+        queue.add(timer);
+    }
+    
+    private static int cycleStart(TrafficLight light, TrafficLightState state) {
+        return switch (state) {
+            case RED -> 0;
+            case GREEN -> light.getDuration(TrafficLightState.RED);
+            case YELLOW -> light.getDuration(TrafficLightState.RED) + light.getDuration(TrafficLightState.GREEN);
+        };
+    }
+}
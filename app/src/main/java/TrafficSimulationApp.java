@@ -1,237 +1,242 @@
+import java.util.List;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
-import javafx.scene.layout.StackPane;
-import javafx.scene.paint.Color;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Rectangle;
 import javafx.stage.Stage;
-import javafx.animation.Animation;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
-import javafx.util.Duration;
+import javafx.animation.AnimationTimer;
 
+/**
+ * Interactive view of a simulation. Drag to pan, scroll to zoom; zoomed far out the map turns
+ * into density heatmaps. Without arguments it shows the small demo network, with
+ * "width height [robots]" a city grid of that size.
+ */
 public class TrafficSimulationApp extends Application {
 
     private static final int CELL_SIZE = 25;
-    private static final int PADDING = 2;
+    private static final double TICKS_PER_SECOND = 1;
+    private static final int ROBOTS = 20;
+    private static final int CITY_BLOCK = 12;
+    private static final double MAX_WINDOW_WIDTH = 1200;
+    private static final double MAX_WINDOW_HEIGHT = 800;
+    private static final double ZOOM_PER_NOTCH = 1.15;
+    private static final double SCROLL_NOTCH = 40; // ScrollEvent deltaY of one mouse wheel notch
+    private int mapWidth = 30;
+    private int mapHeight = 20;
+    private int robots = ROBOTS;
+    private boolean cityGrid;
     private Environment environment;
+    private SimulationEngine engine;
+    private Viewport viewport;
     private Canvas canvas;
-    private Timeline timeline;
-    private boolean isSimulationRunning = false;
+    private GridRenderer renderer;
+    private FleetRenderer fleetRenderer;
+    private Label statsLabel;
+    private AnimationTimer renderTimer;
     private Car car;
+    private long carViewVersion = -1;
+    private double dragX;
+    private double dragY;
 
     @Override
     public void start(Stage primaryStage) {
+        List<String> args = getParameters().getRaw();
+        if (args.size() >= 2) {
+            mapWidth = Integer.parseInt(args.get(0));
+            mapHeight = Integer.parseInt(args.get(1));
+            robots = args.size() > 2 ? Integer.parseInt(args.get(2)) : mapWidth * mapHeight / 100;
+            cityGrid = true;
+        }
+
         // Create the environment
-        environment = new Environment(30, 20);
-        environment.createSimpleRoadNetwork();
-        
-        // Create the canvas
-        canvas = new Canvas(environment.getWidth() * CELL_SIZE, environment.getHeight() * CELL_SIZE);
-        draw();
-        
+        environment = createEnvironment();
+        engine = createEngine(environment);
+
+        // The canvases follow the window; the viewport decides which part of the map they show
+        double windowWidth = Math.min(mapWidth * CELL_SIZE, MAX_WINDOW_WIDTH);
+        double windowHeight = Math.min(mapHeight * CELL_SIZE, MAX_WINDOW_HEIGHT);
+        viewport = new Viewport(mapWidth, mapHeight, CELL_SIZE);
+        viewport.setScreenSize(windowWidth, windowHeight);
+        canvas = new Canvas(windowWidth, windowHeight);
+        renderer = new GridRenderer(environment, canvas, viewport);
+        Canvas fleetCanvas = new Canvas(windowWidth, windowHeight);
+        fleetCanvas.setMouseTransparent(true);
+        fleetRenderer = new FleetRenderer(fleetCanvas, viewport);
+        statsLabel = new Label();
+
         // Create the car, placed at cell (1,1)
-        car = new Car(environment, 1, 1, CELL_SIZE);
-        
+        car = createCar();
+
         // Create control buttons
         Button startStopButton = new Button("Start Simulation");
         startStopButton.setOnAction(e -> toggleSimulation(startStopButton));
-        
+
         Button resetButton = new Button("Reset");
         resetButton.setOnAction(e -> resetSimulation());
-        
+
+        Button fitButton = new Button("Fit Map");
+        fitButton.setOnAction(e -> viewport.fitMap());
+
         Button addTrafficLightButton = new Button("Add Traffic Light");
         addTrafficLightButton.setOnAction(e -> {
             // Wait for user to click on the canvas to place a traffic light
             canvas.setOnMouseClicked(event -> {
-                int x = (int) (event.getX() / CELL_SIZE);
-                int y = (int) (event.getY() / CELL_SIZE);
-                if (environment.isValidPosition(x, y) && !environment.isWall(x, y)) {
-                    environment.addTrafficLight(x, y, TrafficLightState.RED);
-                    draw();
+                int x = viewport.toCellX(event.getX());
+                int y = viewport.toCellY(event.getY());
+                if (event.isStillSincePress() && environment.isValidPosition(x, y) && !environment.isWall(x, y)) {
+                    engine.submit(env -> env.addTrafficLight(x, y, TrafficLightState.RED));
                     canvas.setOnMouseClicked(null);
                 }
             });
         });
-        
+
         Button addTrafficSignButton = new Button("Add Stop Sign");
         addTrafficSignButton.setOnAction(e -> {
             canvas.setOnMouseClicked(event -> {
-                int x = (int) (event.getX() / CELL_SIZE);
-                int y = (int) (event.getY() / CELL_SIZE);
-                if (environment.isValidPosition(x, y) && !environment.isWall(x, y)) {
-                    environment.addTrafficSign(x, y, TrafficSignType.STOP);
-                    draw();
+                int x = viewport.toCellX(event.getX());
+                int y = viewport.toCellY(event.getY());
+                if (event.isStillSincePress() && environment.isValidPosition(x, y) && !environment.isWall(x, y)) {
+                    engine.submit(env -> env.addTrafficSign(x, y, TrafficSignType.STOP));
                     canvas.setOnMouseClicked(null);
                 }
             });
         });
 
-        // Layout: stack canvas and car pane
-        StackPane centerPane = new StackPane(canvas, car);
-        
-        HBox controlsBox = new HBox(10, startStopButton, resetButton, addTrafficLightButton, addTrafficSignButton);
+        // Layout: map canvas, autonomous robots and car stacked in a clipped pane the size of the window
+        Pane centerPane = new Pane(canvas, fleetCanvas, car);
+        centerPane.setPrefSize(windowWidth, windowHeight);
+        centerPane.setMinSize(0, 0);
+        car.setManaged(false);
+        canvas.widthProperty().bind(centerPane.widthProperty());
+        canvas.heightProperty().bind(centerPane.heightProperty());
+        fleetCanvas.widthProperty().bind(centerPane.widthProperty());
+        fleetCanvas.heightProperty().bind(centerPane.heightProperty());
+        centerPane.widthProperty().addListener(o -> viewport.setScreenSize(centerPane.getWidth(), centerPane.getHeight()));
+        centerPane.heightProperty().addListener(o -> viewport.setScreenSize(centerPane.getWidth(), centerPane.getHeight()));
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(centerPane.widthProperty());
+        clip.heightProperty().bind(centerPane.heightProperty());
+        centerPane.setClip(clip);
+        centerPane.setOnScroll(event ->
+                viewport.zoomAt(Math.pow(ZOOM_PER_NOTCH, event.getDeltaY() / SCROLL_NOTCH), event.getX(), event.getY()));
+        centerPane.setOnMousePressed(this::startDrag);
+        centerPane.setOnMouseDragged(event -> {
+            viewport.pan(event.getX() - dragX, event.getY() - dragY);
+            startDrag(event);
+        });
+
+        HBox controlsBox = new HBox(10, startStopButton, resetButton, fitButton, addTrafficLightButton,
+                addTrafficSignButton, statsLabel);
         controlsBox.setPadding(new javafx.geometry.Insets(10));
-        
+
         BorderPane root = new BorderPane();
         root.setCenter(centerPane);
         root.setBottom(controlsBox);
-        
+
         // Scene setup
         Scene scene = new Scene(root);
         primaryStage.setTitle("Traffic Simulation");
         primaryStage.setScene(scene);
         primaryStage.show();
-        
+
         // Bind car controls
         car.initKeyControls(scene);
-        
-        // Animation timeline
-        timeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> updateSimulation()));
-        timeline.setCycleCount(Animation.INDEFINITE);
+
+        // The engine ticks on its own thread; the FX thread repaints only what changed each frame
+        renderTimer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                draw();
+            }
+        };
+        renderTimer.start();
+    }
+
+    @Override
+    public void stop() {
+        renderTimer.stop();
+        engine.stop();
+        engine.getMetrics().unregisterMBean();
+    }
+
+    private Environment createEnvironment() {
+        Environment environment = new Environment(mapWidth, mapHeight);
+        if (!cityGrid) {
+            environment.createSimpleRoadNetwork();
+            return environment;
+        }
+        environment.createCityGrid(CITY_BLOCK);
+        for (int y = 0; y < mapHeight; y += CITY_BLOCK) {
+            for (int x = 0; x < mapWidth; x += CITY_BLOCK) {
+                environment.addTrafficLight(x, y, (x + y) % (2 * CITY_BLOCK) == 0 ? TrafficLightState.RED : TrafficLightState.GREEN);
+            }
+        }
+        return environment;
+    }
+
+    private SimulationEngine createEngine(Environment environment) {
+        SimulationEngine engine = new SimulationEngine(environment);
+        engine.setTickRate(TICKS_PER_SECOND);
+        engine.getFleet().spawnRandom(robots);
+        engine.getMetrics().registerMBean("ui"); // enable from JConsole when needed
+        return engine;
     }
-    
+
+    private Car createCar() {
+        Car car = new Car(environment, 1, 1, CELL_SIZE);
+        car.setMetrics(engine.getMetrics());
+        car.setViewport(viewport);
+        return car;
+    }
+
+    private void startDrag(MouseEvent event) {
+        dragX = event.getX();
+        dragY = event.getY();
+    }
+
     private void toggleSimulation(Button startStopButton) {
-        if (isSimulationRunning) {
-            timeline.stop();
+        if (engine.isRunning()) {
+            engine.stop();
             startStopButton.setText("Start Simulation");
         } else {
-            timeline.play();
+            engine.start();
             startStopButton.setText("Stop Simulation");
         }
-        isSimulationRunning = !isSimulationRunning;
     }
-    
+
     private void resetSimulation() {
-        if (isSimulationRunning) {
-            timeline.stop();
-            isSimulationRunning = false;
-        }
-        
-        environment = new Environment(30, 20);
-        environment.createSimpleRoadNetwork();
-        draw();
-        car = new Car(environment, 1, 1, CELL_SIZE);
-    }
-    
-    private void updateSimulation() {
-        // Cycle traffic lights
-        for (int y = 0; y < environment.getHeight(); y++) {
-            for (int x = 0; x < environment.getWidth(); x++) {
-                Cell cell = environment.getCell(x, y);
-                if (cell != null && cell.hasTrafficElements()) {
-                    for (TrafficElement element : cell.getTrafficElements()) {
-                        if (element instanceof TrafficLight trafficLight) {
-                            trafficLight.cycleState();
-                        }
-                    }
-                }
-            }
-        }
-        draw();
+        engine.stop();
+        engine.getMetrics().unregisterMBean();
+
+        environment = createEnvironment();
+        engine = createEngine(environment);
+        renderer.dispose();
+        renderer = new GridRenderer(environment, canvas, viewport);
+        car = createCar();
     }
-    
+
     private void draw() {
-        GraphicsContext gc = canvas.getGraphicsContext2D();
-        
-        // Draw background
-        gc.setFill(Color.BLACK);
-        gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
-        
-        // Draw cells
-        for (int y = 0; y < environment.getHeight(); y++) {
-            for (int x = 0; x < environment.getWidth(); x++) {
-                Cell cell = environment.getCell(x, y);
-                int cellX = x * CELL_SIZE;
-                int cellY = y * CELL_SIZE;
-                
-                gc.setFill(cell.getType() == CellType.ROAD ? Color.DARKGRAY : Color.BROWN);
-                gc.fillRect(cellX, cellY, CELL_SIZE, CELL_SIZE);
-
-                if (cell.hasTrafficElements()) {
-                    TrafficElement element = cell.getTrafficElements().get(0);
-                    if (element instanceof TrafficLight) {
-                        drawTrafficLight(gc, cellX, cellY, (TrafficLight)element);
-                    } else {
-                        drawTrafficSign(gc, cellX, cellY, (TrafficSign)element);
-                    }
-                }
-            }
-        }
-    }
-    
-    private void drawTrafficLight(GraphicsContext gc, int x, int y, TrafficLight light) {
-        gc.setFill(Color.DARKGREY);
-        gc.fillRect(x + PADDING, y + PADDING, CELL_SIZE - 2*PADDING, CELL_SIZE - 2*PADDING);
-        switch (light.getState()) {
-            case RED    -> gc.setFill(Color.RED);
-            case YELLOW -> gc.setFill(Color.YELLOW);
-            case GREEN  -> gc.setFill(Color.LIME);
+        SimulationMetrics metrics = engine.getMetrics();
+        long start = metrics.start();
+        SimulationSnapshot snapshot = engine.snapshot();
+        renderer.render();
+        fleetRenderer.render(snapshot);
+        if (viewport.getVersion() != carViewVersion) {
+            carViewVersion = viewport.getVersion();
+            car.updateView();
         }
-        gc.fillOval(x + CELL_SIZE/4, y + CELL_SIZE/4, CELL_SIZE/2, CELL_SIZE/2);
+        metrics.lap(SimulationMetrics.Phase.RENDER, start);
+        statsLabel.setText(String.format("tick %d | frame %.2f ms (avg %.2f) | %s %.2f px/cell",
+                snapshot.tick(), renderer.getLastFrameMillis(), renderer.getAverageFrameMillis(),
+                renderer.isHeatmap() ? "heatmap" : renderer.getCellsRepainted() + " cells", viewport.getScale()));
     }
-    
-    private void drawTrafficSign(GraphicsContext gc, int x, int y, TrafficSign sign) {
-        switch (sign.getType()) {
-            case STOP -> {
-                gc.setFill(Color.RED);
-                double[] xp = new double[8];
-                double[] yp = new double[8];
-                double r = CELL_SIZE/2 - PADDING;
-                double cx = x + CELL_SIZE/2;
-                double cy = y + CELL_SIZE/2;
-                for (int i = 0; i < 8; i++) {
-                    double angle = Math.PI/8 + i * Math.PI/4;
-                    xp[i] = cx + r * Math.cos(angle);
-                    yp[i] = cy + r * Math.sin(angle);
-                }
-                gc.fillPolygon(xp, yp, 8);
-                gc.setFill(Color.WHITE);
-                gc.fillText("STOP", x + PADDING + 2, y + CELL_SIZE/2 + 4);
-            }
-            case YIELD -> {
-                gc.setFill(Color.YELLOW);
-                gc.fillPolygon(
-                    new double[]{x+CELL_SIZE/2, x+PADDING, x+CELL_SIZE-PADDING},
-                    new double[]{y+PADDING, y+CELL_SIZE-PADDING, y+CELL_SIZE-PADDING},
-                    3
-                );
-            }
-            case SPEED_LIMIT -> {
-                gc.setFill(Color.WHITE);
-                gc.fillOval(x+PADDING, y+PADDING, CELL_SIZE-2*PADDING, CELL_SIZE-2*PADDING);
-                gc.setStroke(Color.RED);
-                gc.setLineWidth(2);
-                gc.strokeOval(x+PADDING, y+PADDING, CELL_SIZE-2*PADDING, CELL_SIZE-2*PADDING);
-                gc.setFill(Color.BLACK);
-                gc.fillText("30", x+CELL_SIZE/3, y+CELL_SIZE/2+4);
-            }
-            case ONE_WAY -> {
-                gc.setFill(Color.BLUE);
-                gc.fillRect(x+PADDING, y+PADDING, CELL_SIZE-2*PADDING, CELL_SIZE-2*PADDING);
-                gc.setFill(Color.WHITE);
-                gc.fillPolygon(
-                    new double[]{x+CELL_SIZE/2, x+CELL_SIZE/4, x+3*CELL_SIZE/4},
-                    new double[]{y+PADDING+2, y+CELL_SIZE-PADDING-2, y+CELL_SIZE-PADDING-2},
-                    3
-                );
-                gc.fillRect(x+CELL_SIZE/2-2, y+CELL_SIZE/3, 4, CELL_SIZE/3);
-            }
-            case NO_ENTRY -> {
-                gc.setFill(Color.WHITE);
-                gc.fillOval(x+PADDING, y+PADDING, CELL_SIZE-2*PADDING, CELL_SIZE-2*PADDING);
-                gc.setFill(Color.RED);
-                gc.fillRect(x+PADDING+2, y+CELL_SIZE/2-3, CELL_SIZE-2*PADDING-4, 6);
-                gc.setStroke(Color.RED);
-                gc.setLineWidth(2);
-                gc.strokeOval(x+PADDING, y+PADDING, CELL_SIZE-2*PADDING, CELL_SIZE-2*PADDING);
-            }
-        }
-    }
-    
+
     public static void main(String[] args) {
         launch(args);
     }
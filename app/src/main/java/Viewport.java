@@ -0,0 +1,168 @@
+/**
+ * The visible part of a map: which cells a window of a given pixel size shows, and how big.
+ * The view shows scale pixels per cell with map point (originX, originY), in cells, at the
+ * top-left pixel. Panning and zooming keep at least half a window of the map on screen; a map
+ * smaller than the window is centred in it.
+ * Renderers compare {@link #getVersion()} with the version they last drew to tell whether the
+ * view moved. Use from the FX thread only.
+ */
+public class Viewport {
+
+    public static final double MAX_SCALE = 64;
+    private static final double MIN_SCALE = 1.0 / 16; // lower bound when even that doesn't fit the map
+
+    private final int mapWidth;
+    private final int mapHeight;
+    private double scale;
+    private double originX;
+    private double originY;
+    private double screenWidth;
+    private double screenHeight;
+    private long version;
+
+    /** @param scale initial pixels per cell */
+    public Viewport(int mapWidth, int mapHeight, double scale) {
+        this.mapWidth = mapWidth;
+        this.mapHeight = mapHeight;
+        this.scale = scale;
+    }
+
+    /** Resizes the window, keeping the map point at its top-left corner where it is. */
+    public void setScreenSize(double width, double height) {
+        if (width != screenWidth || height != screenHeight) {
+            screenWidth = Math.max(0, width);
+            screenHeight = Math.max(0, height);
+            scale = Math.max(scale, getMinScale());
+            clamp();
+        }
+    }
+
+    /** Moves the map with the pointer by the given number of pixels. */
+    public void pan(double dx, double dy) {
+        originX -= dx / scale;
+        originY -= dy / scale;
+        clamp();
+    }
+
+    /** Zooms by the given factor, keeping the map point under the pixel (screenX, screenY) in place. */
+    public void zoomAt(double factor, double screenX, double screenY) {
+        double cellX = originX + screenX / scale;
+        double cellY = originY + screenY / scale;
+        scale = Math.max(getMinScale(), Math.min(MAX_SCALE, scale * factor));
+        originX = cellX - screenX / scale;
+        originY = cellY - screenY / scale;
+        clamp();
+    }
+
+    /** Zooms out until the whole map fits the window. */
+    public void fitMap() {
+        scale = getMinScale();
+        originX = 0;
+        originY = 0;
+        clamp();
+    }
+
+    /** Moves the view so the given cell is in the middle of the window. */
+    public void centerOn(double cellX, double cellY) {
+        originX = cellX + 0.5 - screenWidth / scale / 2;
+        originY = cellY + 0.5 - screenHeight / scale / 2;
+        clamp();
+    }
+
+    /** @return the scale at which the whole map fits, bounded by MIN_SCALE and 1 */
+    private double getMinScale() {
+        if (screenWidth == 0 || screenHeight == 0) {
+            return MIN_SCALE;
+        }
+        double fit = Math.min(screenWidth / mapWidth, screenHeight / mapHeight);
+        return Math.max(MIN_SCALE, Math.min(1, fit));
+    }
+
+    private void clamp() {
+        double viewWidth = screenWidth / scale;
+        double viewHeight = screenHeight / scale;
+        originX = clampAxis(originX, viewWidth, mapWidth);
+        originY = clampAxis(originY, viewHeight, mapHeight);
+        version++;
+    }
+
+    private static double clampAxis(double origin, double view, int map) {
+        if (view >= map) {
+            return (map - view) / 2;
+        }
+        return Math.max(-view / 2, Math.min(map - view / 2, origin));
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+
+    public double getScreenWidth() {
+        return screenWidth;
+    }
+
+    public double getScreenHeight() {
+        return screenHeight;
+    }
+
+    public int getMapWidth() {
+        return mapWidth;
+    }
+
+    public int getMapHeight() {
+        return mapHeight;
+    }
+
+    /** @return a number that changes whenever the view moves, zooms or is resized */
+    public long getVersion() {
+        return version;
+    }
+
+    /** @return the pixel column of the left edge of cell column x (may be off screen) */
+    public double toScreenX(double x) {
+        return (x - originX) * scale;
+    }
+
+    /** @return the pixel row of the top edge of cell row y (may be off screen) */
+    public double toScreenY(double y) {
+        return (y - originY) * scale;
+    }
+
+    /** @return the cell column under a pixel column (may be outside the map) */
+    public int toCellX(double screenX) {
+        return (int) Math.floor(originX + screenX / scale);
+    }
+
+    /** @return the cell row under a pixel row (may be outside the map) */
+    public int toCellY(double screenY) {
+        return (int) Math.floor(originY + screenY / scale);
+    }
+
+    /** @return the first map column at least partly on screen */
+    public int getFirstColumn() {
+        return Math.max(0, (int) Math.floor(originX));
+    }
+
+    /** @return one past the last map column at least partly on screen */
+    public int getEndColumn() {
+        return Math.min(mapWidth, (int) Math.ceil(originX + screenWidth / scale));
+    }
+
+    /** @return the first map row at least partly on screen */
+    public int getFirstRow() {
+        return Math.max(0, (int) Math.floor(originY));
+    }
+
+    /** @return one past the last map row at least partly on screen */
+    public int getEndRow() {
+        return Math.min(mapHeight, (int) Math.ceil(originY + screenHeight / scale));
+    }
+}